@@ -1,4 +1,9 @@
 import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -8,8 +13,17 @@ import java.util.Map;
  * Extends capsule classpath by first adding 'lib' directory in same directory as jar,
  * and also enables user to specify additional directories using 'jobpipe.cp' env prop:
  * java -Djobpipe.cp=/tmp/cp1:/tmp/cp2:$HADOOP_CONF_DIR -jar jobpipe-0.0.1-SNAPSHOT-cli.jar
+ *
+ * Files of the directories are cached in the capsule cache directory until the
+ * modification time of a directory change, so directories are not listed on every launch.
+ *
+ * Class data sharing is enabled with -Djobpipe.cds=true on java 13 or later. The first
+ * launch dump loaded classes into an archive in the capsule cache directory that
+ * following launches map, until the classpath change.
  */
 public class JobPipeCapsule extends Capsule {
+  private static final String PROP_CDS = "jobpipe.cds";
+
   protected JobPipeCapsule(Capsule pred) {
     super(pred);
   }
@@ -18,34 +32,112 @@ public class JobPipeCapsule extends Capsule {
   protected <T> T attribute(Map.Entry<String, T> attr) {
     if (attr == ATTR_APP_CLASS_PATH) {
       final List<Object> args = new ArrayList<>(super.attribute(ATTR_APP_CLASS_PATH));
-      ArrayList<String> dirs = new ArrayList<>();
-      dirs.add(new File(getJarFile().toFile().getParent(), "lib").getAbsolutePath());
-      String cpStr = System.getProperty("jobpipe.cp");
-      if (cpStr != null && !cpStr.isEmpty()) {
-        List<String> cps = Arrays.asList(cpStr.split(":"));
-        for (String cp : cps) {
-          if (cp.startsWith("$")) {
-            String property = System.getProperty(cp.substring(1, cp.length()));
+      args.addAll(classPath(dirs()));
+      return (T) args;
+    }
+    if (attr == ATTR_JVM_ARGS && Boolean.getBoolean(PROP_CDS) && javaVersion() >= 13) {
+      final List<String> args = new ArrayList<>(super.attribute(ATTR_JVM_ARGS));
+      Path archive = getWritableAppCache().resolve("jobpipe-" + classPathKey(dirs()) + ".jsa");
+      if (Files.exists(archive)) {
+        args.add("-XX:SharedArchiveFile=" + archive);
+        args.add("-Xshare:auto");
+      } else {
+        args.add("-XX:ArchiveClassesAtExit=" + archive);
+      }
+      return (T) args;
+    }
+    return super.attribute(attr);
+  }
+
+  /**
+   * @return the lib directory next to the jar followed by the directories of 'jobpipe.cp'.
+   */
+  private List<String> dirs() {
+    ArrayList<String> dirs = new ArrayList<>();
+    dirs.add(new File(getJarFile().toFile().getParent(), "lib").getAbsolutePath());
+    String cpStr = System.getProperty("jobpipe.cp");
+    if (cpStr != null && !cpStr.isEmpty()) {
+      List<String> cps = Arrays.asList(cpStr.split(":"));
+      for (String cp : cps) {
+        if (cp.startsWith("$")) {
+          String property = System.getProperty(cp.substring(1, cp.length()));
+          // an unset property adds no directory
+          if (property != null) {
             dirs.add(property);
-          } else {
-            dirs.add(cp);
           }
+        } else {
+          dirs.add(cp);
+        }
+      }
+    }
+    return dirs;
+  }
+
+  private static String classPathKey(List<String> dirs) {
+    return Integer.toHexString(String.join(File.pathSeparator, dirs).hashCode());
+  }
+
+  /**
+   * @return files of the directories, from the cache if no directory was modified.
+   */
+  private List<String> classPath(List<String> dirs) {
+    StringBuilder signature = new StringBuilder();
+    for (String dir : dirs) {
+      File file = new File(dir);
+      signature.append(file.getAbsolutePath()).append('=').append(file.lastModified()).append(File.pathSeparator);
+    }
+    String classPathKey = classPathKey(dirs);
+    Path cache = getWritableAppCache().resolve("jobpipe-cp-" + classPathKey);
+    try {
+      if (Files.exists(cache)) {
+        List<String> lines = Files.readAllLines(cache, StandardCharsets.UTF_8);
+        if (!lines.isEmpty() && lines.get(0).equals(signature.toString())) {
+          return lines.subList(1, lines.size());
         }
       }
-      for (String dir : dirs) {
-        File file = new File(dir);
-        if (file.exists() && file.isDirectory()) {
-          for (File f : file.listFiles()) {
-            if (!f.isDirectory()) {
-              args.add(f.getAbsolutePath());
-            }
+    } catch (IOException e) {
+      log(LOG_VERBOSE, "Could not read classpath cache " + cache + " " + e);
+    }
+    List<String> files = listFiles(dirs);
+    try {
+      List<String> lines = new ArrayList<>();
+      lines.add(signature.toString());
+      lines.addAll(files);
+      Files.createDirectories(cache.getParent());
+      Path tmp = Files.createTempFile(cache.getParent(), "jobpipe-cp", ".tmp");
+      Files.write(tmp, lines, StandardCharsets.UTF_8);
+      Files.move(tmp, cache, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      // classes of the archive no longer match the classpath
+      Files.deleteIfExists(getWritableAppCache().resolve("jobpipe-" + classPathKey + ".jsa"));
+    } catch (IOException e) {
+      log(LOG_VERBOSE, "Could not write classpath cache " + cache + " " + e);
+    }
+    return files;
+  }
+
+  private static List<String> listFiles(List<String> dirs) {
+    List<String> files = new ArrayList<>();
+    for (String dir : dirs) {
+      File file = new File(dir);
+      if (file.exists() && file.isDirectory()) {
+        for (File f : file.listFiles()) {
+          if (!f.isDirectory()) {
+            files.add(f.getAbsolutePath());
           }
-        } else if (file.exists()) {
-          args.add(file.getAbsolutePath());
         }
+      } else if (file.exists()) {
+        files.add(file.getAbsolutePath());
       }
-      return (T) args;
     }
-    return super.attribute(attr);
+    return files;
+  }
+
+  private static int javaVersion() {
+    String version = System.getProperty("java.specification.version");
+    try {
+      return version.startsWith("1.") ? Integer.parseInt(version.substring(2)) : Integer.parseInt(version);
+    } catch (NumberFormatException e) {
+      return 0;
+    }
   }
 }
@@ -2,8 +2,10 @@ package org.deephacks.jobpipe;
 
 import joptsimple.*;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.*;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeUnit;
 
 public class Cli {
 
@@ -13,23 +15,51 @@ public class Cli {
     parser.formatHelpWith(new OptionFormatter());
     parser.allowsUnrecognizedOptions();
 
-    OptionSpec<String> optRange = parser.accepts("range", "Date range for job to process, " +
+    OptionSpec<String> optRange = parser.accepts("range", "Date ranges for job to process, " +
       "ex 2016-01, 2013-W12, 2016-10-11, 2013-12-01T12")
-      .withRequiredArg().ofType(String.class).describedAs("range");
+      .withRequiredArg().ofType(String.class).withValuesSeparatedBy(',').describedAs("range+");
 
     OptionSpec<String> optTaskId = parser.accepts("task", "Task regexp to execute, or nothing for everything.")
       .withRequiredArg().ofType(String.class).describedAs("task");
 
+    OptionSpec<String> optLeases = parser.accepts("leases", "Directory shared with other processes " +
+      "that execute the same pipeline, where tasks are leased before executing.")
+      .withRequiredArg().ofType(String.class).describedAs("dir");
+
+    OptionSpec<String> optRun = parser.accepts("run", "Id shared by processes that execute the " +
+      "same run with -leases, outcomes of other runs are ignored.")
+      .withRequiredArg().ofType(String.class).describedAs("id");
+
+    OptionSpec<Integer> optThreads = parser.accepts("threads", "Threads of the scheduler " +
+      "shared by pipelines that do not have their own.")
+      .withRequiredArg().ofType(Integer.class).describedAs("threads");
+
+    OptionSpec<String> optHistory = parser.accepts("history", "File with execution times of " +
+      "earlier runs, used for estimates and updated after the run.")
+      .withRequiredArg().ofType(String.class).describedAs("file");
+
+    OptionSpec<String> optCoverage = parser.accepts("coverage", "Directory of the index of time " +
+      "slots where tasks have output, updated after the run.")
+      .withRequiredArg().ofType(String.class).describedAs("dir");
+
+    OptionSpec<String> optForce = parser.accepts("force", "Task regexp to execute even if " +
+      "output exist.")
+      .withRequiredArg().ofType(String.class).describedAs("task");
+
+    parser.accepts("prune", "Do not schedule tasks that only feed tasks that have output.");
+    parser.accepts("plan", "Print which tasks would run, be skipped or be blocked, " +
+      "with estimated run time, without executing anything.");
+    parser.accepts("daemon", "Keep running after the range is done and schedule each " +
+      "following interval when it is due. Takes a single range and no -plan.");
     parser.accepts("h", "Display help");
     parser.accepts("v", "Print debug statements and exceptions.");
 
-    OptionSpec<String> clsOpt = parser.nonOptions("Class regexp to run that implements a Pipeline " +
-      "as a META-INF/services/org.deephacks.jobpipe.Pipeline")
+    OptionSpec<String> clsOpt = parser.nonOptions("Class regexps of pipelines to run that implement " +
+      "Pipeline as a META-INF/services/org.deephacks.jobpipe.Pipeline")
       .describedAs("cls");
     OptionSet options = parser.parse(args);
-    List<String> argList = options.valuesOf(clsOpt);
-    String cls = null;
-    TimeRange range;
+    List<String> classes = options.valuesOf(clsOpt);
+    List<TimeRange> ranges = new ArrayList<>();
     String taskId = null;
     if (options.has("h")) {
       parser.printHelpOn(System.out);
@@ -39,49 +69,186 @@ public class Cli {
     if (options.has("v")) {
       verbose = true;
     }
-    if (argList != null && argList.size() > 0) {
-      cls = argList.get(0);
-    }
-    if (cls == null) {
+    if (classes == null || classes.isEmpty()) {
       System.out.println("Missing 'cls'");
       return;
     }
     if (options.has(optRange)) {
-      range = new TimeRange(options.valueOf(optRange));
+      options.valuesOf(optRange).forEach(range -> ranges.add(new TimeRange(range)));
     } else {
       System.out.println("Missing 'range'");
       return;
     }
+    if (options.has("daemon") && options.has("plan")) {
+      // a planned schedule is not started, but the daemon would execute what it extends
+      System.out.println("'daemon' cannot be combined with 'plan'");
+      return;
+    }
+    if (options.has("daemon") && ranges.size() > 1) {
+      // each range would extend its own schedule with the same following intervals
+      System.out.println("'daemon' takes a single 'range'");
+      return;
+    }
     if (options.has(optTaskId)) {
       taskId = options.valueOf(optTaskId);
     }
-    ArrayList<Pipeline> pipelines = new ArrayList<>();
-    ServiceLoader.load(Pipeline.class).forEach(pipelines::add);
-    Pattern pattern = Pattern.compile(cls);
-    if (pipelines.isEmpty()) {
+    PipelineIndex pipelines = PipelineIndex.load();
+    if (pipelines.getNames().isEmpty()) {
       System.out.println("No pipelines found. " +
         "Check that -Djobpipe.cp or lib classpath contains jar(s) with META-INF/services/org.deephacks.jobpipe.Pipeline");
-    } else {
-      for (Pipeline pipeline : pipelines) {
-        if (pattern.matcher(pipeline.getClass().getName()).find()) {
-          PipelineContext context = new PipelineContext(range, taskId, verbose, args);
-          System.out.println("Executing " + pipeline.getClass().getName() + " for " + range);
-          pipeline.execute(context);
-          if (context.schedule != null) {
-            context.schedule.awaitDone();
-            if (!context.schedule.getFailedTasks().isEmpty()) {
-              System.out.println("\nFailure executing pipeline:");
-              for (TaskStatus fail : context.schedule.getFailedTasks()) {
-                System.out.println(fail.code() + " " + fail.getContext());
-              }
-              System.exit(1);
-            }
-          }
-          return;
+      return;
+    }
+    Set<String> names = new LinkedHashSet<>();
+    for (String cls : classes) {
+      List<String> found = pipelines.findAll(cls);
+      if (found.isEmpty()) {
+        System.out.println("'" + cls + "' matches no pipeline, existing pipelines:");
+        pipelines.getNames().forEach(System.out::println);
+        return;
+      }
+      names.addAll(found);
+    }
+    Scheduler scheduler = options.has(optThreads)
+      ? new DefaultScheduler(options.valueOf(optThreads)) : new DefaultScheduler();
+    // pipelines that share tasks execute them once
+    ExecutionRegistry registry = new ExecutionRegistry();
+    LeaseCoordinator leases = options.has(optLeases)
+      ? new LeaseCoordinator(new File(options.valueOf(optLeases)), options.valueOf(optRun),
+      30, TimeUnit.SECONDS) : null;
+    RuntimeHistory history = options.has(optHistory)
+      ? RuntimeHistory.read(new File(options.valueOf(optHistory))) : new RuntimeHistory();
+    CoverageIndex coverage = options.has(optCoverage)
+      ? new CoverageIndex(new File(options.valueOf(optCoverage))) : null;
+    List<Run> runs = new ArrayList<>();
+    for (String name : names) {
+      for (TimeRange range : ranges) {
+        PipelineContext context = new PipelineContext(range, taskId, verbose, args);
+        context.setScheduler(scheduler);
+        context.setExecutionRegistry(registry);
+        context.setLeaseCoordinator(leases);
+        context.setRuntimeHistory(history);
+        context.setPlanOnly(options.has("plan"));
+        context.setPrune(options.has("prune"));
+        context.setForceRerun(options.valueOf(optForce));
+        context.setCoverageIndex(coverage);
+        Run run = new Run(pipelines.newInstance(name), context, options.has("daemon"));
+        System.out.println((options.has("plan") ? "Planning " : "Executing ") + name + " for " + range);
+        run.start();
+        runs.add(run);
+      }
+    }
+    boolean failed = false;
+    for (Run run : runs) {
+      run.join();
+      if (run.context.getPlan() != null) {
+        System.out.println("\nPlan of " + run.pipeline.getClass().getName() + " for " + run.context.range);
+        run.context.getPlan().print(System.out);
+      }
+      if (run.schedule() != null && verbose) {
+        printTimeToFirstTask(run.schedule());
+      }
+      if (run.failed()) {
+        if (!failed) {
+          System.out.println("\nFailure executing pipeline:");
+          failed = true;
         }
+        run.printFailures();
+      }
+    }
+    scheduler.shutdown();
+    if (options.has(optHistory) && !options.has("plan")) {
+      history.write(new File(options.valueOf(optHistory)));
+    }
+    if (coverage != null) {
+      coverage.write();
+    }
+    if (failed) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Execution of a pipeline for a range, in a thread of its own.
+   */
+  static class Run extends Thread {
+    private final Pipeline pipeline;
+    private final PipelineContext context;
+    private final boolean daemon;
+    private volatile Throwable exception;
+
+    Run(Pipeline pipeline, PipelineContext context, boolean daemon) {
+      super(pipeline.getClass().getSimpleName() + "-" + context.range);
+      this.pipeline = pipeline;
+      this.context = context;
+      this.daemon = daemon;
+    }
+
+    @Override
+    public void run() {
+      try {
+        pipeline.execute(context);
+        if (context.schedule != null && daemon) {
+          daemon(context.schedule, context.range.getType());
+        } else if (context.schedule != null) {
+          context.schedule.awaitDone();
+        }
+      } catch (Throwable e) {
+        exception = e;
+      }
+    }
+
+    JobSchedule schedule() {
+      return context.schedule;
+    }
+
+    boolean failed() {
+      return exception != null || (schedule() != null && !schedule().getFailedTasks().isEmpty());
+    }
+
+    void printFailures() {
+      String prefix = pipeline.getClass().getName() + " " + context.range + " ";
+      if (exception != null) {
+        System.out.println(prefix + exception);
+      }
+      if (schedule() != null) {
+        for (TaskStatus fail : schedule().getFailedTasks()) {
+          System.out.println(prefix + fail.code() + " " + fail.getContext());
+        }
+      }
+    }
+  }
+
+  /**
+   * Print the time from when the JVM started until the first task started executing.
+   */
+  static void printTimeToFirstTask(JobSchedule schedule) {
+    long started = schedule.getMetrics().getFirstTaskStarted();
+    if (started > 0) {
+      long jvmStarted = ManagementFactory.getRuntimeMXBean().getStartTime();
+      System.out.println("Time to first task: " + (started - jvmStarted) + " ms, started at " + started);
+    }
+  }
+
+  /**
+   * Extend the schedule with the next interval when its end has passed, while
+   * retiring intervals that are done. Never returns.
+   */
+  static void daemon(JobSchedule schedule, TimeRangeType type) throws InterruptedException {
+    while (true) {
+      for (TaskStatus status : schedule.retire()) {
+        if (status.hasFailed()) {
+          System.out.println(status.code() + " " + status.getContext());
+        }
+      }
+      TimeRange next = new TimeRange(schedule.getScheduledTo(), type, 1);
+      long wait = next.to().getMillis() - System.currentTimeMillis();
+      if (wait > 0) {
+        System.out.println(schedule.getProgress());
+        Thread.sleep(Math.min(wait, 60_000));
+      } else {
+        schedule.extend(next);
+        System.out.println("Scheduled " + next);
       }
-      System.out.println("'" + cls + "' matches no pipeline, existing pipelines:");
-      pipelines.stream().map(p -> p.getClass().getName()).forEach(System.out::println);
     }
   }
 
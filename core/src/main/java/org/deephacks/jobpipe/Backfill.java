@@ -0,0 +1,454 @@
+package org.deephacks.jobpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Executes a template for each interval of a long range, one schedule per interval, in a
+ * chosen order and with a limited number of intervals in flight. Intervals are generated
+ * when they are started and progress is kept as the position below which every interval
+ * is done, so memory does not grow with the length of the range. With a checkpoint file,
+ * a backfill that is interrupted resumes where it stopped.
+ *
+ * <pre>
+ * Backfill backfill = Backfill.newBackfill(template, new TimeRange("2015-01-01/2017-01-01"))
+ *   .order(Backfill.Order.NEWEST_FIRST)
+ *   .maxInFlight(4)
+ *   .pauseWhenBusy(production)
+ *   .checkpoint(new File("/var/lib/jobpipe/backfill"))
+ *   .execute();
+ * backfill.awaitDone();
+ * </pre>
+ */
+public class Backfill {
+  private static final long POLL_MILLIS = 100;
+  private final ScheduleTemplate template;
+  private final TimeRange range;
+  private final Order order;
+  private final int maxInFlight;
+  private final BooleanSupplier pause;
+  private final File checkpoint;
+  private final CoverageIndex coverage;
+  private final String coverageTaskId;
+  private final boolean verbose;
+  /** intervals of the range */
+  private final int intervals;
+  /** number of positions in the order, some may not map to an interval */
+  private final int positions;
+  /** positions below this are done */
+  private int watermark;
+  /** positions at or above the watermark that are done */
+  private final TreeSet<Integer> done = new TreeSet<>();
+  private final Map<Integer, JobSchedule> inFlight = new LinkedHashMap<>();
+  private final List<TimeRange> failed = new ArrayList<>();
+  /** next position to start */
+  private int next;
+  private int completed;
+  private volatile boolean paused;
+  private volatile boolean stopped;
+  /** failure of the backfill itself, as opposed to failed tasks */
+  private volatile RuntimeException failure;
+  private final Thread thread;
+
+  private Backfill(BackfillBuilder builder) throws IOException {
+    this.template = builder.template;
+    this.range = builder.range;
+    this.order = builder.order;
+    this.maxInFlight = builder.maxInFlight;
+    this.pause = builder.pause;
+    this.checkpoint = builder.checkpoint;
+    this.coverage = builder.coverage;
+    this.coverageTaskId = builder.coverageTaskId;
+    this.verbose = template.verbose;
+    this.intervals = range.intervalsBetween();
+    this.positions = order == Order.BISECT ? Integer.highestOneBit(Math.max(1, intervals - 1)) << 1 : intervals;
+    if (checkpoint != null && checkpoint.exists()) {
+      readCheckpoint();
+    }
+    this.next = watermark;
+    this.thread = new Thread(this::run, "backfill-" + range.format());
+  }
+
+  public static BackfillBuilder newBackfill(ScheduleTemplate template, TimeRange range) {
+    return new BackfillBuilder(template, range);
+  }
+
+  private void run() {
+    try {
+      while (true) {
+        synchronized (this) {
+          reap();
+          paused = pause != null && pause.getAsBoolean();
+          while (!paused && !stopped && inFlight.size() < maxInFlight && advance()) {
+            TimeRange interval = interval(next);
+            inFlight.put(next, template.execute(interval));
+            Debug.debug("Backfill " + interval, verbose);
+            next++;
+          }
+          if (inFlight.isEmpty() && (stopped || next >= positions)) {
+            writeCheckpoint();
+            return;
+          }
+        }
+        Thread.sleep(POLL_MILLIS);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (IOException e) {
+      fail(new RuntimeException("could not write checkpoint " + checkpoint, e));
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  /**
+   * Stop starting intervals and wait for intervals in flight, so that their schedules
+   * are not left running, before the failure is given to those who wait.
+   */
+  private void fail(RuntimeException e) {
+    Debug.debug(e, verbose);
+    List<JobSchedule> schedules;
+    synchronized (this) {
+      schedules = new ArrayList<>(inFlight.values());
+    }
+    for (JobSchedule schedule : schedules) {
+      schedule.awaitDone();
+    }
+    synchronized (this) {
+      collect();
+      failure = e;
+    }
+  }
+
+  /**
+   * Move the next position past positions that are done or do not map to an
+   * interval that needs to execute.
+   *
+   * @return true if there is an interval to start.
+   */
+  private boolean advance() throws IOException {
+    boolean skipped = false;
+    while (next < positions) {
+      int index = index(next);
+      if (index >= 0 && !done.contains(next)
+        && (coverage == null || !coverage.covers(coverageTaskId, interval(next)))) {
+        break;
+      }
+      markDone(next++);
+      skipped = true;
+    }
+    if (skipped) {
+      writeCheckpoint();
+    }
+    return next < positions;
+  }
+
+  /**
+   * Collect schedules that are done and write the checkpoint if any was.
+   */
+  private void reap() throws IOException {
+    if (collect()) {
+      writeCheckpoint();
+    }
+  }
+
+  /**
+   * @return true if some schedule was done.
+   */
+  private boolean collect() {
+    boolean changed = false;
+    for (Iterator<Map.Entry<Integer, JobSchedule>> it = inFlight.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<Integer, JobSchedule> entry = it.next();
+      JobSchedule schedule = entry.getValue();
+      if (!schedule.isDone()) {
+        continue;
+      }
+      schedule.stopTimer();
+      if (!schedule.getFailedTasks().isEmpty()) {
+        failed.add(interval(entry.getKey()));
+      }
+      completed++;
+      markDone(entry.getKey());
+      it.remove();
+      changed = true;
+    }
+    return changed;
+  }
+
+  private void markDone(int position) {
+    done.add(position);
+    while (done.remove(watermark)) {
+      watermark++;
+    }
+  }
+
+  /**
+   * @return index of the interval at a position in the order, or -1 if none.
+   */
+  int index(int position) {
+    switch (order) {
+      case NEWEST_FIRST:
+        return intervals - 1 - position;
+      case BISECT:
+        // bit reversal visits the first interval, the middle, then quarters and so on
+        int bits = Integer.numberOfTrailingZeros(positions);
+        int index = bits == 0 ? 0 : Integer.reverse(position) >>> (32 - bits);
+        return index < intervals ? index : -1;
+      default:
+        return position;
+    }
+  }
+
+  private TimeRange interval(int position) {
+    return new TimeRange(range.getType().next(range.from(), index(position)), range.getType(), 1);
+  }
+
+  private void readCheckpoint() throws IOException {
+    Properties properties = new Properties();
+    try (Reader reader = Files.newBufferedReader(checkpoint.toPath(), StandardCharsets.UTF_8)) {
+      properties.load(reader);
+    }
+    if (!key().equals(properties.getProperty("backfill"))) {
+      throw new IllegalArgumentException("Checkpoint " + checkpoint + " is of another backfill "
+        + properties.getProperty("backfill") + ", not " + key());
+    }
+    watermark = Integer.parseInt(properties.getProperty("watermark", "0"));
+    for (String position : properties.getProperty("done", "").split(",")) {
+      if (!position.isEmpty()) {
+        done.add(Integer.parseInt(position));
+      }
+    }
+    for (String interval : properties.getProperty("failed", "").split(",")) {
+      if (!interval.isEmpty()) {
+        failed.add(new TimeRange(interval));
+      }
+    }
+  }
+
+  /**
+   * Replace the checkpoint atomically so that it is never partially written.
+   */
+  private void writeCheckpoint() throws IOException {
+    if (checkpoint == null) {
+      return;
+    }
+    Properties properties = new Properties();
+    properties.setProperty("backfill", key());
+    properties.setProperty("watermark", Integer.toString(watermark));
+    properties.setProperty("done", join(done));
+    List<String> intervals = new ArrayList<>();
+    failed.forEach(interval -> intervals.add(interval.format()));
+    properties.setProperty("failed", String.join(",", intervals));
+    Path path = checkpoint.getAbsoluteFile().toPath();
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), checkpoint.getName(), ".tmp");
+    try (Writer writer = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+      properties.store(writer, null);
+    }
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private String key() {
+    return range.format() + "/" + range.getType().format().print(range.to()) + " " + order;
+  }
+
+  private static String join(Iterable<Integer> values) {
+    StringBuilder sb = new StringBuilder();
+    for (Integer value : values) {
+      sb.append(sb.length() == 0 ? "" : ",").append(value);
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Stop starting intervals. Intervals in flight finish and the checkpoint is written,
+   * so that the backfill can resume later.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  /**
+   * @throws RuntimeException if the backfill stopped because it failed, like when the
+   * checkpoint could not be written.
+   */
+  public synchronized boolean isDone() {
+    boolean done = !thread.isAlive() && inFlight.isEmpty();
+    if (done) {
+      throwFailure();
+    }
+    return done;
+  }
+
+  /**
+   * Waits until every interval is done, or until intervals in flight are done after
+   * {@link #stop()}.
+   *
+   * @throws RuntimeException if the backfill stopped because it failed, like when the
+   * checkpoint could not be written.
+   */
+  public Backfill awaitDone() {
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Debug.debug(e, verbose);
+      throw new RuntimeException(e);
+    }
+    throwFailure();
+    return this;
+  }
+
+  private void throwFailure() {
+    if (failure != null) {
+      throw new RuntimeException("backfill " + key() + " failed", failure);
+    }
+  }
+
+  /**
+   * @return true if new intervals are not started because production needs capacity.
+   */
+  public boolean isPaused() {
+    return paused;
+  }
+
+  /**
+   * @return number of intervals of the range.
+   */
+  public int getIntervals() {
+    return intervals;
+  }
+
+  /**
+   * @return number of intervals executed by this backfill, not counting intervals that
+   * were done before it resumed or that were already covered.
+   */
+  public synchronized int getCompleted() {
+    return completed;
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight.size();
+  }
+
+  /**
+   * @return intervals where some task failed, including failures before the backfill resumed.
+   */
+  public synchronized List<TimeRange> getFailed() {
+    return Collections.unmodifiableList(new ArrayList<>(failed));
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "Backfill{" +
+      "range=" + key() +
+      ", intervals=" + intervals +
+      ", completed=" + completed +
+      ", inFlight=" + inFlight.size() +
+      ", failed=" + failed.size() +
+      ", paused=" + paused +
+      '}';
+  }
+
+  public enum Order {
+    /** oldest interval first, for outputs that depend on earlier outputs */
+    OLDEST_FIRST,
+    /** newest interval first, for data that is most valuable when recent */
+    NEWEST_FIRST,
+    /** oldest and middle interval first, then the middle of each half and so on,
+     *  for a coarse view of the whole range early */
+    BISECT
+  }
+
+  public static class BackfillBuilder {
+    private final ScheduleTemplate template;
+    private final TimeRange range;
+    private Order order = Order.OLDEST_FIRST;
+    private int maxInFlight = 1;
+    private BooleanSupplier pause;
+    private File checkpoint;
+    private CoverageIndex coverage;
+    private String coverageTaskId;
+
+    private BackfillBuilder(ScheduleTemplate template, TimeRange range) {
+      this.template = template;
+      this.range = range;
+    }
+
+    public BackfillBuilder order(Order order) {
+      this.order = order;
+      return this;
+    }
+
+    /**
+     * @param maxInFlight number of intervals executed at the same time.
+     */
+    public BackfillBuilder maxInFlight(int maxInFlight) {
+      if (maxInFlight < 1) {
+        throw new IllegalArgumentException("maxInFlight must be at least 1 " + maxInFlight);
+      }
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    /**
+     * @param pause new intervals are not started while this is true, intervals in
+     *              flight continue.
+     */
+    public BackfillBuilder pauseWhen(BooleanSupplier pause) {
+      this.pause = pause;
+      return this;
+    }
+
+    /**
+     * @param production pause while tasks of the production queue wait for a thread.
+     */
+    public BackfillBuilder pauseWhenBusy(FairShareScheduler.Queue production) {
+      return pauseWhen(() -> production.getDepth() > 0);
+    }
+
+    /**
+     * @param checkpoint file where progress is written, and read when the backfill resumes.
+     */
+    public BackfillBuilder checkpoint(File checkpoint) {
+      this.checkpoint = checkpoint;
+      return this;
+    }
+
+    /**
+     * @param coverage skip intervals where the task is covered.
+     */
+    public BackfillBuilder skipCovered(CoverageIndex coverage, String taskId) {
+      this.coverage = coverage;
+      this.coverageTaskId = taskId;
+      return this;
+    }
+
+    /**
+     * Start the backfill in a thread of its own.
+     */
+    public Backfill execute() {
+      try {
+        Backfill backfill = new Backfill(this);
+        backfill.thread.start();
+        return backfill;
+      } catch (IOException e) {
+        throw new RuntimeException("could not read checkpoint " + checkpoint, e);
+      }
+    }
+  }
+}
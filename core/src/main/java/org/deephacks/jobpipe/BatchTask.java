@@ -0,0 +1,26 @@
+package org.deephacks.jobpipe;
+
+import java.util.List;
+
+/**
+ * A task that can execute several adjacent time ranges in one execution, which
+ * saves the fixed cost of starting a task, like launching a JVM or a Spark context.
+ *
+ * The schedule groups adjacent time ranges of the same task that are ready to execute
+ * at the same moment, capped at the batch size given by
+ * {@link org.deephacks.jobpipe.JobSchedule.TaskBuilder#batchSize(int)}.
+ * Each task in the batch is still reported with its own status.
+ *
+ * Retries execute time ranges one by one using {@link #execute(TaskContext)}.
+ */
+public interface BatchTask extends Task {
+
+  /**
+   * Executes a batch of adjacent time ranges, ordered by time.
+   *
+   * Any exception thrown will fail every task in the batch.
+   *
+   * @param contexts Provides information regarding the execution of each time range.
+   */
+  void execute(List<TaskContext> contexts);
+}
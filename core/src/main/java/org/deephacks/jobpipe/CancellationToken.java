@@ -0,0 +1,78 @@
+package org.deephacks.jobpipe;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Signals that a task has been cancelled, either because it timed out or was cancelled
+ * through {@link org.deephacks.jobpipe.JobSchedule#cancel(String)}.
+ *
+ * Threads executing a cancelled task are interrupted. Tasks that do not respond to
+ * interrupts, like tasks that wait for an external process, should check the token
+ * or register a listener that stop the work.
+ */
+public class CancellationToken {
+  private final List<Runnable> listeners = new ArrayList<>();
+  private volatile String reason;
+
+  /**
+   * @return true if the task has been cancelled.
+   */
+  public boolean isCancelled() {
+    return reason != null;
+  }
+
+  /**
+   * @return why the task was cancelled, or null if not cancelled.
+   */
+  public String getReason() {
+    return reason;
+  }
+
+  /**
+   * @throws CancellationException if the task has been cancelled.
+   */
+  public void throwIfCancelled() {
+    if (reason != null) {
+      throw new CancellationException(reason);
+    }
+  }
+
+  /**
+   * @param listener called once when the task is cancelled, or directly if it
+   *                 already has been cancelled.
+   */
+  public void onCancel(Runnable listener) {
+    synchronized (listeners) {
+      if (reason == null) {
+        listeners.add(listener);
+        return;
+      }
+    }
+    listener.run();
+  }
+
+  /**
+   * @return false if already cancelled.
+   */
+  boolean cancel(String reason) {
+    List<Runnable> notify;
+    synchronized (listeners) {
+      if (this.reason != null) {
+        return false;
+      }
+      this.reason = reason;
+      notify = new ArrayList<>(listeners);
+      listeners.clear();
+    }
+    for (Runnable listener : notify) {
+      try {
+        listener.run();
+      } catch (Throwable e) {
+        // continue cancel other listeners
+      }
+    }
+    return true;
+  }
+}
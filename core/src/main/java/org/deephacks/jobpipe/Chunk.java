@@ -0,0 +1,57 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.DateTime;
+
+/**
+ * Part of the output of a task, delivered to {@link StreamingTask} that depend on it.
+ */
+public final class Chunk {
+  private final TaskContext producer;
+  private final Object value;
+  private final DateTime watermark;
+  private final boolean last;
+
+  Chunk(TaskContext producer, Object value, DateTime watermark, boolean last) {
+    this.producer = producer;
+    this.value = value;
+    this.watermark = watermark;
+    this.last = last;
+  }
+
+  /**
+   * @return context of the task that published the chunk.
+   */
+  public TaskContext getProducer() {
+    return producer;
+  }
+
+  /**
+   * @return the published value, or the {@link TaskOutput} of the producer for the last chunk.
+   */
+  public Object get() {
+    return value;
+  }
+
+  /**
+   * @return time before which the producer has published all of its output.
+   */
+  public DateTime getWatermark() {
+    return watermark;
+  }
+
+  /**
+   * @return true if the producer is done and will not publish more chunks.
+   */
+  public boolean isLast() {
+    return last;
+  }
+
+  @Override
+  public String toString() {
+    return "Chunk{" +
+      "producer=" + producer +
+      ", watermark=" + watermark +
+      ", last=" + last +
+      '}';
+  }
+}
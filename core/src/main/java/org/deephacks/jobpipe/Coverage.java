@@ -0,0 +1,146 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Time slots of a task at the granularity of its time range type, like the hours where
+ * a task has output. Set operations combine coverage of tasks with the same type, like
+ * the hours where an upstream task has output and a downstream task does not.
+ *
+ * <pre>
+ * Coverage gaps = index.get("Sessionize").andNot(index.get("Report"));
+ * gaps.covered(new TimeRange("2015-01-01/2017-01-01"));
+ * </pre>
+ */
+public final class Coverage {
+  private static final DateTime ORIGIN = new DateTime(1970, 1, 1, 0, 0);
+  /** first monday after the origin, so that week slots start on mondays */
+  private static final DateTime WEEK_ORIGIN = new DateTime(1970, 1, 5, 0, 0);
+  private final TimeRangeType type;
+  private final SlotBitmap slots;
+
+  Coverage(TimeRangeType type, SlotBitmap slots) {
+    this.type = type;
+    this.slots = slots;
+  }
+
+  public TimeRangeType getType() {
+    return type;
+  }
+
+  /**
+   * @return number of slots covered.
+   */
+  public long count() {
+    return slots.cardinality();
+  }
+
+  /**
+   * @return true if every slot of the range is covered.
+   */
+  public boolean contains(TimeRange range) {
+    int from = from(range);
+    return slots.nextMissing(from) >= to(range, from);
+  }
+
+  /**
+   * @return slots covered by both.
+   */
+  public Coverage and(Coverage other) {
+    return new Coverage(type, slots.and(check(other).slots));
+  }
+
+  /**
+   * @return slots covered by either.
+   */
+  public Coverage or(Coverage other) {
+    return new Coverage(type, slots.or(check(other).slots));
+  }
+
+  /**
+   * @return slots covered by this and not by the other.
+   */
+  public Coverage andNot(Coverage other) {
+    return new Coverage(type, slots.andNot(check(other).slots));
+  }
+
+  /**
+   * @return covered slots within the range, adjacent slots joined into one range.
+   */
+  public List<TimeRange> covered(TimeRange range) {
+    return runs(range, true);
+  }
+
+  /**
+   * @return slots within the range that are not covered, adjacent slots joined into one range.
+   */
+  public List<TimeRange> missing(TimeRange range) {
+    return runs(range, false);
+  }
+
+  private List<TimeRange> runs(TimeRange range, boolean covered) {
+    List<TimeRange> result = new ArrayList<>();
+    int from = from(range);
+    int to = to(range, from);
+    int slot = from;
+    while (slot < to) {
+      int start = covered ? slots.nextSlot(slot) : slots.nextMissing(slot);
+      if (start < 0 || start >= to) {
+        break;
+      }
+      int end = covered ? slots.nextMissing(start) : slots.nextSlot(start);
+      end = end < 0 ? to : Math.min(end, to);
+      result.add(new TimeRange(time(type, start), type, end - start));
+      slot = end;
+    }
+    return result;
+  }
+
+  private int from(TimeRange range) {
+    return slot(type, range.from());
+  }
+
+  /**
+   * @return first slot after the range, at least one slot after from.
+   */
+  private int to(TimeRange range, int from) {
+    int to = slot(type, range.to());
+    if (time(type, to).isBefore(range.to())) {
+      to++;
+    }
+    return Math.max(to, from + 1);
+  }
+
+  private Coverage check(Coverage other) {
+    if (other.type != type) {
+      throw new IllegalArgumentException("Coverage of " + other.type + " cannot be combined with " + type);
+    }
+    return other;
+  }
+
+  /**
+   * @return number of intervals of the type between 1970 and the time.
+   */
+  static int slot(TimeRangeType type, DateTime time) {
+    int slot = type.timeBetween(type == TimeRangeType.WEEK ? WEEK_ORIGIN : ORIGIN, time);
+    if (slot < 0) {
+      throw new IllegalArgumentException("Time before 1970 " + time);
+    }
+    return slot;
+  }
+
+  static DateTime time(TimeRangeType type, int slot) {
+    return type.next(type == TimeRangeType.WEEK ? WEEK_ORIGIN : ORIGIN, slot);
+  }
+
+  @Override
+  public String toString() {
+    return "Coverage{" +
+      "type=" + type +
+      ", count=" + count() +
+      '}';
+  }
+}
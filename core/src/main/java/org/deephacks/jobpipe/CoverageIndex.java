@@ -0,0 +1,183 @@
+package org.deephacks.jobpipe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Time slots where each task has output, recorded when tasks are finished or skipped.
+ * Missing slots can be found without building a schedule or checking outputs, and a
+ * backfill only executes those.
+ *
+ * The index observes schedules that it is given to, see
+ * {@link org.deephacks.jobpipe.JobSchedule.JobScheduleBuilder#coverageIndex(CoverageIndex)},
+ * and is kept in a directory with one compressed file per task id.
+ *
+ * <pre>
+ * CoverageIndex index = new CoverageIndex(new File("/var/lib/jobpipe/coverage"));
+ * for (TimeRange gap : index.missing("Sessionize", new TimeRange("2015-01-01/2017-01-01"))) {
+ *   template.execute(gap).awaitDone();
+ * }
+ * index.write();
+ * </pre>
+ */
+public class CoverageIndex implements JobObserver {
+  private static final String SUFFIX = ".coverage";
+  private final File dir;
+  private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+  /**
+   * Index kept in memory.
+   */
+  public CoverageIndex() {
+    this.dir = null;
+  }
+
+  /**
+   * @param dir directory where the index is read from and written to.
+   */
+  public CoverageIndex(File dir) throws IOException {
+    this.dir = dir;
+    File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+        String id = in.readUTF();
+        TimeRangeType type = TimeRangeType.valueOf(in.readUTF());
+        entries.put(id, new Entry(type, SlotBitmap.read(in)));
+      }
+    }
+  }
+
+  /**
+   * Record output of tasks that are finished or skipped.
+   */
+  @Override
+  public boolean notify(TaskStatus status) {
+    TaskStatus.TaskStatusCode code = status.code();
+    if (code == TaskStatus.TaskStatusCode.FINISHED || code == TaskStatus.TaskStatusCode.SKIPPED) {
+      add(status.getContext().getId(), status.getContext().getTimeRange());
+    }
+    return true;
+  }
+
+  /**
+   * Record output of a task for every interval of a range.
+   */
+  public void add(String taskId, TimeRange range) {
+    TimeRangeType type = range.getType();
+    Entry entry = entries.computeIfAbsent(taskId, id -> new Entry(type, new SlotBitmap()));
+    if (entry.type != type) {
+      throw new IllegalArgumentException("Coverage of " + taskId + " is " + entry.type + " not " + type);
+    }
+    int from = Coverage.slot(type, range.from());
+    int to = Coverage.slot(type, range.to());
+    synchronized (entry) {
+      entry.slots.add(from, Math.max(to, from + 1));
+      entry.dirty = true;
+    }
+  }
+
+  /**
+   * @return copy of the coverage of a task, or null if nothing is recorded.
+   */
+  public Coverage get(String taskId) {
+    Entry entry = entries.get(taskId);
+    if (entry == null) {
+      return null;
+    }
+    synchronized (entry) {
+      return new Coverage(entry.type, entry.slots.copy());
+    }
+  }
+
+  /**
+   * @return true if the task has output in every slot of the range.
+   */
+  public boolean covers(String taskId, TimeRange range) {
+    Entry entry = entries.get(taskId);
+    if (entry == null) {
+      return false;
+    }
+    synchronized (entry) {
+      return new Coverage(entry.type, entry.slots).contains(range);
+    }
+  }
+
+  /**
+   * @return ranges where the task does not have output, or the range itself if
+   * nothing is recorded for the task.
+   */
+  public List<TimeRange> missing(String taskId, TimeRange range) {
+    Coverage coverage = get(taskId);
+    return coverage == null ? Collections.singletonList(range) : coverage.missing(range);
+  }
+
+  /**
+   * @return ranges where the upstream task has output and the task does not.
+   */
+  public List<TimeRange> missing(String taskId, String upstreamId, TimeRange range) {
+    Coverage upstream = get(upstreamId);
+    if (upstream == null) {
+      return Collections.emptyList();
+    }
+    Coverage coverage = get(taskId);
+    return coverage == null ? upstream.covered(range) : upstream.andNot(coverage).covered(range);
+  }
+
+  /**
+   * Write coverage that changed since it was read or written. Files are replaced
+   * atomically so that readers never see partial content.
+   */
+  public synchronized void write() throws IOException {
+    if (dir == null) {
+      return;
+    }
+    Files.createDirectories(dir.toPath());
+    for (Map.Entry<String, Entry> e : entries.entrySet()) {
+      Entry entry = e.getValue();
+      String id = e.getKey();
+      String name = id.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(id.hashCode());
+      synchronized (entry) {
+        if (!entry.dirty) {
+          continue;
+        }
+        Path tmp = Files.createTempFile(dir.toPath(), name, ".tmp");
+        try (OutputStream file = Files.newOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+          out.writeUTF(id);
+          out.writeUTF(entry.type.name());
+          entry.slots.write(out);
+        }
+        Files.move(tmp, new File(dir, name + SUFFIX).toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        entry.dirty = false;
+      }
+    }
+  }
+
+  private static final class Entry {
+    private final TimeRangeType type;
+    private final SlotBitmap slots;
+    private boolean dirty;
+
+    private Entry(TimeRangeType type, SlotBitmap slots) {
+      this.type = type;
+      this.slots = slots;
+    }
+  }
+}
@@ -0,0 +1,85 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.DateTime;
+
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes due tasks in earliest deadline first order, so that tasks with tight deadlines
+ * run first when there are more due tasks than threads. Tasks without a deadline run after
+ * tasks with a deadline, in the order they became due.
+ *
+ * The deadline of a task is set with
+ * {@link org.deephacks.jobpipe.JobSchedule.TaskBuilder#deadline(org.joda.time.Duration)}
+ * and is inherited by the tasks it depends on.
+ */
+public class DeadlineScheduler implements Scheduler {
+  private final ScheduledThreadPoolExecutor timer;
+  private final ThreadPoolExecutor executor;
+  private final AtomicLong sequence = new AtomicLong();
+
+  public DeadlineScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public DeadlineScheduler(int corePoolSize) {
+    this.timer = new ScheduledThreadPoolExecutor(1);
+    this.executor = new ThreadPoolExecutor(corePoolSize, corePoolSize, 0, TimeUnit.MILLISECONDS,
+      new PriorityBlockingQueue<>());
+  }
+
+  @Override
+  public void schedule(Runnable runnable, long delayTime, TimeUnit unit) {
+    Entry entry = new Entry(runnable, sequence.incrementAndGet());
+    if (delayTime <= 0) {
+      executor.execute(entry);
+    } else {
+      timer.schedule(() -> executor.execute(entry), delayTime, unit);
+    }
+  }
+
+  /**
+   * @return number of due tasks waiting for a thread.
+   */
+  public int getQueueSize() {
+    return executor.getQueue().size();
+  }
+
+  @Override
+  public void shutdown() {
+    timer.shutdownNow();
+    executor.shutdownNow();
+  }
+
+  private static final class Entry implements Runnable, Comparable<Entry> {
+    private final Runnable runnable;
+    private final long deadline;
+    private final long sequence;
+
+    private Entry(Runnable runnable, long sequence) {
+      this.runnable = runnable;
+      this.sequence = sequence;
+      if (runnable instanceof TaskRunnable) {
+        this.deadline = ((TaskRunnable) runnable).getContext().getDeadline()
+          .map(DateTime::getMillis).orElse(Long.MAX_VALUE);
+      } else {
+        this.deadline = Long.MAX_VALUE;
+      }
+    }
+
+    @Override
+    public void run() {
+      runnable.run();
+    }
+
+    @Override
+    public int compareTo(Entry o) {
+      int c = Long.compare(deadline, o.deadline);
+      return c != 0 ? c : Long.compare(sequence, o.sequence);
+    }
+  }
+}
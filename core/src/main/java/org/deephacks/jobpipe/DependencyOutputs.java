@@ -0,0 +1,53 @@
+package org.deephacks.jobpipe;
+
+import java.util.*;
+
+/**
+ * Output of dependent tasks, indexed by task id and time range.
+ */
+public class DependencyOutputs {
+  private final Map<String, Map<TimeRange, TaskOutput>> outputs = new LinkedHashMap<>();
+  private final List<TaskOutput> list = new ArrayList<>();
+
+  DependencyOutputs(Collection<Node> nodes) {
+    for (Node node : nodes) {
+      TaskOutput output = node.getTaskOutput();
+      outputs.computeIfAbsent(node.getId(), id -> new LinkedHashMap<>())
+        .put(node.getRange(), output);
+      list.add(output);
+    }
+  }
+
+  /**
+   * @return output of a dependent task for a specific time range, or null if no such dependency.
+   */
+  @SuppressWarnings("unchecked")
+  public <T extends TaskOutput> T get(String id, TimeRange range) {
+    return (T) outputs.getOrDefault(id, Collections.emptyMap()).get(range);
+  }
+
+  /**
+   * @return output of a dependent task for all its time ranges.
+   */
+  public Map<TimeRange, TaskOutput> get(String id) {
+    return Collections.unmodifiableMap(outputs.getOrDefault(id, Collections.emptyMap()));
+  }
+
+  /**
+   * @return ids of dependent tasks.
+   */
+  public Set<String> ids() {
+    return Collections.unmodifiableSet(outputs.keySet());
+  }
+
+  /**
+   * @return output of all dependent tasks.
+   */
+  public List<TaskOutput> list() {
+    return Collections.unmodifiableList(list);
+  }
+
+  public int size() {
+    return list.size();
+  }
+}
@@ -0,0 +1,75 @@
+package org.deephacks.jobpipe;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Deduplicates executions of the same task id and time range between schedules
+ * that run in the same JVM, like pipelines that share upstream tasks.
+ *
+ * The first schedule that starts executing a task owns the execution. Schedules that
+ * start the same task while it executes attach to the owner and their tasks get the
+ * same outcome, which is notified to the observer of each schedule.
+ */
+public class ExecutionRegistry {
+  private static final ExecutionRegistry SHARED = new ExecutionRegistry();
+  private final ConcurrentHashMap<Key, CompletableFuture<Void>> executions = new ConcurrentHashMap<>();
+
+  /**
+   * @return a registry shared by every schedule in this JVM.
+   */
+  public static ExecutionRegistry shared() {
+    return SHARED;
+  }
+
+  /**
+   * @return the execution to attach to, or null if the execution was registered to the caller.
+   */
+  CompletableFuture<Void> register(Node node, CompletableFuture<Void> execution) {
+    return executions.putIfAbsent(new Key(node), execution);
+  }
+
+  void complete(Node node, CompletableFuture<Void> execution) {
+    executions.remove(new Key(node), execution);
+    TaskStatus status = node.getStatus();
+    if (status.hasFailed()) {
+      execution.completeExceptionally(status.getFailReason()
+        .orElseGet(() -> new RuntimeException(node + " " + status.code())));
+    } else {
+      execution.complete(null);
+    }
+  }
+
+  /**
+   * @return number of executions that are currently in progress.
+   */
+  public int size() {
+    return executions.size();
+  }
+
+  private static final class Key {
+    private final String id;
+    private final TimeRange range;
+
+    private Key(Node node) {
+      this.id = node.getId();
+      this.range = node.getRange();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (o == null || getClass() != o.getClass()) return false;
+
+      Key key = (Key) o;
+
+      if (!id.equals(key.id)) return false;
+      return range.equals(key.range);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * id.hashCode() + range.hashCode();
+    }
+  }
+}
@@ -0,0 +1,276 @@
+package org.deephacks.jobpipe;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shares a fixed number of threads between several schedules, so that a large backfill
+ * cannot starve latency sensitive schedules.
+ *
+ * Each schedule use its own {@link Queue}, created with a weight and a minimum share.
+ * Tasks that are due are put in the queue of their schedule and threads pick tasks
+ * from queues using deficit round robin, where each queue may run tasks in proportion
+ * to its weight. A queue that runs fewer tasks than its minimum share is served before
+ * other queues.
+ *
+ * <pre>
+ * FairShareScheduler scheduler = new FairShareScheduler(10);
+ * JobSchedule.newSchedule("2016-01").scheduler(scheduler.queue("backfill", 1, 0)) ...
+ * JobSchedule.newSchedule("2016-02-01T10").scheduler(scheduler.queue("hourly", 4, 2)) ...
+ * </pre>
+ */
+public class FairShareScheduler {
+  private final ScheduledThreadPoolExecutor timer;
+  private final List<Thread> threads = new ArrayList<>();
+  private final List<Queue> queues = new ArrayList<>();
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition notEmpty = lock.newCondition();
+  private int current = 0;
+  private int size = 0;
+  private volatile boolean shutdown = false;
+
+  public FairShareScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param poolSize number of tasks that may execute at the same time, shared by all queues.
+   */
+  public FairShareScheduler(int poolSize) {
+    this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = new Thread(r, "fair-share-timer");
+      thread.setDaemon(true);
+      return thread;
+    });
+    for (int i = 0; i < poolSize; i++) {
+      Thread thread = new Thread(this::work, "fair-share-" + i);
+      thread.setDaemon(true);
+      threads.add(thread);
+      thread.start();
+    }
+  }
+
+  /**
+   * @param name name of the queue, used for reporting.
+   * @param weight share of threads relative to other queues.
+   * @param minShare number of tasks that this queue may run before other queues are considered.
+   * @return a scheduler that put due tasks into a queue of this scheduler.
+   */
+  public Queue queue(String name, int weight, int minShare) {
+    if (weight < 1) {
+      throw new IllegalArgumentException("weight must be at least 1 " + weight);
+    }
+    Queue queue = new Queue(name, weight, minShare);
+    lock.lock();
+    try {
+      queues.add(queue);
+    } finally {
+      lock.unlock();
+    }
+    return queue;
+  }
+
+  /**
+   * @return all queues of this scheduler.
+   */
+  public List<Queue> getQueues() {
+    lock.lock();
+    try {
+      return Collections.unmodifiableList(new ArrayList<>(queues));
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Stop all threads of this scheduler. Tasks that are still queued will not execute.
+   */
+  public void shutdown() {
+    shutdown = true;
+    timer.shutdownNow();
+    threads.forEach(Thread::interrupt);
+  }
+
+  private void enqueue(Queue queue, Runnable runnable) {
+    lock.lock();
+    try {
+      queue.items.add(new Item(runnable));
+      size++;
+      notEmpty.signal();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private void work() {
+    while (!shutdown) {
+      Item item;
+      Queue queue;
+      lock.lock();
+      try {
+        while (size == 0) {
+          notEmpty.await();
+        }
+        queue = next();
+        item = queue.items.poll();
+        size--;
+        queue.running.incrementAndGet();
+      } catch (InterruptedException e) {
+        // a stray interrupt from a task must not stop the thread, only shutdown does
+        continue;
+      } finally {
+        lock.unlock();
+      }
+      queue.dispatched.incrementAndGet();
+      queue.waitNanos.addAndGet(System.nanoTime() - item.queued);
+      try {
+        item.runnable.run();
+      } catch (Throwable e) {
+        // tasks handle their own failures, keep the thread alive
+      } finally {
+        queue.running.decrementAndGet();
+      }
+    }
+  }
+
+  /**
+   * Pick the next queue to serve. Must be called with the lock held when at least one
+   * queue has items.
+   */
+  private Queue next() {
+    Queue starved = null;
+    for (Queue queue : queues) {
+      if (!queue.items.isEmpty() && queue.running.get() < queue.minShare) {
+        if (starved == null || share(queue) < share(starved)) {
+          starved = queue;
+        }
+      }
+    }
+    if (starved != null) {
+      return starved;
+    }
+    while (true) {
+      Queue queue = queues.get(current);
+      if (!queue.items.isEmpty() && queue.deficit >= 1) {
+        queue.deficit--;
+        return queue;
+      }
+      if (queue.items.isEmpty()) {
+        queue.deficit = 0;
+      }
+      current = (current + 1) % queues.size();
+      Queue nextQueue = queues.get(current);
+      if (!nextQueue.items.isEmpty()) {
+        nextQueue.deficit += nextQueue.weight;
+      }
+    }
+  }
+
+  private static double share(Queue queue) {
+    return (double) queue.running.get() / queue.minShare;
+  }
+
+  private static final class Item {
+    private final Runnable runnable;
+    private final long queued = System.nanoTime();
+
+    private Item(Runnable runnable) {
+      this.runnable = runnable;
+    }
+  }
+
+  /**
+   * A weighted queue of a {@link FairShareScheduler}, used as the scheduler of a schedule.
+   */
+  public final class Queue implements Scheduler {
+    private final String name;
+    private final int weight;
+    private final int minShare;
+    private final ArrayDeque<Item> items = new ArrayDeque<>();
+    private final AtomicInteger running = new AtomicInteger();
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private int deficit = 0;
+
+    private Queue(String name, int weight, int minShare) {
+      this.name = name;
+      this.weight = weight;
+      this.minShare = minShare;
+    }
+
+    @Override
+    public void schedule(Runnable runnable, long delayTime, TimeUnit unit) {
+      if (delayTime <= 0) {
+        enqueue(this, runnable);
+      } else {
+        timer.schedule(() -> enqueue(this, runnable), delayTime, unit);
+      }
+    }
+
+    /**
+     * Does nothing since threads are shared with other queues, use
+     * {@link FairShareScheduler#shutdown()}.
+     */
+    @Override
+    public void shutdown() {
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return number of tasks that are due and waiting for a thread.
+     */
+    public int getDepth() {
+      lock.lock();
+      try {
+        return items.size();
+      } finally {
+        lock.unlock();
+      }
+    }
+
+    /**
+     * @return number of tasks currently executing.
+     */
+    public int getRunning() {
+      return running.get();
+    }
+
+    /**
+     * @return number of tasks that have been given a thread.
+     */
+    public long getDispatched() {
+      return dispatched.get();
+    }
+
+    /**
+     * @return total time that dispatched tasks have waited in the queue.
+     */
+    public long getWaitTime(TimeUnit unit) {
+      return unit.convert(waitNanos.get(), TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public String toString() {
+      return "Queue{" +
+        "name='" + name + '\'' +
+        ", weight=" + weight +
+        ", minShare=" + minShare +
+        ", depth=" + getDepth() +
+        ", running=" + running +
+        ", dispatched=" + dispatched +
+        ", waitMs=" + getWaitTime(TimeUnit.MILLISECONDS) +
+        '}';
+    }
+  }
+}
@@ -0,0 +1,367 @@
+package org.deephacks.jobpipe;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executes tasks in a pool of worker JVMs that are started in advance, so that heavy
+ * tasks do not share heap and garbage collection pauses with the scheduling JVM and
+ * do not pay for starting a JVM every time.
+ *
+ * Tasks are sent to an idle worker over its standard input, together with their time
+ * range, arguments and dependencies, and the worker answer on its standard output
+ * when the task has started and finished. Workers are replaced after executing a
+ * number of tasks or when their heap usage runs high. Timing is left to another
+ * scheduler.
+ *
+ * Tasks that implement {@link java.io.Serializable} are serialized to the worker,
+ * other tasks are created in the worker by their no-arg constructor. Batch tasks
+ * execute in the scheduling JVM.
+ *
+ * <pre>
+ * ForkedScheduler forked = ForkedScheduler.newBuilder().workers(4).maxTasks(100).build();
+ * JobSchedule.newSchedule("2016-01").task(new HeavyTask()).scheduler(forked).add() ...
+ * </pre>
+ */
+public class ForkedScheduler implements Scheduler {
+  private static final int READY = 0x6a6f6270;
+  private static final byte STARTED = 1;
+  private static final byte FINISHED = 2;
+  private static final byte FAILED = 3;
+  /** attempts to start a worker that replaces another, one second apart times the attempt */
+  private static final int START_ATTEMPTS = 3;
+  private static final long IDLE_POLL_MILLIS = 1000;
+  private final Scheduler scheduler;
+  private final int maxTasks;
+  private final double maxHeapUsage;
+  private final boolean verbose;
+  private final List<String> command;
+  private final LinkedBlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+  private final Set<Worker> workers = ConcurrentHashMap.newKeySet();
+  /** workers that are being started to replace others */
+  private final AtomicInteger starting = new AtomicInteger();
+  private volatile RuntimeException startFailure;
+  private volatile boolean shutdown = false;
+
+  private ForkedScheduler(Builder builder) {
+    this.scheduler = builder.scheduler;
+    this.maxTasks = builder.maxTasks;
+    this.maxHeapUsage = builder.maxHeapUsage;
+    this.verbose = builder.verbose;
+    this.command = new ArrayList<>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+    command.addAll(builder.jvmArgs);
+    command.add("-cp");
+    command.add(builder.classpath);
+    command.add(ForkedScheduler.class.getName());
+    for (int i = 0; i < builder.workers; i++) {
+      idle.add(start());
+    }
+  }
+
+  public static Builder newBuilder() {
+    return new Builder();
+  }
+
+  @Override
+  public void schedule(Runnable runnable, long delayTime, TimeUnit unit) {
+    scheduler.schedule(runnable, delayTime, unit);
+  }
+
+  /**
+   * Execute the task in an idle worker and wait for it to finish. Fails if there are
+   * no workers left because none could be started.
+   */
+  @Override
+  public void execute(Task task, TaskContext context) {
+    Worker worker = take(context);
+    context.getCancellation().onCancel(() -> worker.destroy(context));
+    String failure;
+    try {
+      failure = worker.execute(task, context);
+    } catch (IOException e) {
+      replace(worker);
+      throw new RuntimeException("worker " + worker + " failed executing " + context, e);
+    }
+    if (worker.tasks >= maxTasks || worker.heapUsage >= maxHeapUsage) {
+      replace(worker);
+    } else {
+      idle.add(worker);
+    }
+    if (failure != null) {
+      throw new RuntimeException(failure);
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    scheduler.shutdown();
+    workers.forEach(worker -> worker.destroy(null));
+  }
+
+  /**
+   * @return number of worker JVMs that are running.
+   */
+  public int getWorkers() {
+    return workers.size();
+  }
+
+  private Worker take(TaskContext context) {
+    try {
+      while (true) {
+        Worker worker = idle.poll(IDLE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (worker != null) {
+          return worker;
+        }
+        if (shutdown) {
+          throw new IllegalStateException("scheduler shutdown before executing " + context);
+        }
+        if (workers.isEmpty() && starting.get() == 0) {
+          throw new IllegalStateException("no worker could be started to execute " + context, startFailure);
+        }
+      }
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /**
+   * Destroy a worker and start a new one in the background, so that the
+   * caller does not wait for the JVM to start.
+   */
+  private void replace(Worker worker) {
+    if (shutdown) {
+      worker.destroy(null);
+      return;
+    }
+    // counted before the worker is gone, so that waiting tasks do not give up
+    starting.incrementAndGet();
+    worker.destroy(null);
+    Thread thread = new Thread(() -> {
+      try {
+        for (int attempt = 1; attempt <= START_ATTEMPTS && !shutdown; attempt++) {
+          try {
+            idle.add(start());
+            return;
+          } catch (RuntimeException e) {
+            startFailure = e;
+            System.err.println("failed starting worker, attempt " + attempt + " of " + START_ATTEMPTS
+              + ": " + e.getMessage());
+            Debug.debug(e, verbose);
+          }
+          if (attempt < START_ATTEMPTS) {
+            Thread.sleep(attempt * 1000L);
+          }
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } finally {
+        starting.decrementAndGet();
+      }
+    }, "forked-worker-start");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private Worker start() {
+    Worker worker = null;
+    try {
+      Process process = new ProcessBuilder(command)
+        .redirectError(ProcessBuilder.Redirect.INHERIT)
+        .start();
+      worker = new Worker(process);
+      workers.add(worker);
+      if (worker.in.readInt() != READY) {
+        throw new IOException("unexpected handshake from worker " + worker);
+      }
+      return worker;
+    } catch (IOException e) {
+      if (worker != null) {
+        // a worker that exits before the handshake is not running
+        worker.destroy(null);
+      }
+      throw new RuntimeException("failed starting worker " + command, e);
+    }
+  }
+
+  private final class Worker {
+    private final Process process;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private volatile TaskContext current;
+    private int tasks = 0;
+    private double heapUsage = 0;
+
+    private Worker(Process process) {
+      this.process = process;
+      this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    /**
+     * @return failure of the task or null if it finished.
+     */
+    String execute(Task task, TaskContext context) throws IOException {
+      current = context;
+      try {
+        if (context.getCancellation().isCancelled()) {
+          throw new IOException("cancelled " + context.getCancellation().getReason());
+        }
+        tasks++;
+        TaskRequest.write(out, context.node);
+        out.flush();
+        if (in.readByte() != STARTED) {
+          throw new IOException("unexpected response from worker " + this);
+        }
+        byte result = in.readByte();
+        String failure = result == FAILED ? in.readUTF() : null;
+        heapUsage = in.readDouble();
+        return failure;
+      } finally {
+        current = null;
+      }
+    }
+
+    /**
+     * Destroy the worker, or only if it executes the context when given.
+     */
+    void destroy(TaskContext context) {
+      if (context != null && current != context) {
+        return;
+      }
+      workers.remove(this);
+      process.destroyForcibly();
+    }
+
+    @Override
+    public String toString() {
+      return process.toString();
+    }
+  }
+
+  /**
+   * Entry point of worker JVMs. Standard output is reserved for answers to the
+   * scheduler, so anything that tasks print goes to standard error.
+   */
+  public static void main(String[] args) throws IOException {
+    DataOutputStream out = new DataOutputStream(
+      new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    System.setOut(System.err);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    out.writeInt(READY);
+    out.flush();
+    while (true) {
+      Node node;
+      try {
+        node = TaskRequest.read(in);
+      } catch (EOFException e) {
+        // scheduler closed the pipe
+        return;
+      } catch (Exception e) {
+        throw new IOException("failed reading request", e);
+      }
+      out.writeByte(STARTED);
+      out.flush();
+      try {
+        node.execute();
+        out.writeByte(FINISHED);
+      } catch (Throwable e) {
+        out.writeByte(FAILED);
+        out.writeUTF(TaskRequest.failure(e));
+      }
+      MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+      out.writeDouble(heap.getMax() > 0 ? (double) heap.getUsed() / heap.getMax() : 0);
+      out.flush();
+    }
+  }
+
+  public static class Builder {
+    private Scheduler scheduler;
+    private int workers = Runtime.getRuntime().availableProcessors();
+    private int maxTasks = 1000;
+    private double maxHeapUsage = 0.8;
+    private List<String> jvmArgs = new ArrayList<>();
+    private String classpath = System.getProperty("java.class.path");
+    private boolean verbose = false;
+
+    private Builder() {
+    }
+
+    /**
+     * @param scheduler decides when tasks execute, default is a {@link DefaultScheduler}
+     *                  with one thread per worker.
+     */
+    public Builder scheduler(Scheduler scheduler) {
+      this.scheduler = scheduler;
+      return this;
+    }
+
+    /**
+     * @param workers number of worker JVMs.
+     */
+    public Builder workers(int workers) {
+      if (workers < 1) {
+        throw new IllegalArgumentException("workers must be at least 1 " + workers);
+      }
+      this.workers = workers;
+      return this;
+    }
+
+    /**
+     * @param maxTasks number of tasks that a worker execute before it is replaced.
+     */
+    public Builder maxTasks(int maxTasks) {
+      if (maxTasks < 1) {
+        throw new IllegalArgumentException("maxTasks must be at least 1 " + maxTasks);
+      }
+      this.maxTasks = maxTasks;
+      return this;
+    }
+
+    /**
+     * @param maxHeapUsage fraction of max heap used after a task, that cause the worker to be replaced.
+     */
+    public Builder maxHeapUsage(double maxHeapUsage) {
+      this.maxHeapUsage = maxHeapUsage;
+      return this;
+    }
+
+    /**
+     * @param jvmArgs arguments of worker JVMs, like -Xmx.
+     */
+    public Builder jvmArgs(String... jvmArgs) {
+      this.jvmArgs = Arrays.asList(jvmArgs);
+      return this;
+    }
+
+    /**
+     * @param classpath classpath of worker JVMs, default is the classpath of this JVM.
+     */
+    public Builder classpath(String classpath) {
+      this.classpath = classpath;
+      return this;
+    }
+
+    /**
+     * @param verbose print the stack trace of workers that fail to start.
+     */
+    public Builder verbose(boolean verbose) {
+      this.verbose = verbose;
+      return this;
+    }
+
+    public ForkedScheduler build() {
+      if (scheduler == null) {
+        scheduler = new DefaultScheduler(workers);
+      }
+      return new ForkedScheduler(this);
+    }
+  }
+}
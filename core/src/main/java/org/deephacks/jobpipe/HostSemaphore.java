@@ -0,0 +1,188 @@
+package org.deephacks.jobpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A named counting semaphore shared by all processes on a host, like overlapping runs
+ * of the command line that are started by cron.
+ *
+ * Each permit is a slot file in a directory named after the semaphore and a permit is
+ * held by locking its slot file. Locks are released by the operating system if the
+ * process dies, so permits are never lost. Processes must agree on the number of permits
+ * since slots beyond the number of permits of a process are not used by it. The holder
+ * of a permit writes its name into the slot file, so that permits can be counted
+ * without locking.
+ *
+ * <pre>
+ * HostSemaphore spark = HostSemaphore.named("spark", 4);
+ * JobSchedule.newSchedule("2016-01").task(new SparkTask1()).semaphores(spark).add() ...
+ * </pre>
+ */
+public class HostSemaphore {
+  /**
+   * Slot files locked by this JVM. Closing any channel of a locked file may release the
+   * lock on some platforms, so these files are not opened again until released.
+   */
+  private static final Set<File> LOCKED = ConcurrentHashMap.newKeySet();
+  /** written into slot files while held */
+  private static final byte[] HOLDER = ManagementFactory.getRuntimeMXBean().getName().getBytes(StandardCharsets.UTF_8);
+  private final String name;
+  private final File dir;
+  private final int permits;
+
+  /**
+   * @param dir directory of slot files, shared by processes that use the semaphore.
+   * @param permits number of permits.
+   */
+  public HostSemaphore(String name, File dir, int permits) {
+    if (permits < 1) {
+      throw new IllegalArgumentException("permits must be at least 1 " + permits);
+    }
+    this.name = name;
+    this.dir = dir.getAbsoluteFile();
+    this.permits = permits;
+    if (!dir.exists() && !dir.mkdirs() && !dir.exists()) {
+      throw new IllegalArgumentException("could not create semaphore directory " + dir);
+    }
+  }
+
+  /**
+   * @return a semaphore with slot files in the temporary directory of the host.
+   */
+  public static HostSemaphore named(String name, int permits) {
+    File dir = new File(new File(System.getProperty("java.io.tmpdir"), "jobpipe-semaphores"), name);
+    return new HostSemaphore(name, dir, permits);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getPermits() {
+    return permits;
+  }
+
+  /**
+   * @return a permit or null if all permits are held, by this or other processes.
+   */
+  public Permit tryAcquire() {
+    for (int i = 0; i < permits; i++) {
+      Permit permit = tryAcquire(new File(dir, "slot-" + i));
+      if (permit != null) {
+        return permit;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Count slot files that have a holder written into them, without contending with
+   * processes that acquire permits. The count is approximate: a permit that was just
+   * acquired or released may be missed or counted, and a permit of a process that died
+   * is counted until its slot is acquired again.
+   *
+   * @return number of permits that are held right now, by this or other processes.
+   */
+  public int getHeld() {
+    int held = 0;
+    for (int i = 0; i < permits; i++) {
+      if (new File(dir, "slot-" + i).length() > 0) {
+        held++;
+      }
+    }
+    return held;
+  }
+
+  private Permit tryAcquire(File slot) {
+    if (!LOCKED.add(slot)) {
+      return null;
+    }
+    FileChannel channel = null;
+    try {
+      channel = FileChannel.open(slot.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+      FileLock lock = channel.tryLock();
+      if (lock != null) {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(HOLDER), 0);
+        return new Permit(slot, channel, lock);
+      }
+    } catch (OverlappingFileLockException e) {
+      // held by this process
+    } catch (IOException e) {
+      close(channel);
+      LOCKED.remove(slot);
+      throw new RuntimeException("could not lock " + slot + " of " + name, e);
+    }
+    close(channel);
+    LOCKED.remove(slot);
+    return null;
+  }
+
+  private static void close(FileChannel channel) {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException e) {
+        // nothing to do
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "HostSemaphore{" +
+      "name='" + name + '\'' +
+      ", dir=" + dir +
+      ", permits=" + permits +
+      '}';
+  }
+
+  /**
+   * A held permit of a {@link HostSemaphore}.
+   */
+  public static final class Permit implements AutoCloseable {
+    private final File slot;
+    private final FileChannel channel;
+    private final FileLock lock;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    private Permit(File slot, FileChannel channel, FileLock lock) {
+      this.slot = slot;
+      this.channel = channel;
+      this.lock = lock;
+    }
+
+    /**
+     * Give back the permit.
+     */
+    public void release() {
+      if (!released.compareAndSet(false, true)) {
+        return;
+      }
+      try {
+        channel.truncate(0);
+        lock.release();
+      } catch (IOException e) {
+        // closing the channel release the lock
+      }
+      HostSemaphore.close(channel);
+      LOCKED.remove(slot);
+    }
+
+    @Override
+    public void close() {
+      release();
+    }
+  }
+}
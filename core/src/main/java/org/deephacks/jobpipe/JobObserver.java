@@ -19,4 +19,20 @@ public interface JobObserver {
    * {@link org.deephacks.jobpipe.TaskStatus.TaskStatusCode#ERROR_ABORTED}
    */
   boolean notify(TaskStatus status);
+
+  /**
+   * Called when a task with a deadline is still not done shortly before its deadline.
+   *
+   * @param status current status of the task.
+   */
+  default void slaAtRisk(TaskStatus status) {
+  }
+
+  /**
+   * Called when a task with a deadline did not finish before its deadline.
+   *
+   * @param status current status of the task.
+   */
+  default void slaMissed(TaskStatus status) {
+  }
 }
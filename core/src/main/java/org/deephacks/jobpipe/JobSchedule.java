@@ -1,28 +1,71 @@
 package org.deephacks.jobpipe;
 
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
+
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class JobSchedule {
-  private final TimeRange timeRange;
-  private final int scheduleId;
-  private final List<Map<String, List<Node>>> tasks;
+  private static final int MIN_SPECULATION_SAMPLES = 5;
+  private static final long SEMAPHORE_POLL_MILLIS = 500;
+  private static final long JOIN_POLL_MILLIS = 100;
+  private static final int DEFAULT_PREFLIGHT = 16;
+  private final ScheduleTemplate template;
+  private final TimeRangeType timeRangeType;
+  private final int scheduleId = ThreadLocalRandom.current().nextInt();
+  private final String targetTaskId;
   private final boolean verbose;
-  private final List<Node> schedule = new ArrayList<>();
+  private final List<Node> schedule = new CopyOnWriteArrayList<>();
+  /** nodes that were scheduled together, retired together when all are done */
+  private final List<List<Node>> intervals = new ArrayList<>();
+  private final Map<TaskStatusCode, Long> retired = new EnumMap<>(TaskStatusCode.class);
+  private volatile DateTime scheduledTo;
+  /** nodes of batch tasks, mapped by task id and ordered by time */
+  private final Map<String, List<Node>> batches = new ConcurrentHashMap<>();
+  private final RateLimiter rateLimiter;
+  private final ExecutionRegistry registry;
+  private final LeaseCoordinator leases;
+  private final ScheduleMetrics metrics = new ScheduleMetrics();
+  private final RuntimeHistory history;
+  private ScheduledThreadPoolExecutor timer;
 
-  private JobSchedule(JobScheduleBuilder builder) {
-    this.timeRange = builder.timeRange;
-    this.tasks = builder.tasks;
-    this.verbose = builder.verbose;
-    this.scheduleId = builder.scheduleId;
-    if (builder.pipelineContext != null) {
-      builder.pipelineContext.setSchedule(this);
+  JobSchedule(ScheduleTemplate template, TimeRange range, PipelineContext context) {
+    this.template = template;
+    this.timeRangeType = range.getType();
+    this.targetTaskId = template.targetTaskId;
+    this.scheduledTo = range.to();
+    this.verbose = template.verbose;
+    this.rateLimiter = template.rateLimiter;
+    this.registry = template.registry;
+    this.leases = template.leases;
+    this.history = Optional.ofNullable(template.history).orElseGet(() -> new RuntimeHistory());
+    if (context != null) {
+      context.setSchedule(this);
     }
   }
 
+  static JobSchedule start(ScheduleTemplate template, TimeRange range, PipelineContext context) {
+    JobSchedule jobSchedule = new JobSchedule(template, range, context);
+    jobSchedule.execute(template.build(range, jobSchedule.scheduleId));
+    return jobSchedule;
+  }
+
   public static JobScheduleBuilder newSchedule(PipelineContext context) {
     return new JobScheduleBuilder(context);
   }
@@ -45,11 +88,25 @@ public class JobSchedule {
     return scheduleId;
   }
 
-  private List<Node> getJobSchedule(String targetTaskId) {
+  /**
+   * @return execution times of tasks in this schedule.
+   */
+  public RuntimeHistory getRuntimeHistory() {
+    return history;
+  }
+
+  /**
+   * @return counters collected while executing this schedule.
+   */
+  public ScheduleMetrics getMetrics() {
+    return metrics;
+  }
+
+  private List<Node> getJobSchedule(List<Map<String, List<Node>>> tasks) {
     List<Node> fullGraph = new ArrayList<>();
     for (Map<String, List<Node>> intervalGraph : tasks) {
       List<Node> nodes = intervalGraph.values().stream()
-        .flatMap(tasks -> tasks.stream())
+        .flatMap(List::stream)
         .collect(Collectors.toList());
       fullGraph.addAll(getJobSchedule(nodes, targetTaskId));
 
@@ -100,33 +157,435 @@ public class JobSchedule {
 
   private List<Node> createGraphFrom(String targetTaskId, List<Node> graph) {
     Pattern pattern = Pattern.compile(targetTaskId);
-    ArrayList<Node> result = new ArrayList<>();
+    // a set since several matching nodes, like shards of a task, share dependencies
+    Set<Node> result = new LinkedHashSet<>();
     for (Node node : graph) {
       if (pattern.matcher(node.getId()).find()) {
         result.add(node);
         result.addAll(node.getDependencies());
       }
     }
-    return result;
+    return new ArrayList<>(result);
   }
 
-  private List<Node> execute(String targetTaskId) {
-    List<Node> jobSchedule = getJobSchedule(targetTaskId);
+  private List<Node> execute(List<Map<String, List<Node>>> tasks) {
+    List<Node> jobSchedule = getJobSchedule(tasks);
     if (jobSchedule.isEmpty()) {
       return new ArrayList<>();
     }
-    for (Node n : jobSchedule) {
+    boolean[] skip;
+    if (template.prune) {
+      Set<Node> satisfied = new HashSet<>();
+      jobSchedule = prune(jobSchedule, template.preflight > 0 ? template.preflight : DEFAULT_PREFLIGHT, satisfied);
+      skip = new boolean[jobSchedule.size()];
+      for (int i = 0; i < skip.length; i++) {
+        skip[i] = satisfied.contains(jobSchedule.get(i));
+      }
+    } else if (template.preflight > 0) {
+      skip = probeOutputs(jobSchedule, template.preflight);
+    } else {
+      skip = new boolean[jobSchedule.size()];
+    }
+    for (int i = 0; i < jobSchedule.size(); i++) {
+      Node n = jobSchedule.get(i);
       if (!n.getStatus().newTask()) {
         n.getStatus().abort();
       }
-      schedule.add(n);
+      if (skip[i] && !isForced(n)) {
+        n.getStatus().skipped();
+      }
+      if (n.isBatch()) {
+        List<Node> nodes = batches.computeIfAbsent(n.getId(), id -> new ArrayList<>());
+        synchronized (nodes) {
+          nodes.add(n);
+        }
+      }
+    }
+    schedule.addAll(jobSchedule);
+    intervals.add(jobSchedule);
+    for (List<Node> nodes : batches.values()) {
+      synchronized (nodes) {
+        nodes.sort((n1, n2) -> n1.getRange().from().compareTo(n2.getRange().from()));
+      }
+    }
+    // dependent tasks comes after its dependencies
+    for (int i = jobSchedule.size() - 1; i >= 0; i--) {
+      Node n = jobSchedule.get(i);
+      for (Node dep : n.getDirectDependencies()) {
+        dep.inheritDeadline(n.getEffectiveDeadline());
+      }
+    }
+    // outputs are kept for every node that executes before any of them is done
+    for (Node n : jobSchedule) {
+      if (!n.getStatus().isDone()) {
+        n.retainDependencies();
+      }
     }
-    for (Node n : schedule) {
+    for (Node n : jobSchedule) {
+      if (n.getStatus().isDone()) {
+        continue;
+      }
+      n.setSchedule(this);
       new ScheduleTask(n).schedule();
+      if (n.getDeadline() != null) {
+        scheduleSlaChecks(n);
+      }
     }
     return jobSchedule;
   }
 
+  /**
+   * Add a child of a node that is executing to the schedule, see
+   * {@link TaskContext#spawn(String, Task, TimeRange, TaskContext...)}.
+   */
+  Node spawn(Node parent, String name, Task task, TimeRange range, List<Node> deps) {
+    if (parent.isBatch()) {
+      throw new IllegalStateException("Batch task " + parent + " cannot spawn tasks");
+    }
+    TaskDefinition definition = TaskDefinition.simple(parent.getId() + "/" + name, task,
+      range.getType(), parent.getScheduler());
+    Node child = new Node(definition, scheduleId, range, template.args, template.observer, verbose);
+    for (Node dep : deps) {
+      if (!parent.equals(dep.getParent())) {
+        throw new IllegalArgumentException(dep + " is not a child of " + parent);
+      }
+      child.addDependencies(dep);
+    }
+    Node added = parent.addChild(child);
+    if (added != child) {
+      return added;
+    }
+    child.getStatus().newTask();
+    child.retainDependencies();
+    child.setSchedule(this);
+    schedule.add(child);
+    new ScheduleTask(child).schedule();
+    return child;
+  }
+
+  /**
+   * Classify the nodes of a range without executing them.
+   */
+  SchedulePlan plan(TimeRange range, int parallelism) {
+    List<Node> nodes = getJobSchedule(template.build(range, scheduleId));
+    if (template.prune) {
+      nodes = prune(nodes, parallelism, new HashSet<>());
+    }
+    return plan(nodes, parallelism);
+  }
+
+  private SchedulePlan plan(List<Node> nodes, int parallelism) {
+    boolean[] exists = probeOutputs(nodes, parallelism);
+    Map<Node, SchedulePlan.Entry> entries = new HashMap<>();
+    // time when each node would finish, if started right away
+    Map<Node, Long> finish = new HashMap<>();
+    List<SchedulePlan.Entry> result = new ArrayList<>(nodes.size());
+    long work = 0;
+    long criticalPath = 0;
+    int unestimated = 0;
+    // nodes are ordered with dependencies first
+    for (int i = 0; i < nodes.size(); i++) {
+      Node node = nodes.get(i);
+      SchedulePlan.Action action = SchedulePlan.Action.RUN;
+      String reason = null;
+      if (exists[i] && !isForced(node)) {
+        action = SchedulePlan.Action.SKIP;
+      } else {
+        LeaseCoordinator.State state = peekLease(node);
+        if (state == LeaseCoordinator.State.FINISHED) {
+          action = SchedulePlan.Action.SKIP;
+        } else if (state == LeaseCoordinator.State.FAILED) {
+          action = SchedulePlan.Action.BLOCKED;
+          reason = "failed in another process";
+        } else if (state == LeaseCoordinator.State.LEASED) {
+          action = SchedulePlan.Action.BLOCKED;
+          reason = "leased by another process";
+        } else {
+          for (Node dep : node.getDirectDependencies()) {
+            SchedulePlan.Entry entry = entries.get(dep);
+            if (entry != null && entry.getAction() == SchedulePlan.Action.BLOCKED) {
+              action = SchedulePlan.Action.BLOCKED;
+              reason = "blocked by " + dep;
+              break;
+            }
+          }
+        }
+      }
+      long estimate = -1;
+      if (action == SchedulePlan.Action.RUN) {
+        estimate = history.percentile(node.getId(), 0.5);
+        if (estimate < 0) {
+          unestimated++;
+        } else {
+          work += estimate;
+        }
+      }
+      long started = 0;
+      for (Node dep : node.getDirectDependencies()) {
+        started = Math.max(started, finish.getOrDefault(dep, 0L));
+      }
+      long finished = started + Math.max(estimate, 0);
+      finish.put(node, finished);
+      criticalPath = Math.max(criticalPath, finished);
+      SchedulePlan.Entry entry = new SchedulePlan.Entry(node.getContext(), action, estimate, reason);
+      entries.put(node, entry);
+      result.add(entry);
+    }
+    return new SchedulePlan(result, work, criticalPath, unestimated);
+  }
+
+  /**
+   * Check outputs from the targets towards their dependencies, like requirements are
+   * evaluated in Luigi, and prune nodes that only feed nodes that have output. Outputs of
+   * pruned nodes are never checked, so a rerun costs as much as the work that is missing.
+   *
+   * @param nodes ordered with dependencies first.
+   * @param satisfied filled with nodes that have output and are not forced to rerun.
+   * @return nodes that are not pruned, ordered with dependencies first.
+   */
+  private List<Node> prune(List<Node> nodes, int parallelism, Set<Node> satisfied) {
+    Set<Node> graph = new HashSet<>(nodes);
+    // number of dependents in the graph that are not checked yet
+    Map<Node, Integer> dependents = new HashMap<>();
+    for (Node node : nodes) {
+      for (Node dep : node.getDirectDependencies()) {
+        if (graph.contains(dep)) {
+          dependents.merge(dep, 1, Integer::sum);
+        }
+      }
+    }
+    // targets are needed, dependencies are needed by dependents that run
+    Set<Node> needed = new HashSet<>();
+    List<Node> level = new ArrayList<>();
+    for (Node node : nodes) {
+      if (!dependents.containsKey(node)) {
+        needed.add(node);
+        level.add(node);
+      }
+    }
+    while (!level.isEmpty()) {
+      List<Node> probe = level.stream()
+        .filter(n -> needed.contains(n) && !isForced(n))
+        .collect(Collectors.toList());
+      boolean[] exists = probeOutputs(probe, parallelism);
+      for (int i = 0; i < exists.length; i++) {
+        if (exists[i]) {
+          satisfied.add(probe.get(i));
+        }
+      }
+      List<Node> next = new ArrayList<>();
+      for (Node node : level) {
+        boolean runs = needed.contains(node) && !satisfied.contains(node);
+        for (Node dep : node.getDirectDependencies()) {
+          if (!graph.contains(dep)) {
+            continue;
+          }
+          if (runs) {
+            needed.add(dep);
+          }
+          if (dependents.merge(dep, -1, Integer::sum) == 0) {
+            next.add(dep);
+          }
+        }
+      }
+      level = next;
+    }
+    List<Node> result = new ArrayList<>(needed.size());
+    for (Node node : nodes) {
+      if (needed.contains(node)) {
+        result.add(node);
+      } else {
+        node.prune();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return true if the node should execute even if it has output.
+   */
+  private boolean isForced(Node node) {
+    return template.forceRerun != null && template.forceRerun.matcher(node.getId()).find();
+  }
+
+  private LeaseCoordinator.State peekLease(Node node) {
+    if (leases == null) {
+      return null;
+    }
+    try {
+      return leases.peek(node);
+    } catch (IOException e) {
+      throw new RuntimeException("could not check lease of " + node, e);
+    }
+  }
+
+  /**
+   * Check outputs of nodes, a number of them at the same time.
+   *
+   * @return if each node has output.
+   */
+  private static boolean[] probeOutputs(List<Node> nodes, int parallelism) {
+    boolean[] exists = new boolean[nodes.size()];
+    if (nodes.isEmpty()) {
+      return exists;
+    } else if (nodes.size() == 1 || parallelism == 1) {
+      for (int i = 0; i < exists.length; i++) {
+        exists[i] = nodes.get(i).hasOutput();
+      }
+      return exists;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, nodes.size()), r -> {
+      Thread thread = new Thread(r, "output-preflight");
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      List<Future<Boolean>> futures = new ArrayList<>(nodes.size());
+      for (Node node : nodes) {
+        futures.add(executor.submit(node::hasOutput));
+      }
+      for (int i = 0; i < exists.length; i++) {
+        exists[i] = futures.get(i).get();
+      }
+      return exists;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException("could not check output", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Extend the schedule with the interval that follows the ranges scheduled so far,
+   * for schedules that run continuously.
+   *
+   * @return the range that was added.
+   */
+  public synchronized TimeRange extend() {
+    TimeRange range = new TimeRange(scheduledTo, timeRangeType, 1);
+    extend(range);
+    return range;
+  }
+
+  /**
+   * Extend the schedule with tasks for a range after the ranges scheduled so far.
+   * Tasks are created the same way as when the schedule was built.
+   */
+  public synchronized void extend(TimeRange range) {
+    if (range.from().isBefore(scheduledTo)) {
+      throw new IllegalArgumentException(range + " overlap ranges scheduled until " + scheduledTo);
+    }
+    execute(template.build(range, scheduleId));
+    scheduledTo = range.to();
+  }
+
+  /**
+   * @return end of the ranges scheduled so far.
+   */
+  public DateTime getScheduledTo() {
+    return scheduledTo;
+  }
+
+  /**
+   * Remove intervals where all tasks are done, so that schedules that run continuously
+   * do not grow. Retired tasks are counted by {@link #getProgress()} and no longer
+   * returned by {@link #getScheduledTasks()}.
+   *
+   * @return tasks that were retired.
+   */
+  public synchronized List<TaskStatus> retire() {
+    List<TaskStatus> result = new ArrayList<>();
+    Iterator<List<Node>> it = intervals.iterator();
+    while (it.hasNext()) {
+      List<Node> nodes = it.next();
+      if (!nodes.stream().allMatch(n -> n.getStatus().isDone())) {
+        continue;
+      }
+      it.remove();
+      nodes = withChildren(nodes);
+      schedule.removeAll(new HashSet<>(nodes));
+      for (Node n : nodes) {
+        if (n.isBatch()) {
+          List<Node> batch = batches.get(n.getId());
+          synchronized (batch) {
+            batch.remove(n);
+          }
+        }
+        retired.merge(n.getStatus().code(), 1L, Long::sum);
+        result.add(n.getStatus());
+      }
+    }
+    return result;
+  }
+
+  private static List<Node> withChildren(List<Node> nodes) {
+    List<Node> result = new ArrayList<>(nodes);
+    for (int i = 0; i < result.size(); i++) {
+      result.addAll(result.get(i).getChildren());
+    }
+    return result;
+  }
+
+  /**
+   * @return number of tasks per status, including retired tasks.
+   */
+  public synchronized ScheduleProgress getProgress() {
+    Map<TaskStatusCode, Long> live = getScheduledTasks().stream()
+      .collect(Collectors.groupingBy(TaskStatus::code, () -> new EnumMap<>(TaskStatusCode.class),
+        Collectors.counting()));
+    return new ScheduleProgress(live, retired, scheduledTo);
+  }
+
+  /**
+   * Deadlines that already passed when the task is scheduled, like in a backfill,
+   * are only used for prioritizing tasks.
+   */
+  private void scheduleSlaChecks(Node node) {
+    long now = System.currentTimeMillis();
+    if (node.getDeadline().getMillis() <= now) {
+      return;
+    }
+    timer().schedule(() -> {
+      if (!node.getStatus().isDone()) {
+        metrics.slaAtRisk();
+        node.getStatus().slaAtRisk();
+      }
+    }, node.getAtRisk().getMillis() - now, TimeUnit.MILLISECONDS);
+    timer().schedule(() -> {
+      TaskStatus.TaskStatusCode code = node.getStatus().code();
+      if (code != TaskStatus.TaskStatusCode.FINISHED && code != TaskStatus.TaskStatusCode.SKIPPED) {
+        metrics.slaMissed();
+        node.getStatus().slaMissed();
+      }
+    }, node.getDeadline().getMillis() - now, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @return timer for checks that should not wait for a scheduler thread.
+   */
+  private synchronized ScheduledThreadPoolExecutor timer() {
+    if (timer == null) {
+      timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "schedule-timer-" + scheduleId);
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    return timer;
+  }
+
+  /**
+   * Stop checking deadlines, timeouts and speculation of tasks in this schedule.
+   */
+  synchronized void stopTimer() {
+    if (timer != null) {
+      timer.shutdownNow();
+    }
+  }
+
   /**
    * @return all tasks are finished executing.
    */
@@ -155,6 +614,7 @@ public class JobSchedule {
   }
 
   public void shutdownAfter() {
+    stopTimer();
     for (TaskStatus status : getScheduledTasks()) {
       try {
         status.getContext().node.getScheduler().shutdown();
@@ -179,6 +639,25 @@ public class JobSchedule {
       .collect(Collectors.groupingBy(s -> s.getContext().getId()));
   }
 
+  /**
+   * Cancel tasks that are not done. Threads that execute the tasks are interrupted
+   * and the tasks get status {@link TaskStatus.TaskStatusCode#ERROR_SIGTERM}.
+   *
+   * @param taskIdRegex cancel tasks with an id that matches this regexp.
+   * @return tasks that were cancelled.
+   */
+  public List<TaskStatus> cancel(String taskIdRegex) {
+    Pattern pattern = Pattern.compile(taskIdRegex);
+    List<TaskStatus> cancelled = new ArrayList<>();
+    for (Node node : schedule) {
+      if (pattern.matcher(node.getId()).find() && node.cancel("cancelled")) {
+        metrics.cancelled();
+        cancelled.add(node.getStatus());
+      }
+    }
+    return cancelled;
+  }
+
   /**
    * @return all tasks that have failed up until now.
    */
@@ -187,20 +666,81 @@ public class JobSchedule {
       .filter(task -> task.hasFailed()).collect(Collectors.toList());
   }
 
-  private class ScheduleTask implements Runnable {
+  private class ScheduleTask implements TaskRunnable {
     Node node;
+    boolean permitted = false;
+    boolean claimed = false;
+    boolean leased = false;
+    List<HostSemaphore.Permit> permits = new ArrayList<>();
+    CompletableFuture<Void> execution;
+    /** waiting for spawned children after the node executed */
+    boolean joining = false;
+    /** the node has been completed by one of its attempts */
+    final AtomicBoolean completed = new AtomicBoolean(false);
 
     ScheduleTask(Node node) {
       this.node = node;
     }
 
+    @Override
+    public TaskContext getContext() {
+      return node.getContext();
+    }
+
     @Override
     public void run() {
+      try {
+        executeWhenReady();
+      } finally {
+        releaseSemaphores();
+        if (!joining) {
+          complete();
+        }
+      }
+    }
+
+    private void complete() {
+      if (node.isCommitted() && !node.getStatus().isDone()) {
+        // the attempt that committed completes the node when its children are done
+        return;
+      }
+      if (node.getStatus().isDone() && !completed.compareAndSet(false, true)) {
+        // already completed by another attempt
+        return;
+      }
+      if (execution != null) {
+        registry.complete(node, execution);
+      }
+      if (leased && node.getStatus().isDone()) {
+        leases.release(node);
+      }
+      node.joinParent();
+    }
+
+    /**
+     * Called when the children of the node are done.
+     */
+    private void joined() {
+      Optional<Node> failed = node.getChildren().stream()
+        .filter(child -> child.getStatus().hasFailed())
+        .findFirst();
+      if (failed.isPresent()) {
+        node.getStatus().failedDep(failed.get().getContext());
+      } else {
+        node.getStatus().finished();
+      }
+      complete();
+    }
 
-      while (!node.getStatus().isDone()) {
+    private void executeWhenReady() {
+      // stop if a speculative attempt committed
+      while (!node.getStatus().isDone() && !node.isCommitted()) {
         try {
           for (Node dep : node.getDependencies()) {
-            if (dep.getStatus().hasFailed()) {
+            if (dep.isPruned()) {
+              // not needed since its dependents have output
+              continue;
+            } else if (dep.getStatus().hasFailed()) {
               // fail early
               node.getStatus().failedDep(dep.getContext());
               return;
@@ -214,15 +754,36 @@ public class JobSchedule {
               return;
             }
           }
-
-          if (!node.hasOutput()) {
+          if (joiningDependency()) {
+            // dependencies are done when their children are done, which need the thread
+            node.getScheduler().schedule(this, JOIN_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            return;
+          }
+          if (!claimed && !node.claim()) {
+            // executed as a member of another batch
+            return;
+          }
+          claimed = true;
+          if (!acquireLease()) {
+            return;
+          }
+          if (isForced(node) || !node.hasOutput()) {
+            if (!acquirePermit() || !acquireSemaphores()) {
+              return;
+            }
             // don't set status to RUNNING for retries
             if (node.getStatus().code() == TaskStatus.TaskStatusCode.RETRY) {
-              node.execute();
-              node.getStatus().finished();
+              executeNode();
             } else if (node.getStatus().running()) {
-              node.execute();
-              node.getStatus().finished();
+              if (node.isBatch()) {
+                executeBatch();
+                node.getStatus().finished();
+              } else if (registerExecution()) {
+                executeNode();
+              } else {
+                // another schedule is executing this task
+                return;
+              }
             } else {
               node.getStatus().abort();
             }
@@ -230,6 +791,10 @@ public class JobSchedule {
             node.getStatus().skipped();
           }
         } catch (Throwable e) {
+          if (node.isCommitted() || node.getCancellation().isCancelled()) {
+            // interrupted by a speculative attempt that won or cancelled
+            return;
+          }
           if (node.getRetries() > node.getStatus().getRetries()) {
             if (!node.getStatus().retry()) {
               node.getStatus().failed(e);
@@ -241,26 +806,366 @@ public class JobSchedule {
       }
     }
 
+    private void executeNode() {
+      long started = System.currentTimeMillis();
+      metrics.taskStarted();
+      scheduleTimeout();
+      scheduleSpeculation();
+      node.execute();
+      if (node.commit()) {
+        history.record(node.getId(), System.currentTimeMillis() - started);
+        // the node is running until spawned children are done
+        joining = node.awaitChildren(this::joined);
+        if (!joining) {
+          node.getStatus().finished();
+        }
+      }
+    }
+
+    private boolean joiningDependency() {
+      for (Node dep : node.getDirectDependencies()) {
+        if (dep.hasPendingChildren()) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Cancel the node if the current attempt executes longer than the timeout.
+     */
+    private void scheduleTimeout() {
+      Duration timeout = node.getExecutionTimeout();
+      if (timeout == null) {
+        return;
+      }
+      int attempt = node.getStatus().getRetries();
+      timer().schedule(() -> {
+        if (!node.isCommitted() && node.getStatus().getRetries() == attempt
+          && node.cancel("timeout after " + timeout)) {
+          Debug.debug(node + " timeout after " + timeout, verbose);
+          metrics.timedOut();
+        }
+      }, timeout.getMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start another attempt if the node is still executing after the percentile
+     * of recorded execution times.
+     */
+    private void scheduleSpeculation() {
+      if (node.getSpeculation() <= 0 || history.count(node.getId()) < MIN_SPECULATION_SAMPLES) {
+        return;
+      }
+      long delay = history.percentile(node.getId(), node.getSpeculation());
+      timer().schedule(() -> {
+        if (node.isCommitted() || node.getStatus().isDone()) {
+          return;
+        }
+        Debug.debug(node + " speculate after " + delay + "ms", verbose);
+        metrics.speculated();
+        node.getScheduler().schedule(new Speculation(), 0, TimeUnit.MILLISECONDS);
+      }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A second attempt of the node that take its own rate limiter token and host
+     * semaphore permits, and execute under the lease and the registered execution of
+     * the first attempt, which are released when the node is completed.
+     */
+    private class Speculation implements Runnable {
+      boolean permitted = false;
+      List<HostSemaphore.Permit> permits = new ArrayList<>();
+
+      @Override
+      public void run() {
+        if (node.isCommitted() || node.getStatus().isDone()) {
+          return;
+        }
+        if (!permitted) {
+          permitted = true;
+          long wait = reservePermit();
+          if (wait > 0) {
+            metrics.rateLimited(wait);
+            node.getScheduler().schedule(this, wait, TimeUnit.NANOSECONDS);
+            return;
+          }
+        }
+        try {
+          for (HostSemaphore semaphore : node.getSemaphores()) {
+            HostSemaphore.Permit permit = semaphore.tryAcquire();
+            if (permit == null) {
+              releasePermits();
+              metrics.semaphoreWait();
+              node.getScheduler().schedule(this, SEMAPHORE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+              return;
+            }
+            permits.add(permit);
+          }
+          long started = System.currentTimeMillis();
+          node.execute();
+          if (node.commit()) {
+            metrics.speculationWon();
+            history.record(node.getId(), System.currentTimeMillis() - started);
+            // the node is running until spawned children are done
+            if (!node.awaitChildren(ScheduleTask.this::joined)) {
+              node.getStatus().finished();
+              complete();
+            }
+          }
+        } catch (Throwable e) {
+          // the first attempt decides the outcome of failures
+          Debug.debug(e, verbose);
+        } finally {
+          releasePermits();
+        }
+      }
+
+      private void releasePermits() {
+        permits.forEach(HostSemaphore.Permit::release);
+        permits.clear();
+      }
+    }
+
+    /**
+     * Take a token from the rate limiters once the node is about to execute, so that
+     * nodes waiting for their dependencies do not use up the rate.
+     *
+     * @return true if the node may start, false if the node was rescheduled to start
+     * when the token is available.
+     */
+    private boolean acquirePermit() {
+      if (permitted) {
+        return true;
+      }
+      permitted = true;
+      long wait = reservePermit();
+      if (wait > 0) {
+        // try again when a token is available instead of blocking the thread
+        metrics.rateLimited(wait);
+        node.getScheduler().schedule(this, wait, TimeUnit.NANOSECONDS);
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * @return true if a permit of each host semaphore of the node is held, false if the
+     * node was rescheduled to try again later.
+     */
+    private boolean acquireSemaphores() {
+      if (!permits.isEmpty()) {
+        return true;
+      }
+      for (HostSemaphore semaphore : node.getSemaphores()) {
+        HostSemaphore.Permit permit = semaphore.tryAcquire();
+        if (permit == null) {
+          releaseSemaphores();
+          metrics.semaphoreWait();
+          node.getScheduler().schedule(this, SEMAPHORE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+          return false;
+        }
+        permits.add(permit);
+      }
+      return true;
+    }
+
+    private void releaseSemaphores() {
+      permits.forEach(HostSemaphore.Permit::release);
+      permits.clear();
+    }
+
+    /**
+     * @return true if this process should execute the node, false if another process
+     * executes the node or has published its outcome.
+     */
+    private boolean acquireLease() throws IOException {
+      if (leases == null || leased || node.isBatch()) {
+        return true;
+      }
+      switch (leases.acquire(node)) {
+        case ACQUIRED:
+          leased = true;
+          return true;
+        case LEASED:
+          // check again later, the lease is taken over if the other process crash
+          node.getScheduler().schedule(this, leases.getPollInterval(), TimeUnit.MILLISECONDS);
+          return false;
+        case FINISHED:
+          Debug.debug(node + " finished by another process", verbose);
+          node.getStatus().finished();
+          return false;
+        default:
+          node.getStatus().failed(new RuntimeException(leases.failure(node)));
+          return false;
+      }
+    }
+
+    /**
+     * @return true if this schedule should execute the node, false if the node was attached
+     * to an execution of another schedule.
+     */
+    private boolean registerExecution() {
+      if (registry == null) {
+        return true;
+      }
+      CompletableFuture<Void> execution = new CompletableFuture<>();
+      CompletableFuture<Void> existing = registry.register(node, execution);
+      if (existing == null) {
+        this.execution = execution;
+        return true;
+      }
+      Debug.debug(node + " attached to execution of another schedule", verbose);
+      existing.whenComplete((result, e) -> {
+        if (e == null) {
+          node.getStatus().finished();
+        } else {
+          node.getStatus().failed(e);
+        }
+      });
+      return false;
+    }
+
+    /**
+     * Execute this node together with adjacent nodes of the same task that
+     * are ready to execute.
+     */
+    private void executeBatch() {
+      List<Node> members = claimBatch();
+      List<Node> batch = new ArrayList<>();
+      for (Node member : members) {
+        if (member == node || member.getStatus().running()) {
+          batch.add(member);
+        } else {
+          member.getStatus().abort();
+        }
+      }
+      List<TaskContext> contexts = batch.stream()
+        .map(n -> n.getContext()).collect(Collectors.toList());
+      metrics.taskStarted();
+      node.getCancellation().onCancel(() ->
+        batch.forEach(member -> member.cancel(node.getCancellation().getReason())));
+      scheduleTimeout();
+      try {
+        ((BatchTask) node.getTask()).execute(contexts);
+      } catch (Throwable e) {
+        for (Node member : batch) {
+          if (member == node || member.getCancellation().isCancelled()) {
+            continue;
+          }
+          // give other members a chance to retry on their own
+          if (member.getRetries() > member.getStatus().getRetries() && member.getStatus().retry()) {
+            member.unclaim();
+            ScheduleTask task = new ScheduleTask(member);
+            task.permitted = true;
+            member.getScheduler().schedule(task, 0, TimeUnit.MILLISECONDS);
+          } else {
+            member.getStatus().failed(e);
+          }
+        }
+        throw e;
+      }
+      for (Node member : batch) {
+        if (member != node) {
+          member.getStatus().finished();
+        }
+      }
+    }
+
+    /**
+     * @return this node and adjacent nodes that could be claimed, ordered by time.
+     */
+    private List<Node> claimBatch() {
+      LinkedList<Node> batch = new LinkedList<>();
+      batch.add(node);
+      List<Node> nodes = batches.get(node.getId());
+      // nodes are added and retired while the schedule runs
+      synchronized (nodes) {
+        int idx = nodes.indexOf(node);
+        for (int i = idx + 1; i < nodes.size() && batch.size() < node.getBatchSize(); i++) {
+          Node next = nodes.get(i);
+          if (!batch.getLast().getRange().to().equals(next.getRange().from()) || !claimBatchMember(next)) {
+            break;
+          }
+          batch.addLast(next);
+        }
+        for (int i = idx - 1; i >= 0 && batch.size() < node.getBatchSize(); i--) {
+          Node prev = nodes.get(i);
+          if (!prev.getRange().to().equals(batch.getFirst().getRange().from()) || !claimBatchMember(prev)) {
+            break;
+          }
+          batch.addFirst(prev);
+        }
+      }
+      return batch;
+    }
+
+    private boolean claimBatchMember(Node member) {
+      if (member.getStatus().code() != TaskStatus.TaskStatusCode.SCHEDULED
+        || member.getTimeout().isAfterNow()) {
+        return false;
+      }
+      for (Node dep : member.getDependencies()) {
+        if (dep.isPruned()) {
+          continue;
+        }
+        if (!dep.getStatus().isDone() || dep.getStatus().hasFailed() || !dep.hasOutput()) {
+          return false;
+        }
+      }
+      return (isForced(member) || !member.hasOutput()) && member.claim();
+    }
+
     void schedule() {
       if (node.getStatus().scheduled()) {
         long timeout = node.getTimeout().getMillis() - System.currentTimeMillis();
+        if (timeout <= 0) {
+          // spread out tasks that are past due
+          timeout = jitter();
+        }
         node.getScheduler().schedule(this, timeout, TimeUnit.MILLISECONDS);
       } else {
         node.getStatus().abort();
       }
     }
+
+    /**
+     * @return nanoseconds to wait for a permit from both schedule and task rate limiter.
+     */
+    private long reservePermit() {
+      long wait = rateLimiter != null ? rateLimiter.reserve() : 0;
+      if (node.getRateLimiter() != null) {
+        wait = Math.max(wait, node.getRateLimiter().reserve());
+      }
+      return wait;
+    }
+
+    private long jitter() {
+      long jitter = rateLimiter != null ? rateLimiter.jitter() : 0;
+      if (node.getRateLimiter() != null) {
+        jitter = Math.max(jitter, node.getRateLimiter().jitter());
+      }
+      return jitter;
+    }
   }
 
   public static class JobScheduleBuilder {
     private PipelineContext pipelineContext;
     private TimeRange timeRange;
-    private List<Map<String, List<Node>>> tasks = new ArrayList<>();
+    private final List<TaskDefinition> definitions = new ArrayList<>();
     private Scheduler defaultScheduler;
+    private RateLimiter rateLimiter;
+    private ExecutionRegistry registry;
+    private LeaseCoordinator leases;
+    private RuntimeHistory history;
+    private int preflight;
+    private boolean prune;
+    private String forceRerun;
+    private CoverageIndex coverage;
     private JobObserver observer;
     private String targetTaskId;
     private String[] args;
     private boolean verbose;
-    private final int scheduleId = ThreadLocalRandom.current().nextInt();
 
     private JobScheduleBuilder(String timeFormat) {
       this(new TimeRange(timeFormat));
@@ -268,20 +1173,21 @@ public class JobSchedule {
 
     private JobScheduleBuilder(TimeRange range) {
       this.timeRange = range;
-      for (int i = 0; i < timeRange.intervalsBetween(); i++) {
-        tasks.add(new HashMap<>());
-      }
     }
 
     public JobScheduleBuilder(PipelineContext context) {
       this.pipelineContext = context;
       this.timeRange = context.range;
-      for (int i = 0; i < timeRange.intervalsBetween(); i++) {
-        tasks.add(new HashMap<>());
-      }
       this.args = context.args;
       this.targetTaskId = context.targetTaskId;
       this.verbose = context.verbose;
+      this.leases = context.leases;
+      this.defaultScheduler = context.scheduler;
+      this.registry = context.registry;
+      this.history = context.history;
+      this.prune = context.prune;
+      this.forceRerun = context.forceRerun;
+      this.coverage = context.coverage;
     }
 
     /**
@@ -333,14 +1239,153 @@ public class JobSchedule {
       return this;
     }
 
+    /**
+     * @param rateLimiter limits how fast tasks in this schedule are started.
+     */
+    public JobScheduleBuilder rateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    /**
+     * @param registry deduplicates execution of tasks with same id and time range
+     *                 between schedules that share the registry.
+     */
+    public JobScheduleBuilder executionRegistry(ExecutionRegistry registry) {
+      this.registry = registry;
+      return this;
+    }
+
+    /**
+     * @param leases coordinate execution of this schedule with other processes that
+     *               execute the same schedule.
+     */
+    public JobScheduleBuilder leaseCoordinator(LeaseCoordinator leases) {
+      this.leases = leases;
+      return this;
+    }
+
+    /**
+     * @param history execution times of tasks, used for speculative execution.
+     */
+    public JobScheduleBuilder runtimeHistory(RuntimeHistory history) {
+      this.history = history;
+      return this;
+    }
+
+    /**
+     * Check outputs of all tasks, a number at the same time, before tasks are scheduled.
+     * Tasks that have output are skipped right away, instead of when their dependencies are done.
+     *
+     * @param parallelism number of outputs checked at the same time.
+     */
+    public JobScheduleBuilder preflight(int parallelism) {
+      if (parallelism < 1) {
+        throw new IllegalArgumentException("parallelism must be at least 1 " + parallelism);
+      }
+      this.preflight = parallelism;
+      return this;
+    }
+
+    /**
+     * @param coverage records time slots where tasks are finished or skipped.
+     */
+    public JobScheduleBuilder coverageIndex(CoverageIndex coverage) {
+      this.coverage = coverage;
+      return this;
+    }
+
+    /**
+     * Check outputs from the targets towards their dependencies and do not schedule
+     * tasks that only feed tasks that have output. A rerun of a range that is mostly
+     * done then only checks and executes the tasks that are missing.
+     */
+    public JobScheduleBuilder prune() {
+      this.prune = true;
+      return this;
+    }
+
+    /**
+     * @param taskIdRegex execute tasks that match, even if they have output. Their dependencies
+     *                    are not pruned.
+     */
+    public JobScheduleBuilder forceRerun(String taskIdRegex) {
+      this.forceRerun = taskIdRegex;
+      return this;
+    }
+
+    /**
+     * Executes the schedule, or plans it if the pipeline context is in plan mode.
+     */
     public JobSchedule execute() {
-      JobSchedule jobSchedule = new JobSchedule(this);
-      jobSchedule.execute(targetTaskId);
-      return jobSchedule;
+      if (pipelineContext != null && pipelineContext.planOnly) {
+        pipelineContext.plan = plan();
+        return new JobSchedule(template(), timeRange, pipelineContext);
+      }
+      return JobSchedule.start(template(), timeRange, pipelineContext);
+    }
+
+    /**
+     * Check what the schedule would do without executing any task.
+     */
+    public SchedulePlan plan() {
+      return plan(DEFAULT_PREFLIGHT);
+    }
+
+    /**
+     * Check what the schedule would do without executing any task.
+     *
+     * @param parallelism number of outputs checked at the same time.
+     */
+    public SchedulePlan plan(int parallelism) {
+      return template().plan(timeRange, parallelism);
+    }
+
+    /**
+     * @return the tasks added so far, which can be executed for any time range.
+     */
+    public ScheduleTemplate template() {
+      JobObserver observer = this.observer;
+      if (coverage != null) {
+        observer = observer == null ? coverage : new ObserverChain(observer, coverage);
+      }
+      return new ScheduleTemplate(definitions.toArray(new TaskDefinition[definitions.size()]),
+        rateLimiter, registry, leases, history, observer, targetTaskId, args, verbose, preflight,
+        prune, forceRerun == null ? null : Pattern.compile(forceRerun));
     }
   }
 
 
+  /**
+   * Notifies a second observer of transitions that the first observer accepts.
+   */
+  private static final class ObserverChain implements JobObserver {
+    private final JobObserver first;
+    private final JobObserver second;
+
+    private ObserverChain(JobObserver first, JobObserver second) {
+      this.first = first;
+      this.second = second;
+    }
+
+    @Override
+    public boolean notify(TaskStatus status) {
+      return first.notify(status) && second.notify(status);
+    }
+
+    @Override
+    public void slaAtRisk(TaskStatus status) {
+      first.slaAtRisk(status);
+      second.slaAtRisk(status);
+    }
+
+    @Override
+    public void slaMissed(TaskStatus status) {
+      first.slaMissed(status);
+      second.slaMissed(status);
+    }
+  }
+
   public static class TaskBuilder {
     private final Task task;
     private String id;
@@ -349,6 +1394,15 @@ public class JobSchedule {
     private Scheduler scheduler;
     private JobScheduleBuilder jobScheduleBuilder;
     private int retries = -1;
+    private int batchSize = 1;
+    private Duration deadline;
+    private Duration atRisk;
+    private double speculation = 0;
+    private Duration timeout;
+    private RateLimiter rateLimiter;
+    private List<HostSemaphore> semaphores = new ArrayList<>();
+    private int shards = 1;
+    private Task merge;
 
     private TaskBuilder(Task task, JobScheduleBuilder jobScheduleBuilder) {
       this.task = task;
@@ -420,6 +1474,122 @@ public class JobSchedule {
       return this;
     }
 
+    /**
+     * Only used by tasks that implement {@link org.deephacks.jobpipe.BatchTask}.
+     *
+     * @param batchSize maximum number of adjacent time ranges executed together.
+     */
+    public TaskBuilder batchSize(int batchSize) {
+      if (batchSize < 1) {
+        throw new IllegalArgumentException("batchSize must be at least 1 " + batchSize);
+      }
+      this.batchSize = batchSize;
+      return this;
+    }
+
+    /**
+     * Observers are notified when the task is at risk of missing its deadline, a quarter
+     * of the deadline before it is due, and when the deadline is missed. Tasks that this
+     * task depend on inherit the deadline, which is used by
+     * {@link org.deephacks.jobpipe.DeadlineScheduler} to run tasks with earliest deadline first.
+     *
+     * @param afterRangeEnd time after the end of the time range that the task should be finished.
+     */
+    public TaskBuilder deadline(Duration afterRangeEnd) {
+      return deadline(afterRangeEnd, new Duration(afterRangeEnd.getMillis() / 4));
+    }
+
+    /**
+     * @param afterRangeEnd time after the end of the time range that the task should be finished.
+     * @param atRisk time before the deadline when the task is at risk of missing the deadline.
+     */
+    public TaskBuilder deadline(Duration afterRangeEnd, Duration atRisk) {
+      this.deadline = afterRangeEnd;
+      this.atRisk = atRisk;
+      return this;
+    }
+
+    /**
+     * Start a second attempt of the task when it executes longer than a percentile of
+     * the recorded execution times of the task, where the first attempt to finish wins
+     * and the other attempt is interrupted. The second attempt take its own rate limiter
+     * token and host semaphore permits and the task is done when the children of the
+     * winning attempt are done.
+     * <p>
+     * Both attempts execute at the same time, so only use for idempotent tasks that
+     * write output of each attempt to a location of its own and publish it atomically,
+     * like a committed {@link MappedFileOutput.Writer}.
+     *
+     * @param percentile between 0 and 1, like 0.95.
+     */
+    public TaskBuilder speculative(double percentile) {
+      if (percentile <= 0 || percentile > 1) {
+        throw new IllegalArgumentException("percentile must be between 0 and 1 " + percentile);
+      }
+      this.speculation = percentile;
+      return this;
+    }
+
+    /**
+     * Cancel the task if an attempt executes longer than the timeout. The task
+     * get status {@link TaskStatus.TaskStatusCode#ERROR_SIGTERM} and is not retried.
+     *
+     * @param timeout maximum execution time of each attempt.
+     */
+    public TaskBuilder timeout(Duration timeout) {
+      this.timeout = timeout;
+      return this;
+    }
+
+    /**
+     * @param rateLimiter limits how fast this task is started, in addition to
+     *                    the rate limiter of the schedule.
+     */
+    public TaskBuilder rateLimiter(RateLimiter rateLimiter) {
+      this.rateLimiter = rateLimiter;
+      return this;
+    }
+
+    /**
+     * Hold a permit of each semaphore while the task executes, which limits the number
+     * of tasks that execute at the same time across all processes on the host.
+     *
+     * @param semaphores semaphores shared with other tasks and processes.
+     */
+    public TaskBuilder semaphores(HostSemaphore... semaphores) {
+      this.semaphores.addAll(Arrays.asList(semaphores));
+      return this;
+    }
+
+    /**
+     * Execute the task as shards that execute in parallel for the same time range, each
+     * with its own output and with {@link TaskContext#getShard()} telling which part of
+     * the input it owns. Shards have the id of the task followed by '#' and the index of
+     * the shard. Tasks that depend on the task wait for a merge of all shards, so after a
+     * partial failure only shards without output execute again.
+     *
+     * @param shards number of shards.
+     */
+    public TaskBuilder shards(int shards) {
+      if (shards < 1) {
+        throw new IllegalArgumentException("shards must be at least 1 " + shards);
+      }
+      this.shards = shards;
+      return this;
+    }
+
+    /**
+     * Only used with {@link #shards(int)}. Without a merge task, the merge has output when
+     * every shard has output.
+     *
+     * @param merge executes when all shards are done, with the outputs of the shards
+     *              available from {@link TaskContext#getShardOutputs()}.
+     */
+    public TaskBuilder merge(Task merge) {
+      this.merge = merge;
+      return this;
+    }
+
     /**
      * Adds this task to the schedule.
      */
@@ -442,34 +1612,41 @@ public class JobSchedule {
       if (timeRangeType == null) {
         throw new IllegalArgumentException(id + " does not have a time range.");
       }
-      TimeRange currentRange = jobScheduleBuilder.timeRange.interval();
-      for (int i = 0; i < jobScheduleBuilder.timeRange.intervalsBetween(); i++) {
-        Map<String, List<Node>> tasks = jobScheduleBuilder.tasks.get(i);
-        for (TimeRange range : timeRangeType.ranges(currentRange)) {
-          Scheduler scheduler = Optional.ofNullable(this.scheduler)
-            .orElseGet(() -> jobScheduleBuilder.defaultScheduler = Optional.ofNullable(jobScheduleBuilder.defaultScheduler)
-              .orElseGet(() -> new DefaultScheduler()));
-          Node node = new Node(id, jobScheduleBuilder.scheduleId, task, range,
-            scheduler, jobScheduleBuilder.args, jobScheduleBuilder.observer,
-            jobScheduleBuilder.verbose, retries);
-          for (String dep : deps) {
-            List<Node> nodes = tasks.get(dep);
-            if (nodes == null) {
-              throw new IllegalArgumentException("Dependency does not exist " + dep);
-            }
-            for (Node n : nodes) {
-              node.addDependencies(n);
-            }
-          }
-
-          List<Node> nodes = tasks.computeIfAbsent(id, key -> new ArrayList<>());
-          if (nodes.contains(node)) {
-            throw new IllegalArgumentException(node.getTask() + " already exist");
-          }
-          nodes.add(node);
+      List<TaskDefinition> definitions = jobScheduleBuilder.definitions;
+      int[][] depIndexes = new int[deps.size()][];
+      for (int i = 0; i < deps.size(); i++) {
+        String dep = deps.get(i);
+        depIndexes[i] = IntStream.range(0, definitions.size())
+          .filter(index -> definitions.get(index).id.equals(dep)).toArray();
+        if (depIndexes[i].length == 0) {
+          throw new IllegalArgumentException("Dependency does not exist " + dep);
+        }
+      }
+      for (TaskDefinition definition : definitions) {
+        if (definition.id.equals(id) && definition.timeRangeType == timeRangeType) {
+          throw new IllegalArgumentException(task + " already exist");
         }
-        currentRange = currentRange.next();
       }
+      Scheduler scheduler = Optional.ofNullable(this.scheduler)
+        .orElseGet(() -> jobScheduleBuilder.defaultScheduler = Optional.ofNullable(jobScheduleBuilder.defaultScheduler)
+          .orElseGet(() -> new DefaultScheduler()));
+      List<HostSemaphore> semaphores = Collections.unmodifiableList(new ArrayList<>(this.semaphores));
+      if (shards == 1) {
+        definitions.add(new TaskDefinition(id, task, timeRangeType, scheduler, depIndexes, retries,
+          rateLimiter, batchSize, deadline, atRisk, speculation, timeout, semaphores, 0, 1));
+        return jobScheduleBuilder;
+      }
+      int[][] shardIndexes = new int[shards][];
+      for (int shard = 0; shard < shards; shard++) {
+        shardIndexes[shard] = new int[]{definitions.size()};
+        definitions.add(new TaskDefinition(TaskDefinition.shardId(id, shard), task, timeRangeType, scheduler,
+          depIndexes, retries, rateLimiter, batchSize, deadline, atRisk, speculation, timeout, semaphores,
+          shard, shards));
+      }
+      // the merge has the id of the task, so that dependencies on the task wait for all shards
+      definitions.add(new TaskDefinition(id, merge == null ? new ShardMerge() : merge, timeRangeType,
+        scheduler, shardIndexes, retries, null, 1, deadline, atRisk, 0, timeout, Collections.emptyList(),
+        0, shards));
       return jobScheduleBuilder;
     }
   }
@@ -0,0 +1,356 @@
+package org.deephacks.jobpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lets several processes execute the same schedule cooperatively through a directory
+ * on storage shared between them, like NFS.
+ *
+ * A process must hold the lease of a task before executing it. Leases are files that
+ * are created exclusively and kept alive by touching them periodically. Leases that
+ * have not been touched within the time to live belong to a process that crashed and
+ * are taken over by another process. The outcome of tasks is published as marker
+ * files, so that processes that did not execute a task learn if it finished or failed.
+ *
+ * Markers belong to a run. Processes that execute the same run cooperatively should
+ * give the same run id. Without a run id, markers written before the coordinator was
+ * created, minus the time to live, belong to an earlier run. Markers of earlier runs
+ * are ignored and replaced, so a task that failed in an earlier run executes again.
+ * A finished marker is only trusted while the task has output.
+ *
+ * Expiry compares the modification time of lease files with the local clock, so clocks
+ * of the processes must be roughly in sync relative to the time to live.
+ *
+ * <pre>
+ * LeaseCoordinator leases = new LeaseCoordinator(new File("/mnt/shared/leases/pipeline"));
+ * JobSchedule.newSchedule("2016-01").leaseCoordinator(leases) ...
+ * </pre>
+ */
+public class LeaseCoordinator {
+  /** serialize take overs between coordinators of the same JVM, since file locks are per JVM */
+  private static final Object TAKE_OVER = new Object();
+  private final Path dir;
+  private final long ttlMillis;
+  private final String owner;
+  /** run that markers must belong to, or null to compare with the creation time */
+  private final String run;
+  private final long created = System.currentTimeMillis();
+  /** by identity since schedules sharing this coordinator have equal nodes */
+  private final Map<Node, Path> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+  private ScheduledThreadPoolExecutor heartbeat;
+
+  public LeaseCoordinator(File dir) {
+    this(dir, 30, TimeUnit.SECONDS);
+  }
+
+  /**
+   * @param dir directory shared by all processes that execute the schedule.
+   * @param ttl time after which a lease that is not touched expires.
+   */
+  public LeaseCoordinator(File dir, long ttl, TimeUnit unit) {
+    this(dir, null, ttl, unit);
+  }
+
+  /**
+   * @param dir directory shared by all processes that execute the schedule.
+   * @param run id shared by the processes that execute the same run, like the
+   *            scheduled time of a cron job.
+   * @param ttl time after which a lease that is not touched expires.
+   */
+  public LeaseCoordinator(File dir, String run, long ttl, TimeUnit unit) {
+    if (run != null && run.contains("\n")) {
+      throw new IllegalArgumentException("run must be a single line " + run);
+    }
+    this.run = run;
+    this.dir = dir.toPath();
+    this.ttlMillis = unit.toMillis(ttl);
+    this.owner = ManagementFactory.getRuntimeMXBean().getName() + "/" + UUID.randomUUID();
+    try {
+      Files.createDirectories(this.dir);
+    } catch (IOException e) {
+      throw new RuntimeException("could not create lease directory " + dir, e);
+    }
+  }
+
+  /**
+   * @return unique identity of this coordinator, written in the leases it holds.
+   */
+  public String getOwner() {
+    return owner;
+  }
+
+  /**
+   * @return number of leases held by this coordinator.
+   */
+  public int getLeases() {
+    return leases.size();
+  }
+
+  /**
+   * Stop touching leases. Leases that are still held expire after the time to live.
+   */
+  public synchronized void shutdown() {
+    if (heartbeat != null) {
+      heartbeat.shutdownNow();
+    }
+  }
+
+  /**
+   * @return how often processes should check a lease held by another process.
+   */
+  long getPollInterval() {
+    return Math.max(1, ttlMillis / 3);
+  }
+
+  /**
+   * Try to acquire the lease of a node.
+   */
+  State acquire(Node node) throws IOException {
+    if (leases.containsKey(node)) {
+      return State.ACQUIRED;
+    }
+    State published = published(node);
+    if (published != null) {
+      return published;
+    }
+    Path lease = file(node, "lease");
+    if (!create(lease) && !takeOver(lease, node.getStatus().isVerbose())) {
+      return State.LEASED;
+    }
+    // the owner may have published and released between the checks above
+    published = published(node);
+    if (published != null) {
+      Files.deleteIfExists(lease);
+      return published;
+    }
+    // markers of earlier runs, replaced when this run publishes
+    Files.deleteIfExists(file(node, "failed"));
+    Files.deleteIfExists(file(node, "done"));
+    leases.put(node, lease);
+    startHeartbeat();
+    return State.ACQUIRED;
+  }
+
+  /**
+   * Check the state of a node without acquiring its lease.
+   *
+   * @return null if the node can be acquired.
+   */
+  State peek(Node node) throws IOException {
+    if (leases.containsKey(node)) {
+      return State.ACQUIRED;
+    }
+    State published = published(node);
+    if (published != null) {
+      return published;
+    }
+    Path lease = file(node, "lease");
+    return Files.exists(lease) && !isExpired(lease) ? State.LEASED : null;
+  }
+
+  /**
+   * Publish the outcome of a node that is done and release its lease.
+   */
+  void release(Node node) {
+    Path lease = leases.remove(node);
+    if (lease == null) {
+      return;
+    }
+    TaskStatus status = node.getStatus();
+    try {
+      String marker = run == null ? "" : run;
+      if (status.hasFailed()) {
+        String reason = status.getFailReason().map(Throwable::toString).orElse(status.code().name());
+        write(file(node, "failed"), marker + "\n" + reason);
+      } else {
+        write(file(node, "done"), marker + "\n" + status.code().name());
+      }
+      if (owner.equals(read(lease))) {
+        Files.deleteIfExists(lease);
+      }
+    } catch (IOException e) {
+      Debug.debug("failed releasing " + lease + " " + e.getMessage(), status.isVerbose());
+    }
+  }
+
+  /**
+   * @return why a node failed in the process that executed it.
+   */
+  String failure(Node node) {
+    try {
+      String marker = read(file(node, "failed"));
+      return marker.substring(marker.indexOf('\n') + 1);
+    } catch (IOException e) {
+      return node + " failed in another process";
+    }
+  }
+
+  /**
+   * @return the outcome published in this run, or null if none.
+   */
+  private State published(Node node) throws IOException {
+    if (isCurrent(file(node, "failed"))) {
+      return State.FAILED;
+    } else if (isCurrent(file(node, "done")) && node.hasOutput()) {
+      return State.FINISHED;
+    }
+    return null;
+  }
+
+  /**
+   * @return true if the marker exists and belongs to this run.
+   */
+  private boolean isCurrent(Path marker) throws IOException {
+    try {
+      if (run == null) {
+        return Files.getLastModifiedTime(marker).toMillis() >= created - ttlMillis;
+      }
+      String content = read(marker);
+      int end = content.indexOf('\n');
+      return run.equals(end < 0 ? content : content.substring(0, end));
+    } catch (NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  private boolean create(Path lease) throws IOException {
+    try {
+      Files.write(lease, owner.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE_NEW);
+      return true;
+    } catch (FileAlreadyExistsException e) {
+      return false;
+    }
+  }
+
+  /**
+   * Take over an expired lease. Expiry is checked again while holding a lock on the
+   * directory so that only one process delete the expired lease.
+   */
+  private boolean takeOver(Path lease, boolean verbose) throws IOException {
+    if (!isExpired(lease)) {
+      return false;
+    }
+    synchronized (TAKE_OVER) {
+      try (RandomAccessFile file = new RandomAccessFile(dir.resolve(".lock").toFile(), "rw");
+           FileChannel channel = file.getChannel()) {
+        FileLock lock = channel.lock();
+        try {
+          if (!isExpired(lease)) {
+            return false;
+          }
+          Debug.debug("take over expired lease " + lease + " from " + read(lease), verbose);
+          Files.deleteIfExists(lease);
+          return create(lease);
+        } finally {
+          lock.release();
+        }
+      }
+    }
+  }
+
+  private boolean isExpired(Path lease) throws IOException {
+    try {
+      return System.currentTimeMillis() - Files.getLastModifiedTime(lease).toMillis() > ttlMillis;
+    } catch (NoSuchFileException e) {
+      // released, try again later
+      return false;
+    }
+  }
+
+  private synchronized void startHeartbeat() {
+    if (heartbeat == null) {
+      heartbeat = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, "lease-heartbeat");
+        thread.setDaemon(true);
+        return thread;
+      });
+      long interval = getPollInterval();
+      heartbeat.scheduleWithFixedDelay(this::touch, interval, interval, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Touch held leases, release leases of nodes that are done and cancel nodes
+   * whose lease was taken over by another process.
+   */
+  private void touch() {
+    List<Map.Entry<Node, Path>> held;
+    synchronized (leases) {
+      held = new ArrayList<>(leases.entrySet());
+    }
+    for (Map.Entry<Node, Path> entry : held) {
+      Node node = entry.getKey();
+      Path lease = entry.getValue();
+      if (node.getStatus().isDone()) {
+        release(node);
+        continue;
+      }
+      try {
+        if (!owner.equals(read(lease))) {
+          throw new IOException("owned by another process");
+        }
+        lease.toFile().setLastModified(System.currentTimeMillis());
+      } catch (IOException e) {
+        leases.remove(node);
+        node.cancel("lost lease " + lease + " " + e.getMessage());
+      }
+    }
+  }
+
+  private Path file(Node node, String suffix) {
+    return dir.resolve(name(node.getId(), node.getRange()) + "." + suffix);
+  }
+
+  /**
+   * @return file name of a task, where the hash keeps ids that only differ in
+   * characters that are replaced apart.
+   */
+  static String name(String id, TimeRange range) {
+    String name = id + "-" + range.format();
+    return name.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(name.hashCode());
+  }
+
+  private static String read(Path path) throws IOException {
+    return new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Write the whole file or nothing, so that readers never see partial content.
+   */
+  private void write(Path path, String content) throws IOException {
+    Path tmp = path.resolveSibling(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+    Files.write(tmp, content.getBytes(StandardCharsets.UTF_8));
+    Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  enum State {
+    /** this process holds the lease and should execute the node */
+    ACQUIRED,
+    /** another process holds the lease */
+    LEASED,
+    /** another process has finished the node */
+    FINISHED,
+    /** another process has failed the node */
+    FAILED
+  }
+}
@@ -0,0 +1,333 @@
+package org.deephacks.jobpipe;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+/**
+ * Output of records in a memory-mapped file, for large local intermediates that are
+ * written and read without copying through streams. Records are of fixed length, or of
+ * variable length with a length prefix. A writer maps the file in segments that grow
+ * as records are appended and makes the file visible atomically on commit, so readers
+ * never see a partial file.
+ *
+ * <pre>
+ * MappedFileOutput output = getOutput(ctx);
+ * try (MappedFileOutput.Writer writer = output.openWriter()) {
+ *   for (Event event : events) {
+ *     writer.append(event.toBytes());
+ *   }
+ *   writer.commit();
+ * }
+ *
+ * for (ByteBuffer record : input.records()) {
+ *   ...
+ * }
+ * </pre>
+ */
+public final class MappedFileOutput implements TaskOutput {
+  private static final int MAGIC = 0x4a504d46;
+  /** magic, record size or 0 if variable, number of records */
+  private static final int HEADER = 16;
+  private static final int DEFAULT_SEGMENT = 64 * 1024 * 1024;
+  private final Path path;
+  private final int segmentSize;
+
+  public MappedFileOutput(String path) {
+    this(Paths.get(path));
+  }
+
+  public MappedFileOutput(Path path) {
+    this(path, DEFAULT_SEGMENT);
+  }
+
+  /**
+   * @param segmentSize bytes mapped at a time.
+   */
+  MappedFileOutput(Path path, int segmentSize) {
+    this.path = path;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * @return a writer of records of variable length.
+   */
+  public Writer openWriter() {
+    return openWriter(0);
+  }
+
+  /**
+   * @param recordSize length of every record, or 0 for records of variable length.
+   */
+  public Writer openWriter(int recordSize) {
+    if (recordSize < 0) {
+      throw new IllegalArgumentException("recordSize must not be negative " + recordSize);
+    }
+    try {
+      return new Writer(recordSize);
+    } catch (IOException e) {
+      throw new RuntimeException("could not open writer of " + path, e);
+    }
+  }
+
+  /**
+   * @return records of the committed file, each a read-only view of the mapped file.
+   */
+  public Iterable<ByteBuffer> records() {
+    return () -> {
+      try {
+        return new RecordIterator();
+      } catch (IOException e) {
+        throw new RuntimeException("could not read " + path, e);
+      }
+    };
+  }
+
+  /**
+   * @return number of records of the committed file.
+   */
+  public long size() {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      return header(channel).getLong(8);
+    } catch (IOException e) {
+      throw new RuntimeException("could not read " + path, e);
+    }
+  }
+
+  /**
+   * @return a record of fixed length by index, a read-only view of the mapped file.
+   */
+  public ByteBuffer get(long index) {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      ByteBuffer header = header(channel);
+      int recordSize = header.getInt(4);
+      if (recordSize == 0) {
+        throw new IllegalStateException("Records of " + path + " have variable length");
+      }
+      if (index < 0 || index >= header.getLong(8)) {
+        throw new IndexOutOfBoundsException(index + " of " + header.getLong(8));
+      }
+      return channel.map(FileChannel.MapMode.READ_ONLY, HEADER + index * recordSize, recordSize);
+    } catch (IOException e) {
+      throw new RuntimeException("could not read " + path, e);
+    }
+  }
+
+  private ByteBuffer header(FileChannel channel) throws IOException {
+    ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER);
+    if (header.getInt(0) != MAGIC) {
+      throw new IOException(path + " is not a mapped file output");
+    }
+    return header;
+  }
+
+  @Override
+  public boolean exist() {
+    return Files.exists(path);
+  }
+
+  @Override
+  public Object get() {
+    return path.toFile();
+  }
+
+  @Override
+  public String toString() {
+    return "MappedFileOutput{" +
+      "path=" + path +
+      '}';
+  }
+
+  /**
+   * Appends records to a temporary file that replaces the output on commit.
+   * Closing a writer that has not committed deletes the temporary file.
+   */
+  public final class Writer implements Closeable {
+    private final int recordSize;
+    private final Path tmp;
+    private final FileChannel channel;
+    /** mapped segment that starts at offset */
+    private MappedByteBuffer segment;
+    private long offset;
+    private long position = HEADER;
+    private long count;
+    private boolean closed;
+
+    private Writer(int recordSize) throws IOException {
+      this.recordSize = recordSize;
+      Path dir = path.toAbsolutePath().getParent();
+      Files.createDirectories(dir);
+      this.tmp = dir.resolve(path.getFileName() + "." + UUID.randomUUID() + ".tmp");
+      this.channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Append the remaining bytes of the buffer as a record.
+     */
+    public Writer append(ByteBuffer record) {
+      int length = record.remaining();
+      if (recordSize > 0 && length != recordSize) {
+        throw new IllegalArgumentException("Record of " + length + " bytes, expected " + recordSize);
+      }
+      int prefix = recordSize > 0 ? 0 : 4;
+      ByteBuffer target = reserve(prefix + length);
+      if (prefix > 0) {
+        target.putInt(length);
+      }
+      target.put(record.duplicate());
+      count++;
+      return this;
+    }
+
+    public Writer append(byte[] record) {
+      return append(ByteBuffer.wrap(record));
+    }
+
+    /**
+     * @return the mapped segment positioned where the bytes should be written.
+     */
+    private ByteBuffer reserve(int bytes) {
+      if (closed) {
+        throw new IllegalStateException("Writer of " + path + " is closed");
+      }
+      if (segment == null || position + bytes > offset + segment.capacity()) {
+        try {
+          offset = position;
+          segment = channel.map(FileChannel.MapMode.READ_WRITE, offset, Math.max(segmentSize, bytes));
+        } catch (IOException e) {
+          throw new RuntimeException("could not map " + tmp, e);
+        }
+      }
+      // call through Buffer, the overrides of JDK 9+ do not exist in java 8
+      ((Buffer) segment).position((int) (position - offset));
+      position += bytes;
+      return segment;
+    }
+
+    /**
+     * @return number of records appended.
+     */
+    public long getCount() {
+      return count;
+    }
+
+    /**
+     * Flush records to disk and replace the output with them atomically.
+     */
+    public void commit() {
+      if (closed) {
+        throw new IllegalStateException("Writer of " + path + " is closed");
+      }
+      try {
+        if (segment != null) {
+          segment.force();
+          segment = null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        ((Buffer) header.putInt(MAGIC).putInt(recordSize).putLong(count)).flip();
+        channel.write(header, 0);
+        channel.truncate(position);
+        channel.force(true);
+        channel.close();
+        closed = true;
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        throw new RuntimeException("could not commit " + path, e);
+      }
+    }
+
+    @Override
+    public void close() {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      segment = null;
+      try {
+        channel.close();
+        Files.deleteIfExists(tmp);
+      } catch (IOException e) {
+        throw new RuntimeException("could not delete " + tmp, e);
+      }
+    }
+  }
+
+  /**
+   * Maps the file a segment at a time and returns records as slices of the segment,
+   * mapping a segment that starts at a record when the record does not fit.
+   */
+  private final class RecordIterator implements Iterator<ByteBuffer> {
+    private final long fileSize;
+    private final int recordSize;
+    private final long count;
+    /** mapped segment that starts at offset */
+    private MappedByteBuffer segment;
+    private long offset;
+    private long position = HEADER;
+    private long read;
+
+    private RecordIterator() throws IOException {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        this.fileSize = channel.size();
+        ByteBuffer header = header(channel);
+        this.recordSize = header.getInt(4);
+        this.count = header.getLong(8);
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return read < count;
+    }
+
+    @Override
+    public ByteBuffer next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      int length = recordSize;
+      int prefix = 0;
+      if (length == 0) {
+        ensure(4);
+        length = segment.getInt((int) (position - offset));
+        prefix = 4;
+      }
+      ensure(prefix + length);
+      int start = (int) (position - offset) + prefix;
+      ByteBuffer record = segment.duplicate();
+      ((Buffer) record).position(start).limit(start + length);
+      position += prefix + length;
+      read++;
+      return record.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Map a segment that starts at the position if the bytes are not mapped.
+     * A mapping stays valid after its channel is closed.
+     */
+    private void ensure(int bytes) {
+      if (segment != null && position + bytes <= offset + segment.capacity()) {
+        return;
+      }
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        segment = channel.map(FileChannel.MapMode.READ_ONLY, position,
+          Math.min(fileSize - position, Math.max(segmentSize, bytes)));
+        offset = position;
+      } catch (IOException e) {
+        throw new RuntimeException("could not map " + path, e);
+      }
+    }
+  }
+}
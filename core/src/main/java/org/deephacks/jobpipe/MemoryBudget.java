@@ -0,0 +1,233 @@
+package org.deephacks.jobpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Memory shared by {@link MemoryTaskOutput} of tasks that execute in the same JVM.
+ * When outputs need more memory than the budget, the least recently used outputs are
+ * spilled to files and read back as read-only mapped buffers.
+ *
+ * <pre>
+ * static final MemoryBudget BUDGET = new MemoryBudget(512 * 1024 * 1024, new File("/tmp/spill"), true);
+ *
+ * public MemoryTaskOutput getOutput(TaskContext ctx) {
+ *   return BUDGET.getOutput(ctx);
+ * }
+ * </pre>
+ */
+public final class MemoryBudget {
+  private final long capacity;
+  private final Path spillDir;
+  private final boolean direct;
+  /**
+   * content of outputs that have been written or are read by scheduled tasks, in least
+   * recently used order
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private long used;
+  private long spills;
+
+  /**
+   * @param capacity bytes of memory that outputs may hold.
+   * @param spillDir directory of spilled outputs.
+   * @param direct true to keep outputs off-heap in direct buffers.
+   */
+  public MemoryBudget(long capacity, File spillDir, boolean direct) {
+    if (capacity < 0) {
+      throw new IllegalArgumentException("capacity must not be negative " + capacity);
+    }
+    this.capacity = capacity;
+    this.spillDir = spillDir.toPath();
+    this.direct = direct;
+  }
+
+  /**
+   * @return output of the task for its time range. The budget keeps nothing for outputs
+   * that are only looked up, like when checking if they exist.
+   */
+  public MemoryTaskOutput getOutput(TaskContext context) {
+    return new MemoryTaskOutput(this, context.getId() + "-" + context.getTimeRange().format());
+  }
+
+  /**
+   * Copy content into memory, spilling other outputs if needed, or straight to a file
+   * if the content is larger than the budget.
+   */
+  synchronized void write(MemoryTaskOutput output, ByteBuffer content) {
+    Entry entry = entries.computeIfAbsent(output.key, Entry::new);
+    free(entry);
+    int size = content.remaining();
+    if (size > capacity) {
+      entry.spilled = spill(entry.key, content.duplicate());
+      spills++;
+      return;
+    }
+    List<Entry> victims = new ArrayList<>();
+    for (Iterator<Entry> it = entries.values().iterator(); it.hasNext() && used + size > capacity; ) {
+      Entry victim = it.next();
+      if (victim != entry && victim.buffer != null) {
+        victims.add(victim);
+        used -= victim.buffer.capacity();
+      }
+    }
+    for (Entry victim : victims) {
+      victim.spilled = spill(victim.key, victim.buffer.duplicate());
+      victim.buffer = null;
+      spills++;
+    }
+    ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+    buffer.put(content.duplicate());
+    // call through Buffer, the override of JDK 9+ does not exist in java 8
+    ((Buffer) buffer).flip();
+    entry.buffer = buffer;
+    used += size;
+  }
+
+  /**
+   * @return a read-only view of the content, or null if there is none.
+   */
+  synchronized ByteBuffer read(MemoryTaskOutput output) {
+    // also marks the entry as recently used
+    Entry entry = entries.get(output.key);
+    if (entry == null) {
+      return null;
+    }
+    if (entry.buffer != null) {
+      return entry.buffer.asReadOnlyBuffer();
+    }
+    if (entry.spilled == null) {
+      return null;
+    }
+    try (FileChannel channel = FileChannel.open(entry.spilled, StandardOpenOption.READ)) {
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    } catch (IOException e) {
+      throw new RuntimeException("could not read spilled output " + entry.spilled, e);
+    }
+  }
+
+  synchronized boolean exist(MemoryTaskOutput output) {
+    Entry entry = entries.get(output.key);
+    return entry != null
+      && (entry.buffer != null || (entry.spilled != null && Files.exists(entry.spilled)));
+  }
+
+  synchronized boolean isSpilled(MemoryTaskOutput output) {
+    Entry entry = entries.get(output.key);
+    return entry != null && entry.buffer == null && entry.spilled != null;
+  }
+
+  synchronized void retain(MemoryTaskOutput output) {
+    entries.computeIfAbsent(output.key, Entry::new).readers++;
+  }
+
+  /**
+   * Drop the content from memory and disk when no task reads the output.
+   */
+  synchronized void release(MemoryTaskOutput output) {
+    Entry entry = entries.get(output.key);
+    if (entry == null || (entry.readers > 0 && --entry.readers > 0)) {
+      return;
+    }
+    free(entry);
+    entries.remove(entry.key);
+  }
+
+  private void free(Entry entry) {
+    if (entry.buffer != null) {
+      used -= entry.buffer.capacity();
+      entry.buffer = null;
+    }
+    if (entry.spilled != null) {
+      try {
+        Files.deleteIfExists(entry.spilled);
+      } catch (IOException e) {
+        throw new RuntimeException("could not delete spilled output " + entry.spilled, e);
+      }
+      entry.spilled = null;
+    }
+  }
+
+  /**
+   * Write the whole file or nothing, so that a spill is never read partially.
+   */
+  private Path spill(String key, ByteBuffer content) {
+    Path path = spillDir.resolve(key.replaceAll("[^A-Za-z0-9._-]", "_") + ".spill");
+    try {
+      Files.createDirectories(spillDir);
+      Path tmp = Files.createTempFile(spillDir, path.getFileName().toString(), ".tmp");
+      try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while (content.hasRemaining()) {
+          channel.write(content);
+        }
+      }
+      Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      return path;
+    } catch (IOException e) {
+      throw new RuntimeException("could not spill output " + key + " to " + spillDir, e);
+    }
+  }
+
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * @return bytes of memory held by outputs.
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * @return number of outputs that have been spilled to files.
+   */
+  public synchronized long getSpills() {
+    return spills;
+  }
+
+  /**
+   * @return number of outputs that the budget keeps.
+   */
+  public synchronized int getOutputs() {
+    return entries.size();
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "MemoryBudget{" +
+      "capacity=" + capacity +
+      ", used=" + used +
+      ", outputs=" + entries.size() +
+      ", spills=" + spills +
+      '}';
+  }
+
+  /**
+   * Content of the outputs with the same key.
+   */
+  private static final class Entry {
+    private final String key;
+    /** content in memory */
+    private ByteBuffer buffer;
+    /** content on disk */
+    private Path spilled;
+    /** scheduled tasks that read the output and are not done */
+    private int readers;
+
+    private Entry(String key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,77 @@
+package org.deephacks.jobpipe;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Output kept in memory for tasks that depend on it in the same JVM, instead of being
+ * written to files and read back. Content is accounted to a {@link MemoryBudget} and
+ * may be spilled to a file when the budget is exceeded. The output is released when
+ * every scheduled task that depends on it, directly or transitively and in any schedule
+ * that share the budget, is done, so it must not be used with tasks that execute in
+ * other processes.
+ *
+ * Tasks get the output from {@link MemoryBudget#getOutput(TaskContext)}. Outputs with
+ * the same key share the content held by the budget.
+ */
+public final class MemoryTaskOutput implements TaskOutput {
+  private final MemoryBudget budget;
+  final String key;
+
+  MemoryTaskOutput(MemoryBudget budget, String key) {
+    this.budget = budget;
+    this.key = key;
+  }
+
+  /**
+   * Replace the content with a copy of the remaining bytes of the buffer.
+   */
+  public void write(ByteBuffer content) {
+    budget.write(this, content);
+  }
+
+  public void write(byte[] content) {
+    write(ByteBuffer.wrap(content));
+  }
+
+  @Override
+  public boolean exist() {
+    return budget.exist(this);
+  }
+
+  /**
+   * @return a read-only view of the content without copying it, or null if there is none.
+   */
+  @Override
+  public ByteBuffer get() {
+    return budget.read(this);
+  }
+
+  /**
+   * @return true if the content has been spilled to a file.
+   */
+  public boolean isSpilled() {
+    return budget.isSpilled(this);
+  }
+
+  /**
+   * Keep the content for a task that reads it, until the task calls {@link #release()}.
+   */
+  void retain() {
+    budget.retain(this);
+  }
+
+  /**
+   * Drop the content from memory and disk, or let go of a task that read it and drop
+   * the content when every such task is done.
+   */
+  public void release() {
+    budget.release(this);
+  }
+
+  @Override
+  public String toString() {
+    return "MemoryTaskOutput{" +
+      "key=" + key +
+      '}';
+  }
+}
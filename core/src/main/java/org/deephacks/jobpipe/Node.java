@@ -1,8 +1,12 @@
 package org.deephacks.jobpipe;
 
 import org.joda.time.DateTime;
+import org.joda.time.Duration;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 class Node {
@@ -10,40 +14,247 @@ class Node {
   private final int scheduleId;
   private final TaskContext context;
   private final TimeRange range;
-  private final List<Node> dependencies = new ArrayList<>();
+  private final List<Node> dependencies;
   private final Task task;
   private final Scheduler scheduler;
   private final String[] args;
   private final AtomicReference<TaskStatus> status = new AtomicReference<>();
   private final int retries;
+  private final RateLimiter rateLimiter;
+  private final int batchSize;
+  private final DateTime deadline;
+  private final DateTime atRisk;
+  private volatile DateTime effectiveDeadline;
+  private final double speculation;
+  private final AtomicBoolean claimed = new AtomicBoolean(false);
+  private final AtomicBoolean committed = new AtomicBoolean(false);
+  private final Set<Thread> executing = new HashSet<>();
+  private final CancellationToken cancellation = new CancellationToken();
+  private final Duration timeout;
+  private final List<HostSemaphore> semaphores;
+  private final int shard;
+  private final int shards;
+  private volatile Set<Node> transitiveDependencies;
+  private volatile TaskOutput output;
+  private volatile boolean pruned;
+  private volatile JobSchedule schedule;
+  private volatile Node parent;
+  /** nodes spawned while executing, guarded by this */
+  private final List<Node> children = new ArrayList<>(0);
+  private int pendingChildren;
+  private Runnable onJoined;
+  private final AtomicBoolean joined = new AtomicBoolean(false);
+  /** streaming tasks that depend directly on this node */
+  private final List<Node> consumers = new CopyOnWriteArrayList<>();
+  private volatile DateTime watermark;
+  private final AtomicBoolean streamClosed = new AtomicBoolean(false);
+  /** delivers chunks one at a time to this node */
+  private final Object streamLock = new Object();
+  private volatile RuntimeException streamFailure;
+  /** memory outputs of dependencies read by this node, guarded by itself */
+  private final List<MemoryTaskOutput> retained = new ArrayList<>(0);
+  private boolean consumed;
 
-  Node(String id, int scheduleId, Task task, TimeRange range, Scheduler scheduler,
-       String[] args, JobObserver observer, boolean verbose, int retries) {
-    this.id = id;
+  Node(TaskDefinition definition, int scheduleId, TimeRange range, String[] args,
+       JobObserver observer, boolean verbose) {
+    this.id = definition.id;
     this.scheduleId = scheduleId;
     this.range = range;
+    this.dependencies = new ArrayList<>(definition.deps.length);
     this.args = args;
-    this.scheduler = scheduler;
+    this.scheduler = definition.scheduler;
     this.context = new TaskContext(this);
-    this.task = task;
-    this.retries = retries;
+    this.task = definition.task;
+    this.retries = definition.retries;
+    this.rateLimiter = definition.rateLimiter;
+    this.batchSize = definition.batchSize;
+    this.deadline = definition.deadline == null ? null : range.to().plus(definition.deadline);
+    this.atRisk = definition.deadline == null ? null : this.deadline.minus(definition.atRisk);
+    this.effectiveDeadline = this.deadline;
+    this.speculation = definition.speculation;
+    this.timeout = definition.timeout;
+    this.semaphores = definition.semaphores;
+    this.shard = definition.shard;
+    this.shards = definition.shards;
+    this.watermark = range.from();
     this.status.set(new TaskStatus(context, observer, verbose));
   }
 
+  /**
+   * Execute the task. Several attempts may execute at the same time when the
+   * execution is speculated.
+   */
   void execute() {
-    task.execute(context);
+    Thread thread = Thread.currentThread();
+    synchronized (executing) {
+      executing.add(thread);
+    }
+    try {
+      if (streamFailure != null) {
+        throw streamFailure;
+      }
+      scheduler.execute(task, context);
+    } finally {
+      synchronized (executing) {
+        executing.remove(thread);
+        if (isCommitted() || cancellation.isCancelled()) {
+          // clear interrupt from an attempt that committed before this one, or from a
+          // cancel that the task ignored, so that the thread can be reused
+          Thread.interrupted();
+        }
+      }
+    }
+  }
+
+  /**
+   * Commit the outcome of an attempt, where the first attempt wins and other
+   * attempts are interrupted.
+   *
+   * @return true if the caller won.
+   */
+  boolean commit() {
+    if (!committed.compareAndSet(false, true)) {
+      return false;
+    }
+    Thread thread = Thread.currentThread();
+    synchronized (executing) {
+      for (Thread attempt : executing) {
+        if (attempt != thread) {
+          attempt.interrupt();
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Cancel the task and interrupt threads that execute it.
+   *
+   * @return false if the task was already done.
+   */
+  boolean cancel(String reason) {
+    if (getStatus().isDone()) {
+      return false;
+    }
+    getStatus().cancelled(new CancellationException(reason));
+    cancellation.cancel(reason);
+    synchronized (executing) {
+      executing.forEach(Thread::interrupt);
+    }
+    return true;
+  }
+
+  CancellationToken getCancellation() {
+    return cancellation;
+  }
+
+  /**
+   * @return maximum execution time of an attempt, or null if no limit.
+   */
+  Duration getExecutionTimeout() {
+    return timeout;
+  }
+
+  /**
+   * @return semaphores that the task must hold a permit of while executing.
+   */
+  List<HostSemaphore> getSemaphores() {
+    return semaphores;
+  }
+
+  int getShard() {
+    return shard;
+  }
+
+  int getShardCount() {
+    return shards;
+  }
+
+  boolean isCommitted() {
+    return committed.get();
+  }
+
+  /**
+   * @return percentile of recorded execution times after which the execution is speculated,
+   * or 0 if the task is not speculated.
+   */
+  double getSpeculation() {
+    return speculation;
   }
 
   int getRetries() {
     return retries;
   }
 
+  /**
+   * Claim the execution of this node, either by its own schedule task or
+   * as a member of a batch.
+   *
+   * @return true if the caller is responsible for executing this node.
+   */
+  boolean claim() {
+    return claimed.compareAndSet(false, true);
+  }
+
+  void unclaim() {
+    claimed.set(false);
+  }
+
+  boolean isBatch() {
+    return batchSize > 1 && task instanceof BatchTask;
+  }
+
+  int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * @return the deadline of this task, or null if it has no deadline.
+   */
+  DateTime getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * @return time when the task is at risk of missing its deadline.
+   */
+  DateTime getAtRisk() {
+    return atRisk;
+  }
+
+  /**
+   * @return the earliest deadline of this task and the tasks that depend on it.
+   */
+  DateTime getEffectiveDeadline() {
+    return effectiveDeadline;
+  }
+
+  /**
+   * Inherit the deadline of a task that depend on this task, if it is earlier.
+   */
+  void inheritDeadline(DateTime deadline) {
+    if (deadline != null && (effectiveDeadline == null || deadline.isBefore(effectiveDeadline))) {
+      effectiveDeadline = deadline;
+    }
+  }
+
+  RateLimiter getRateLimiter() {
+    return rateLimiter;
+  }
+
   TaskContext getContext() {
     return context;
   }
 
+  /**
+   * The output location is created once, while its existence is checked on every call to
+   * {@link #hasOutput()}.
+   */
   TaskOutput getTaskOutput() {
-    return task.getOutput(context);
+    if (output == null) {
+      output = task.getOutput(context);
+    }
+    return output;
   }
 
   DateTime getTimeout() {
@@ -85,6 +296,105 @@ class Node {
 
   void addDependencies(Node... tasks) {
     dependencies.addAll(Arrays.asList(tasks));
+    transitiveDependencies = null;
+    if (task instanceof StreamingTask) {
+      for (Node node : tasks) {
+        node.consumers.add(this);
+      }
+    }
+  }
+
+  /**
+   * Deliver a chunk to streaming tasks that depend on this node, unless the node is done.
+   *
+   * @param watermark moves the watermark forward, or null to keep it.
+   */
+  void publish(Object value, DateTime watermark) {
+    if (streamClosed.get()) {
+      return;
+    }
+    if (watermark != null && watermark.isAfter(this.watermark)) {
+      this.watermark = watermark.isAfter(range.to()) ? range.to() : watermark;
+    }
+    Chunk chunk = new Chunk(context, value, this.watermark, false);
+    for (Node consumer : consumers) {
+      consumer.accept(chunk);
+    }
+  }
+
+  /**
+   * Deliver the output as the last chunk, before the node is reported done so that
+   * consumers have every chunk when they execute.
+   */
+  void closeStream() {
+    if (!streamClosed.compareAndSet(false, true)) {
+      return;
+    }
+    watermark = range.to();
+    if (consumers.isEmpty()) {
+      return;
+    }
+    Chunk chunk = new Chunk(context, getTaskOutput(), watermark, true);
+    for (Node consumer : consumers) {
+      consumer.accept(chunk);
+    }
+  }
+
+  private void accept(Chunk chunk) {
+    if (pruned || getStatus().isDone()) {
+      return;
+    }
+    synchronized (streamLock) {
+      if (streamFailure != null) {
+        return;
+      }
+      try {
+        ((StreamingTask) task).accept(context, chunk);
+      } catch (RuntimeException e) {
+        streamFailure = e;
+      }
+    }
+  }
+
+  /**
+   * Keep memory outputs of dependencies, direct and transitive, until this node is done.
+   * Called when the node is scheduled, so that nodes that never execute keep nothing.
+   */
+  void retainDependencies() {
+    synchronized (retained) {
+      if (consumed) {
+        return;
+      }
+      for (Node dependency : getDependencies()) {
+        if (dependency.getTaskOutput() instanceof MemoryTaskOutput) {
+          MemoryTaskOutput output = (MemoryTaskOutput) dependency.getTaskOutput();
+          output.retain();
+          retained.add(output);
+        }
+      }
+    }
+  }
+
+  /**
+   * Release memory outputs kept by this node, once, when the node is done whatever
+   * the outcome.
+   */
+  void consumeDependencies() {
+    synchronized (retained) {
+      if (consumed) {
+        return;
+      }
+      consumed = true;
+      retained.forEach(MemoryTaskOutput::release);
+      retained.clear();
+    }
+  }
+
+  /**
+   * @return time before which this node has published all of its output.
+   */
+  DateTime getWatermark() {
+    return watermark;
   }
 
   /**
@@ -98,6 +408,15 @@ class Node {
    * Get all dependencies, direct and transitive, of this node.
    */
   Set<Node> getDependencies() {
+    Set<Node> result = transitiveDependencies;
+    if (result == null) {
+      result = Collections.unmodifiableSet(collectDependencies());
+      transitiveDependencies = result;
+    }
+    return result;
+  }
+
+  private Set<Node> collectDependencies() {
     ArrayDeque<Node> deps = new ArrayDeque<>(dependencies);
     LinkedHashSet<Node> result = new LinkedHashSet<>();
     while (!deps.isEmpty()) {
@@ -115,6 +434,83 @@ class Node {
     return context.hasOutput();
   }
 
+  JobSchedule getSchedule() {
+    return schedule;
+  }
+
+  void setSchedule(JobSchedule schedule) {
+    this.schedule = schedule;
+  }
+
+  /**
+   * @return the child, or an equal child spawned by an earlier attempt.
+   */
+  synchronized Node addChild(Node child) {
+    for (Node existing : children) {
+      if (existing.equals(child)) {
+        return existing;
+      }
+    }
+    children.add(child);
+    child.parent = this;
+    pendingChildren++;
+    return child;
+  }
+
+  Node getParent() {
+    return parent;
+  }
+
+  synchronized List<Node> getChildren() {
+    return new ArrayList<>(children);
+  }
+
+  synchronized boolean hasPendingChildren() {
+    return pendingChildren > 0;
+  }
+
+  /**
+   * @param onJoined run when all children are done.
+   * @return false if there are no children to wait for and onJoined will not run.
+   */
+  synchronized boolean awaitChildren(Runnable onJoined) {
+    if (pendingChildren == 0) {
+      return false;
+    }
+    this.onJoined = onJoined;
+    return true;
+  }
+
+  /**
+   * Tell the parent that this node is done, once.
+   */
+  void joinParent() {
+    Node p = parent;
+    if (p == null || !getStatus().isDone() || !joined.compareAndSet(false, true)) {
+      return;
+    }
+    Runnable r;
+    synchronized (p) {
+      if (--p.pendingChildren > 0 || p.onJoined == null) {
+        return;
+      }
+      r = p.onJoined;
+      p.onJoined = null;
+    }
+    r.run();
+  }
+
+  /**
+   * Not scheduled because every node that depends on it has output.
+   */
+  void prune() {
+    pruned = true;
+  }
+
+  boolean isPruned() {
+    return pruned;
+  }
+
   Scheduler getScheduler() {
     return scheduler;
   }
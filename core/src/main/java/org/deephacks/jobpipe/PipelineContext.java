@@ -7,6 +7,15 @@ public class PipelineContext {
   public final String targetTaskId;
   public final String[] args;
   public final Boolean verbose;
+  LeaseCoordinator leases;
+  Scheduler scheduler;
+  ExecutionRegistry registry;
+  RuntimeHistory history;
+  boolean planOnly;
+  boolean prune;
+  String forceRerun;
+  CoverageIndex coverage;
+  SchedulePlan plan;
   JobSchedule schedule;
 
   public PipelineContext(TimeRange range, String taskId, Boolean verbose, String[] args) {
@@ -20,6 +29,71 @@ public class PipelineContext {
     this(range, null, null, null);
   }
 
+  /**
+   * @param leases coordinate execution with other processes that execute the same pipeline.
+   */
+  public void setLeaseCoordinator(LeaseCoordinator leases) {
+    this.leases = leases;
+  }
+
+  /**
+   * @param scheduler default scheduler of the schedule, shared with other pipelines
+   *                  that execute at the same time.
+   */
+  public void setScheduler(Scheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  /**
+   * @param registry deduplicates tasks with other pipelines that execute at the same time.
+   */
+  public void setExecutionRegistry(ExecutionRegistry registry) {
+    this.registry = registry;
+  }
+
+  /**
+   * @param history execution times of earlier executions, used for estimates and speculation.
+   */
+  public void setRuntimeHistory(RuntimeHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * Plan the schedule instead of executing it. The plan is available from
+   * {@link #getPlan()} after the pipeline executed.
+   */
+  public void setPlanOnly(boolean planOnly) {
+    this.planOnly = planOnly;
+  }
+
+  /**
+   * Do not schedule tasks that only feed tasks that have output.
+   */
+  public void setPrune(boolean prune) {
+    this.prune = prune;
+  }
+
+  /**
+   * @param taskIdRegex execute tasks that match, even if they have output.
+   */
+  public void setForceRerun(String taskIdRegex) {
+    this.forceRerun = taskIdRegex;
+  }
+
+  /**
+   * @param coverage records time slots where tasks are finished or skipped.
+   */
+  public void setCoverageIndex(CoverageIndex coverage) {
+    this.coverage = coverage;
+  }
+
+  /**
+   * @return the plan of the schedule, if planned instead of executed.
+   */
+  public SchedulePlan getPlan() {
+    return plan;
+  }
+
   /**
    * Called when the job schedule get created, this is a ugly hack
    * so that the CLI can check the status after it has finished.
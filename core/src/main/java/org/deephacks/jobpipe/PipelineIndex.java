@@ -0,0 +1,100 @@
+package org.deephacks.jobpipe;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Class names of pipelines listed in META-INF/services/org.deephacks.jobpipe.Pipeline,
+ * read without loading or instantiating the classes like a {@link java.util.ServiceLoader}
+ * does. Only the pipeline that is executed is loaded.
+ */
+public final class PipelineIndex {
+  static final String SERVICES = "META-INF/services/" + Pipeline.class.getName();
+  private final ClassLoader classLoader;
+  private final List<String> names;
+
+  private PipelineIndex(ClassLoader classLoader, List<String> names) {
+    this.classLoader = classLoader;
+    this.names = names;
+  }
+
+  /**
+   * @return pipelines of the context class loader.
+   */
+  public static PipelineIndex load() {
+    return load(Thread.currentThread().getContextClassLoader());
+  }
+
+  public static PipelineIndex load(ClassLoader classLoader) {
+    Set<String> names = new LinkedHashSet<>();
+    try {
+      Enumeration<URL> urls = classLoader.getResources(SERVICES);
+      while (urls.hasMoreElements()) {
+        URL url = urls.nextElement();
+        try (BufferedReader reader = new BufferedReader(
+          new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+          String line;
+          while ((line = reader.readLine()) != null) {
+            int comment = line.indexOf('#');
+            String name = (comment < 0 ? line : line.substring(0, comment)).trim();
+            if (!name.isEmpty()) {
+              names.add(name);
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("could not read " + SERVICES, e);
+    }
+    return new PipelineIndex(classLoader, new ArrayList<>(names));
+  }
+
+  /**
+   * @return class names of all pipelines.
+   */
+  public List<String> getNames() {
+    return names;
+  }
+
+  /**
+   * @return first class name that the regexp is found in, or null if none.
+   */
+  public String find(String regexp) {
+    List<String> found = findAll(regexp);
+    return found.isEmpty() ? null : found.get(0);
+  }
+
+  /**
+   * @return class names that the regexp is found in.
+   */
+  public List<String> findAll(String regexp) {
+    Pattern pattern = Pattern.compile(regexp);
+    List<String> found = new ArrayList<>();
+    for (String name : names) {
+      if (pattern.matcher(name).find()) {
+        found.add(name);
+      }
+    }
+    return found;
+  }
+
+  /**
+   * Load and instantiate a pipeline.
+   */
+  public Pipeline newInstance(String name) {
+    try {
+      return Class.forName(name, true, classLoader).asSubclass(Pipeline.class).getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | ClassCastException e) {
+      throw new IllegalArgumentException("could not create pipeline " + name, e);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package org.deephacks.jobpipe;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket that limits how fast tasks are started. Tokens are refilled at a fixed
+ * rate up to a burst capacity and every task start consume one token. Task starts that
+ * find the bucket empty are delayed until a token becomes available, instead of
+ * blocking a scheduler thread.
+ *
+ * Tasks that are past due when scheduled, like tasks in a backfill, may also be
+ * spread out with a random jitter so that they do not hit external systems in the
+ * same instant.
+ *
+ * A rate limiter can be set on the schedule or on individual tasks and may be shared
+ * between several schedules.
+ */
+public class RateLimiter {
+  private final long nanosPerPermit;
+  private final int burst;
+  private long jitterMillis = 0;
+  private double permits;
+  private long lastRefill;
+
+  private RateLimiter(double permitsPerSecond, int burst) {
+    if (permitsPerSecond <= 0) {
+      throw new IllegalArgumentException("permitsPerSecond must be positive " + permitsPerSecond);
+    }
+    if (burst < 1) {
+      throw new IllegalArgumentException("burst must be at least 1 " + burst);
+    }
+    this.nanosPerPermit = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+    this.burst = burst;
+    this.permits = burst;
+    this.lastRefill = System.nanoTime();
+  }
+
+  /**
+   * @param permitsPerSecond number of task starts per second.
+   */
+  public static RateLimiter create(double permitsPerSecond) {
+    return new RateLimiter(permitsPerSecond, 1);
+  }
+
+  /**
+   * @param permitsPerSecond number of task starts per second.
+   * @param burst number of task starts that may happen at once when the bucket is full.
+   */
+  public static RateLimiter create(double permitsPerSecond, int burst) {
+    return new RateLimiter(permitsPerSecond, burst);
+  }
+
+  /**
+   * @param time maximum random delay added to tasks that are past due when scheduled.
+   */
+  public RateLimiter jitter(long time, TimeUnit unit) {
+    this.jitterMillis = unit.toMillis(time);
+    return this;
+  }
+
+  /**
+   * Take a token from the bucket.
+   *
+   * @return nanoseconds to wait until the token is available, 0 if available now.
+   */
+  public synchronized long reserve() {
+    long now = System.nanoTime();
+    permits = Math.min(burst, permits + (double) (now - lastRefill) / nanosPerPermit);
+    lastRefill = now;
+    permits -= 1;
+    return permits >= 0 ? 0 : (long) (-permits * nanosPerPermit);
+  }
+
+  /**
+   * @return random delay in milliseconds for a task that is past due.
+   */
+  public long jitter() {
+    return jitterMillis > 0 ? ThreadLocalRandom.current().nextLong(jitterMillis + 1) : 0;
+  }
+}
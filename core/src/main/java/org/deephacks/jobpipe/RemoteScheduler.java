@@ -0,0 +1,480 @@
+package org.deephacks.jobpipe;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executes tasks on remote workers that connect to this scheduler over TCP, while the
+ * schedule, its dependency graph and task statuses stay in this JVM. Workers are started
+ * with {@link RemoteWorker}.
+ *
+ * Workers tell how many tasks they can execute at the same time and are never sent more
+ * tasks than that. Tasks are dispatched in batches and workers answer with batches of
+ * status changes. Workers that disconnect, or have not been heard from within the worker
+ * timeout, are considered lost and their tasks are dispatched to other workers.
+ *
+ * Each task that executes remotely occupy a thread of the scheduler that decides when tasks
+ * execute, which should have at least as many threads as the total capacity of workers.
+ *
+ * <pre>
+ * RemoteScheduler remote = new RemoteScheduler(new DefaultScheduler(64), 7070);
+ * JobSchedule.newSchedule("2016-01").scheduler(remote) ...
+ *
+ * java -cp ... org.deephacks.jobpipe.RemoteWorker coordinator-host 7070 8
+ * </pre>
+ */
+public class RemoteScheduler implements Scheduler {
+  static final byte HELLO = 1;
+  static final byte DISPATCH = 2;
+  static final byte STATUS = 3;
+  static final byte CANCEL = 4;
+  static final byte HEARTBEAT = 5;
+  static final byte STARTED = 1;
+  static final byte FINISHED = 2;
+  static final byte FAILED = 3;
+  static final int MAX_FRAME = 64 * 1024 * 1024;
+  static final long HEARTBEAT_MILLIS = 1000;
+  /** time without hearing from the other side before the connection is considered lost */
+  static final long TIMEOUT_MILLIS = 10_000;
+  /** stop dispatching to workers that do not read what has been sent */
+  private static final int MAX_OUTBOUND = 4 * 1024 * 1024;
+  private final Scheduler scheduler;
+  private final long workerTimeoutMillis;
+  private final Selector selector;
+  private final ServerSocketChannel server;
+  private final Thread thread;
+  /** operations from other threads, executed by the selector thread */
+  private final ConcurrentLinkedQueue<Runnable> operations = new ConcurrentLinkedQueue<>();
+  private final AtomicLong requestIds = new AtomicLong();
+  // only accessed by the selector thread
+  private final ArrayDeque<Request> queue = new ArrayDeque<>();
+  private final Map<Long, Request> requests = new HashMap<>();
+  private final List<Connection> connections = new ArrayList<>();
+  private volatile int workers = 0;
+  private volatile int queued = 0;
+  private volatile boolean shutdown = false;
+  private volatile boolean verbose = false;
+
+  /**
+   * @param port port to listen on for workers, or 0 for any free port.
+   */
+  public RemoteScheduler(int port) {
+    this(new DefaultScheduler(), port);
+  }
+
+  public RemoteScheduler(Scheduler scheduler, int port) {
+    this(scheduler, port, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param scheduler decides when tasks execute.
+   * @param port port to listen on for workers, or 0 for any free port.
+   * @param workerTimeout time without hearing from a worker before it is considered lost.
+   */
+  public RemoteScheduler(Scheduler scheduler, int port, long workerTimeout, TimeUnit unit) {
+    this.scheduler = scheduler;
+    this.workerTimeoutMillis = unit.toMillis(workerTimeout);
+    try {
+      this.selector = Selector.open();
+      this.server = ServerSocketChannel.open();
+      server.bind(new InetSocketAddress(port));
+      server.configureBlocking(false);
+      server.register(selector, SelectionKey.OP_ACCEPT);
+    } catch (IOException e) {
+      throw new RuntimeException("could not listen on port " + port, e);
+    }
+    this.thread = new Thread(this::select, "remote-scheduler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @param verbose print when workers connect or are lost.
+   */
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+  /**
+   * @return port that workers connect to.
+   */
+  public int getPort() {
+    return server.socket().getLocalPort();
+  }
+
+  /**
+   * @return number of connected workers.
+   */
+  public int getWorkers() {
+    return workers;
+  }
+
+  /**
+   * @return number of tasks waiting for a worker.
+   */
+  public int getQueued() {
+    return queued;
+  }
+
+  @Override
+  public void schedule(Runnable runnable, long delayTime, TimeUnit unit) {
+    scheduler.schedule(runnable, delayTime, unit);
+  }
+
+  /**
+   * Execute the task on a remote worker and wait for it to finish.
+   */
+  @Override
+  public void execute(Task task, TaskContext context) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      TaskRequest.write(out, context.node);
+    } catch (IOException e) {
+      throw new RuntimeException("could not encode " + context, e);
+    }
+    Request request = new Request(requestIds.incrementAndGet(), context, bytes.toByteArray());
+    submit(() -> {
+      requests.put(request.id, request);
+      queue.add(request);
+    });
+    context.getCancellation().onCancel(() -> submit(() -> cancel(request)));
+    try {
+      request.future.get();
+    } catch (InterruptedException e) {
+      submit(() -> cancel(request));
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  @Override
+  public void shutdown() {
+    shutdown = true;
+    scheduler.shutdown();
+    selector.wakeup();
+  }
+
+  private void submit(Runnable operation) {
+    operations.add(operation);
+    selector.wakeup();
+  }
+
+  private void select() {
+    try {
+      while (!shutdown) {
+        selector.select(HEARTBEAT_MILLIS);
+        Runnable operation;
+        while ((operation = operations.poll()) != null) {
+          operation.run();
+        }
+        Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+        while (keys.hasNext()) {
+          SelectionKey key = keys.next();
+          keys.remove();
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            accept();
+          } else {
+            Connection connection = (Connection) key.attachment();
+            try {
+              if (key.isReadable()) {
+                connection.read();
+              }
+              if (key.isValid() && key.isWritable()) {
+                connection.write();
+              }
+            } catch (IOException e) {
+              lost(connection, e.getMessage());
+            }
+          }
+        }
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<>(connections)) {
+          if (now - connection.lastRead > workerTimeoutMillis) {
+            lost(connection, "no heartbeat for " + (now - connection.lastRead) + "ms");
+          } else if (now - connection.lastWrite >= HEARTBEAT_MILLIS) {
+            // tell the worker that the scheduler is alive
+            ByteBuffer frame = ByteBuffer.allocate(4 + 1);
+            frame.putInt(1).put(HEARTBEAT);
+            connection.send(frame);
+          }
+        }
+        dispatch();
+        queued = queue.size();
+      }
+    } catch (IOException e) {
+      Debug.debug(e, verbose);
+    } finally {
+      for (Connection connection : new ArrayList<>(connections)) {
+        lost(connection, "shutdown");
+      }
+      for (Request request : requests.values()) {
+        request.future.completeExceptionally(new IllegalStateException("scheduler shutdown"));
+      }
+      try {
+        server.close();
+        selector.close();
+      } catch (IOException e) {
+        Debug.debug(e, verbose);
+      }
+    }
+  }
+
+  private void accept() throws IOException {
+    SocketChannel channel = server.accept();
+    if (channel == null) {
+      return;
+    }
+    channel.configureBlocking(false);
+    channel.socket().setTcpNoDelay(true);
+    Connection connection = new Connection(channel);
+    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    connections.add(connection);
+  }
+
+  /**
+   * Send queued requests to workers that have credits left, as one frame per worker.
+   */
+  private void dispatch() {
+    for (Connection connection : new ArrayList<>(connections)) {
+      if (queue.isEmpty()) {
+        return;
+      }
+      if (connection.credits <= 0 || connection.outboundBytes > MAX_OUTBOUND) {
+        continue;
+      }
+      List<Request> batch = new ArrayList<>();
+      while (!queue.isEmpty() && batch.size() < connection.credits) {
+        Request request = queue.poll();
+        if (!request.future.isDone()) {
+          batch.add(request);
+        }
+      }
+      if (batch.isEmpty()) {
+        // every polled request was cancelled
+        continue;
+      }
+      int size = 1 + 4;
+      for (Request request : batch) {
+        size += 8 + 4 + request.bytes.length;
+      }
+      ByteBuffer frame = ByteBuffer.allocate(4 + size);
+      frame.putInt(size).put(DISPATCH).putInt(batch.size());
+      for (Request request : batch) {
+        frame.putLong(request.id).putInt(request.bytes.length).put(request.bytes);
+        request.connection = connection;
+        connection.inflight.add(request);
+      }
+      connection.credits -= batch.size();
+      connection.send(frame);
+    }
+  }
+
+  private void cancel(Request request) {
+    if (request.future.isDone()) {
+      return;
+    }
+    if (request.connection == null) {
+      queue.remove(request);
+      requests.remove(request.id);
+      request.future.completeExceptionally(new CancellationException(request.context + " cancelled"));
+      return;
+    }
+    byte[] reason = String.valueOf(request.context.getCancellation().getReason())
+      .getBytes(StandardCharsets.UTF_8);
+    ByteBuffer frame = ByteBuffer.allocate(4 + 1 + 8 + 4 + reason.length);
+    frame.putInt(1 + 8 + 4 + reason.length).put(CANCEL).putLong(request.id)
+      .putInt(reason.length).put(reason);
+    request.connection.send(frame);
+  }
+
+  /**
+   * Close the connection and dispatch its tasks to other workers.
+   */
+  private void lost(Connection connection, String reason) {
+    if (!connections.remove(connection)) {
+      return;
+    }
+    updateWorkers();
+    Debug.debug("lost worker " + connection + " " + reason, verbose);
+    connection.key.cancel();
+    try {
+      connection.channel.close();
+    } catch (IOException e) {
+      Debug.debug(e, verbose);
+    }
+    for (Request request : connection.inflight) {
+      request.connection = null;
+      if (!request.future.isDone()) {
+        queue.addFirst(request);
+      }
+    }
+    connection.inflight.clear();
+  }
+
+  private void updateWorkers() {
+    workers = (int) connections.stream().filter(c -> c.capacity > 0).count();
+  }
+
+  private void status(Connection connection, ByteBuffer frame) {
+    int count = frame.getInt();
+    for (int i = 0; i < count; i++) {
+      long id = frame.getLong();
+      byte code = frame.get();
+      String failure = null;
+      if (code == FAILED) {
+        byte[] message = new byte[frame.getInt()];
+        frame.get(message);
+        failure = new String(message, StandardCharsets.UTF_8);
+      }
+      Request request = requests.get(id);
+      if (request == null || request.connection != connection) {
+        continue;
+      }
+      if (code == STARTED) {
+        request.context.getStatus().setLastUpdate();
+        continue;
+      }
+      requests.remove(id);
+      connection.inflight.remove(request);
+      connection.credits++;
+      if (code == FINISHED) {
+        request.future.complete(null);
+      } else {
+        request.future.completeExceptionally(new RuntimeException(failure));
+      }
+    }
+  }
+
+  private static final class Request {
+    private final long id;
+    private final TaskContext context;
+    private final byte[] bytes;
+    private final CompletableFuture<Void> future = new CompletableFuture<>();
+    private Connection connection;
+
+    private Request(long id, TaskContext context, byte[] bytes) {
+      this.id = id;
+      this.context = context;
+      this.bytes = bytes;
+    }
+  }
+
+  private final class Connection {
+    private final SocketChannel channel;
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private final Set<Request> inflight = new LinkedHashSet<>();
+    private ByteBuffer inbound = ByteBuffer.allocate(64 * 1024);
+    private SelectionKey key;
+    private long lastRead = System.currentTimeMillis();
+    private long lastWrite = System.currentTimeMillis();
+    private long outboundBytes = 0;
+    private int capacity = 0;
+    private int credits = 0;
+
+    private Connection(SocketChannel channel) {
+      this.channel = channel;
+    }
+
+    void read() throws IOException {
+      if (channel.read(inbound) < 0) {
+        throw new IOException("disconnected");
+      }
+      lastRead = System.currentTimeMillis();
+      // call through Buffer, the ByteBuffer overrides do not exist in java 8
+      ((Buffer) inbound).flip();
+      while (inbound.remaining() >= 4) {
+        int size = inbound.getInt(inbound.position());
+        if (size < 1 || size > MAX_FRAME) {
+          throw new IOException("invalid frame size " + size);
+        }
+        if (inbound.remaining() < 4 + size) {
+          if (inbound.capacity() < 4 + size) {
+            // grow to fit the frame
+            ByteBuffer bigger = ByteBuffer.allocate(4 + size);
+            bigger.put(inbound);
+            ((Buffer) bigger).flip();
+            inbound = bigger;
+          }
+          break;
+        }
+        inbound.getInt();
+        ByteBuffer frame = inbound.slice();
+        ((Buffer) frame).limit(size);
+        ((Buffer) inbound).position(inbound.position() + size);
+        handle(frame);
+      }
+      inbound.compact();
+    }
+
+    void handle(ByteBuffer frame) throws IOException {
+      byte type = frame.get();
+      switch (type) {
+        case HELLO:
+          capacity = frame.getInt();
+          credits = capacity;
+          updateWorkers();
+          Debug.debug("worker " + this + " connected with capacity " + capacity, verbose);
+          break;
+        case STATUS:
+          status(this, frame);
+          break;
+        case HEARTBEAT:
+          break;
+        default:
+          throw new IOException("unknown frame type " + type);
+      }
+    }
+
+    void send(ByteBuffer frame) {
+      ((Buffer) frame).flip();
+      lastWrite = System.currentTimeMillis();
+      outbound.add(frame);
+      outboundBytes += frame.remaining();
+      try {
+        write();
+      } catch (IOException e) {
+        lost(this, e.getMessage());
+      }
+    }
+
+    void write() throws IOException {
+      while (!outbound.isEmpty()) {
+        ByteBuffer buffer = outbound.peek();
+        outboundBytes -= channel.write(buffer);
+        if (buffer.hasRemaining()) {
+          // socket buffer is full, continue when writable
+          key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+          return;
+        }
+        outbound.poll();
+      }
+      key.interestOps(SelectionKey.OP_READ);
+    }
+
+    @Override
+    public String toString() {
+      try {
+        return String.valueOf(channel.getRemoteAddress());
+      } catch (IOException e) {
+        return "closed";
+      }
+    }
+  }
+}
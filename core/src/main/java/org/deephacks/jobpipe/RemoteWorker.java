@@ -0,0 +1,251 @@
+package org.deephacks.jobpipe;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.deephacks.jobpipe.RemoteScheduler.*;
+
+/**
+ * Executes tasks sent by a {@link RemoteScheduler}. Status changes of tasks are collected
+ * and sent together, and a heartbeat is sent when there is nothing else to say. Tasks
+ * are interrupted when the scheduler has not been heard from within a timeout.
+ *
+ * <pre>
+ * java -cp ... org.deephacks.jobpipe.RemoteWorker host port capacity [-verbose]
+ * </pre>
+ */
+public class RemoteWorker {
+  private final String host;
+  private final int port;
+  private final int capacity;
+  private final long schedulerTimeoutMillis;
+  private final ExecutorService executor;
+  private final LinkedBlockingQueue<Status> statuses = new LinkedBlockingQueue<>();
+  /** tasks that execute, guarded by itself */
+  private final Map<Long, Node> executing = new HashMap<>();
+  /** tasks waiting for a thread and the reason if cancelled meanwhile, guarded by executing */
+  private final Map<Long, String> queued = new HashMap<>();
+  private volatile Socket socket;
+  private volatile boolean verbose = false;
+
+  /**
+   * @param capacity number of tasks that execute at the same time.
+   */
+  public RemoteWorker(String host, int port, int capacity) {
+    this(host, port, capacity, TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * @param capacity number of tasks that execute at the same time.
+   * @param schedulerTimeout time without hearing from the scheduler before it is considered lost.
+   */
+  public RemoteWorker(String host, int port, int capacity, long schedulerTimeout, TimeUnit unit) {
+    this.host = host;
+    this.port = port;
+    this.capacity = capacity;
+    this.schedulerTimeoutMillis = unit.toMillis(schedulerTimeout);
+    this.executor = Executors.newFixedThreadPool(capacity, r -> {
+      Thread thread = new Thread(r, "remote-worker");
+      thread.setDaemon(true);
+      return thread;
+    });
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3 || args.length > 4 || (args.length == 4 && !args[3].equals("-verbose"))) {
+      System.err.println("usage: RemoteWorker host port capacity [-verbose]");
+      System.exit(1);
+    }
+    RemoteWorker worker = new RemoteWorker(args[0], Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+    worker.setVerbose(args.length == 4);
+    worker.run();
+  }
+
+  /**
+   * @param verbose print failures of the connection.
+   */
+  public void setVerbose(boolean verbose) {
+    this.verbose = verbose;
+  }
+
+  /**
+   * Connect to the scheduler and execute tasks until the connection is closed.
+   */
+  public void run() throws IOException {
+    socket = new Socket();
+    socket.connect(new InetSocketAddress(host, port));
+    socket.setTcpNoDelay(true);
+    socket.setSoTimeout((int) schedulerTimeoutMillis);
+    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    out.writeInt(1 + 4);
+    out.writeByte(HELLO);
+    out.writeInt(capacity);
+    out.flush();
+    Thread writer = new Thread(() -> write(out), "remote-worker-status");
+    writer.setDaemon(true);
+    writer.start();
+    try {
+      while (true) {
+        int size = in.readInt();
+        if (size < 1 || size > MAX_FRAME) {
+          throw new IOException("invalid frame size " + size);
+        }
+        byte type = in.readByte();
+        if (type == DISPATCH) {
+          int count = in.readInt();
+          for (int i = 0; i < count; i++) {
+            long id = in.readLong();
+            byte[] request = new byte[in.readInt()];
+            in.readFully(request);
+            synchronized (executing) {
+              queued.put(id, null);
+            }
+            executor.execute(() -> execute(id, request));
+          }
+        } else if (type == CANCEL) {
+          long id = in.readLong();
+          byte[] reason = new byte[in.readInt()];
+          in.readFully(reason);
+          cancel(id, new String(reason, StandardCharsets.UTF_8));
+        } else if (type == HEARTBEAT) {
+          // the scheduler is alive
+        } else {
+          throw new IOException("unknown frame type " + type);
+        }
+      }
+    } catch (EOFException e) {
+      // scheduler closed the connection
+    } catch (SocketTimeoutException e) {
+      throw new IOException("no heartbeat from scheduler for " + schedulerTimeoutMillis + "ms", e);
+    } catch (IOException e) {
+      if (!socket.isClosed()) {
+        throw e;
+      }
+    } finally {
+      stop();
+    }
+  }
+
+  /**
+   * Disconnect from the scheduler and interrupt tasks that execute.
+   */
+  public void stop() {
+    try {
+      if (socket != null) {
+        socket.close();
+      }
+    } catch (IOException e) {
+      Debug.debug(e, verbose);
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * Cancel a task that executes, or remember the reason until a task that is waiting
+   * for a thread starts.
+   */
+  private void cancel(long id, String reason) {
+    Node node;
+    synchronized (executing) {
+      node = executing.get(id);
+      if (node == null && queued.containsKey(id)) {
+        queued.put(id, reason);
+      }
+    }
+    if (node != null) {
+      node.cancel(reason);
+    }
+  }
+
+  private void execute(long id, byte[] request) {
+    Node node;
+    try {
+      node = TaskRequest.read(new DataInputStream(new ByteArrayInputStream(request)));
+    } catch (Exception e) {
+      synchronized (executing) {
+        queued.remove(id);
+      }
+      statuses.add(new Status(id, FAILED, TaskRequest.failure(e)));
+      return;
+    }
+    String cancelled;
+    synchronized (executing) {
+      cancelled = queued.remove(id);
+      executing.put(id, node);
+    }
+    if (cancelled != null) {
+      node.cancel(cancelled);
+    }
+    statuses.add(new Status(id, STARTED, null));
+    try {
+      node.getCancellation().throwIfCancelled();
+      node.execute();
+      statuses.add(new Status(id, FINISHED, null));
+    } catch (Throwable e) {
+      statuses.add(new Status(id, FAILED, TaskRequest.failure(e)));
+    } finally {
+      synchronized (executing) {
+        executing.remove(id);
+      }
+    }
+  }
+
+  /**
+   * Send status changes that have been collected as one frame.
+   */
+  private void write(DataOutputStream out) {
+    try {
+      while (!socket.isClosed()) {
+        Status first = statuses.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+        if (first == null) {
+          out.writeInt(1);
+          out.writeByte(HEARTBEAT);
+          out.flush();
+          continue;
+        }
+        List<Status> batch = new ArrayList<>();
+        batch.add(first);
+        statuses.drainTo(batch);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream frame = new DataOutputStream(bytes);
+        frame.writeByte(STATUS);
+        frame.writeInt(batch.size());
+        for (Status status : batch) {
+          frame.writeLong(status.id);
+          frame.writeByte(status.code);
+          if (status.code == FAILED) {
+            byte[] failure = status.failure.getBytes(StandardCharsets.UTF_8);
+            frame.writeInt(failure.length);
+            frame.write(failure);
+          }
+        }
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+        out.flush();
+      }
+    } catch (InterruptedException | IOException e) {
+      stop();
+    }
+  }
+
+  private static final class Status {
+    private final long id;
+    private final byte code;
+    private final String failure;
+
+    private Status(long id, byte code, String failure) {
+      this.id = id;
+      this.code = code;
+      this.failure = failure;
+    }
+  }
+}
@@ -0,0 +1,140 @@
+package org.deephacks.jobpipe;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the most recent execution times of tasks, by task id. Execution times are recorded
+ * for tasks that finish executing, not for tasks that are skipped.
+ *
+ * A history may be shared between schedules in order to learn from earlier executions,
+ * and written to a file to learn from executions of earlier processes.
+ */
+public class RuntimeHistory {
+  private static final int DEFAULT_SAMPLES = 100;
+  private final Map<String, Samples> samples = new ConcurrentHashMap<>();
+  private final int maxSamples;
+
+  public RuntimeHistory() {
+    this(DEFAULT_SAMPLES);
+  }
+
+  /**
+   * @param maxSamples number of execution times kept per task id.
+   */
+  public RuntimeHistory(int maxSamples) {
+    this.maxSamples = maxSamples;
+  }
+
+  /**
+   * @return history written to the file, or an empty history if the file does not exist.
+   */
+  public static RuntimeHistory read(File file) throws IOException {
+    RuntimeHistory history = new RuntimeHistory();
+    if (!file.exists()) {
+      return history;
+    }
+    for (String line : Files.readAllLines(file.toPath(), StandardCharsets.UTF_8)) {
+      int tab = line.lastIndexOf('\t');
+      if (tab < 0) {
+        continue;
+      }
+      String id = line.substring(0, tab);
+      for (String millis : line.substring(tab + 1).split(",")) {
+        if (!millis.isEmpty()) {
+          history.record(id, Long.parseLong(millis));
+        }
+      }
+    }
+    return history;
+  }
+
+  /**
+   * Write execution times to a file, one line per task id. The file is replaced
+   * atomically so that readers never see partial content.
+   */
+  public void write(File file) throws IOException {
+    List<String> lines = new ArrayList<>();
+    for (Map.Entry<String, Samples> entry : samples.entrySet()) {
+      StringBuilder line = new StringBuilder(entry.getKey()).append('\t');
+      long[] values = entry.getValue().toArray();
+      for (int i = 0; i < values.length; i++) {
+        line.append(i == 0 ? "" : ",").append(values[i]);
+      }
+      lines.add(line.toString());
+    }
+    Path path = file.getAbsoluteFile().toPath();
+    Files.createDirectories(path.getParent());
+    Path tmp = Files.createTempFile(path.getParent(), file.getName(), ".tmp");
+    Files.write(tmp, lines, StandardCharsets.UTF_8);
+    Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * @param id task id
+   * @param millis execution time of the task
+   */
+  public void record(String id, long millis) {
+    samples.computeIfAbsent(id, key -> new Samples(maxSamples)).add(millis);
+  }
+
+  /**
+   * @return number of execution times recorded for the task.
+   */
+  public int count(String id) {
+    Samples s = samples.get(id);
+    return s == null ? 0 : s.size();
+  }
+
+  /**
+   * @param id task id
+   * @param percentile between 0 and 1, like 0.5 for the median.
+   * @return execution time in milliseconds at the percentile, or -1 if nothing is recorded.
+   */
+  public long percentile(String id, double percentile) {
+    Samples s = samples.get(id);
+    if (s == null) {
+      return -1;
+    }
+    long[] sorted = s.toArray();
+    if (sorted.length == 0) {
+      return -1;
+    }
+    Arrays.sort(sorted);
+    int idx = (int) Math.ceil(percentile * sorted.length) - 1;
+    return sorted[Math.max(0, Math.min(sorted.length - 1, idx))];
+  }
+
+  private static final class Samples {
+    private final long[] values;
+    private int next = 0;
+    private int size = 0;
+
+    private Samples(int maxSamples) {
+      this.values = new long[maxSamples];
+    }
+
+    synchronized void add(long value) {
+      values[next] = value;
+      next = (next + 1) % values.length;
+      size = Math.min(size + 1, values.length);
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized long[] toArray() {
+      return Arrays.copyOf(values, size);
+    }
+  }
+}
@@ -0,0 +1,146 @@
+package org.deephacks.jobpipe;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters collected while a {@link org.deephacks.jobpipe.JobSchedule} executes.
+ */
+public class ScheduleMetrics {
+  private final AtomicLong rateLimited = new AtomicLong();
+  private final AtomicLong rateLimitWaitNanos = new AtomicLong();
+  private final AtomicLong slaAtRisk = new AtomicLong();
+  private final AtomicLong slaMissed = new AtomicLong();
+  private final AtomicLong speculated = new AtomicLong();
+  private final AtomicLong cancelled = new AtomicLong();
+  private final AtomicLong timedOut = new AtomicLong();
+  private final AtomicLong speculationWon = new AtomicLong();
+  private final AtomicLong semaphoreWaits = new AtomicLong();
+  private final AtomicLong firstTaskStarted = new AtomicLong();
+
+  void rateLimited(long waitNanos) {
+    rateLimited.incrementAndGet();
+    rateLimitWaitNanos.addAndGet(waitNanos);
+  }
+
+  void slaAtRisk() {
+    slaAtRisk.incrementAndGet();
+  }
+
+  void slaMissed() {
+    slaMissed.incrementAndGet();
+  }
+
+  void cancelled() {
+    cancelled.incrementAndGet();
+  }
+
+  void timedOut() {
+    timedOut.incrementAndGet();
+  }
+
+  /**
+   * @return number of tasks cancelled through {@link JobSchedule#cancel(String)}.
+   */
+  public long getCancelledCount() {
+    return cancelled.get();
+  }
+
+  /**
+   * @return number of tasks cancelled because they executed longer than their timeout.
+   */
+  public long getTimedOutCount() {
+    return timedOut.get();
+  }
+
+  void semaphoreWait() {
+    semaphoreWaits.incrementAndGet();
+  }
+
+  /**
+   * @return number of times tasks were rescheduled because a host semaphore had no permits left.
+   */
+  public long getSemaphoreWaitCount() {
+    return semaphoreWaits.get();
+  }
+
+  void taskStarted() {
+    if (firstTaskStarted.get() == 0) {
+      firstTaskStarted.compareAndSet(0, System.currentTimeMillis());
+    }
+  }
+
+  /**
+   * @return time in milliseconds since epoch when the first task started executing,
+   * or 0 if no task has started.
+   */
+  public long getFirstTaskStarted() {
+    return firstTaskStarted.get();
+  }
+
+  void speculated() {
+    speculated.incrementAndGet();
+  }
+
+  void speculationWon() {
+    speculationWon.incrementAndGet();
+  }
+
+  /**
+   * @return number of speculative attempts that were started.
+   */
+  public long getSpeculatedCount() {
+    return speculated.get();
+  }
+
+  /**
+   * @return number of speculative attempts that finished before the first attempt.
+   */
+  public long getSpeculationWonCount() {
+    return speculationWon.get();
+  }
+
+  /**
+   * @return number of tasks that were at risk of missing their deadline.
+   */
+  public long getSlaAtRiskCount() {
+    return slaAtRisk.get();
+  }
+
+  /**
+   * @return number of tasks that missed their deadline.
+   */
+  public long getSlaMissedCount() {
+    return slaMissed.get();
+  }
+
+  /**
+   * @return number of task starts that were delayed by a rate limiter.
+   */
+  public long getRateLimitedCount() {
+    return rateLimited.get();
+  }
+
+  /**
+   * @return total time that task starts have been delayed by rate limiters.
+   */
+  public long getRateLimitWait(TimeUnit unit) {
+    return unit.convert(rateLimitWaitNanos.get(), TimeUnit.NANOSECONDS);
+  }
+
+  @Override
+  public String toString() {
+    return "ScheduleMetrics{" +
+      "rateLimited=" + rateLimited +
+      ", rateLimitWaitMs=" + getRateLimitWait(TimeUnit.MILLISECONDS) +
+      ", slaAtRisk=" + slaAtRisk +
+      ", slaMissed=" + slaMissed +
+      ", cancelled=" + cancelled +
+      ", timedOut=" + timedOut +
+      ", speculated=" + speculated +
+      ", speculationWon=" + speculationWon +
+      ", semaphoreWaits=" + semaphoreWaits +
+      ", firstTaskStarted=" + firstTaskStarted +
+      '}';
+  }
+}
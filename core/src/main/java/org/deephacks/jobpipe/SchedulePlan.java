@@ -0,0 +1,139 @@
+package org.deephacks.jobpipe;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What a schedule would do for a time range, without executing any task. Created by
+ * {@link org.deephacks.jobpipe.JobSchedule.JobScheduleBuilder#plan()}.
+ */
+public class SchedulePlan {
+  private final List<Entry> entries;
+  private final Map<Action, Integer> counts = new EnumMap<>(Action.class);
+  private final long estimatedWork;
+  private final long estimatedCriticalPath;
+  private final int unestimated;
+
+  SchedulePlan(List<Entry> entries, long estimatedWork, long estimatedCriticalPath, int unestimated) {
+    this.entries = Collections.unmodifiableList(entries);
+    for (Action action : Action.values()) {
+      counts.put(action, 0);
+    }
+    for (Entry entry : entries) {
+      counts.merge(entry.action, 1, Integer::sum);
+    }
+    this.estimatedWork = estimatedWork;
+    this.estimatedCriticalPath = estimatedCriticalPath;
+    this.unestimated = unestimated;
+  }
+
+  /**
+   * @return tasks in the order they would be scheduled, dependencies first.
+   */
+  public List<Entry> getEntries() {
+    return entries;
+  }
+
+  public int getCount(Action action) {
+    return counts.get(action);
+  }
+
+  /**
+   * @return sum of the median execution times, in milliseconds, of tasks that would run.
+   */
+  public long getEstimatedWork() {
+    return estimatedWork;
+  }
+
+  /**
+   * @return median execution time, in milliseconds, of the longest chain of dependent
+   * tasks that would run, which is the shortest possible run time.
+   */
+  public long getEstimatedCriticalPath() {
+    return estimatedCriticalPath;
+  }
+
+  /**
+   * @return number of tasks that would run without recorded execution times.
+   */
+  public int getUnestimated() {
+    return unestimated;
+  }
+
+  /**
+   * Print every task and a summary.
+   */
+  public void print(PrintStream out) {
+    for (Entry entry : entries) {
+      out.println(entry);
+    }
+    out.println(this);
+  }
+
+  @Override
+  public String toString() {
+    return "SchedulePlan{" +
+      "run=" + getCount(Action.RUN) +
+      ", skip=" + getCount(Action.SKIP) +
+      ", blocked=" + getCount(Action.BLOCKED) +
+      ", estimatedWorkMs=" + estimatedWork +
+      ", estimatedCriticalPathMs=" + estimatedCriticalPath +
+      ", unestimated=" + unestimated +
+      '}';
+  }
+
+  public enum Action {
+    /** output is missing and the task would execute */
+    RUN,
+    /** output exist or another process finished the task */
+    SKIP,
+    /** the task cannot execute in this process, or a dependency cannot */
+    BLOCKED
+  }
+
+  public static final class Entry {
+    private final TaskContext context;
+    private final Action action;
+    private final long estimate;
+    private final String reason;
+
+    Entry(TaskContext context, Action action, long estimate, String reason) {
+      this.context = context;
+      this.action = action;
+      this.estimate = estimate;
+      this.reason = reason;
+    }
+
+    public TaskContext getContext() {
+      return context;
+    }
+
+    public Action getAction() {
+      return action;
+    }
+
+    /**
+     * @return median execution time in milliseconds, or -1 if unknown or not running.
+     */
+    public long getEstimate() {
+      return estimate;
+    }
+
+    /**
+     * @return why the task is blocked, or null.
+     */
+    public String getReason() {
+      return reason;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%-8s%s", action, context)
+        + (estimate >= 0 ? " ~" + estimate + "ms" : "")
+        + (reason != null ? " " + reason : "");
+    }
+  }
+}
@@ -0,0 +1,64 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.joda.time.DateTime;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Number of tasks per status of a {@link JobSchedule}, including tasks that have been
+ * retired by {@link JobSchedule#retire()}.
+ */
+public class ScheduleProgress {
+  private final Map<TaskStatusCode, Long> live;
+  private final Map<TaskStatusCode, Long> retired;
+  private final DateTime scheduledTo;
+
+  ScheduleProgress(Map<TaskStatusCode, Long> live, Map<TaskStatusCode, Long> retired, DateTime scheduledTo) {
+    this.live = Collections.unmodifiableMap(new EnumMap<>(live));
+    this.retired = Collections.unmodifiableMap(retired.isEmpty()
+      ? new EnumMap<>(TaskStatusCode.class) : new EnumMap<>(retired));
+    this.scheduledTo = scheduledTo;
+  }
+
+  /**
+   * @return number of tasks with a status, scheduled and retired.
+   */
+  public long getCount(TaskStatusCode code) {
+    return live.getOrDefault(code, 0L) + retired.getOrDefault(code, 0L);
+  }
+
+  /**
+   * @return number of tasks per status that are still scheduled.
+   */
+  public Map<TaskStatusCode, Long> getLive() {
+    return live;
+  }
+
+  /**
+   * @return number of tasks per status that have been retired.
+   */
+  public Map<TaskStatusCode, Long> getRetired() {
+    return retired;
+  }
+
+  /**
+   * @return end of the ranges scheduled so far.
+   */
+  public DateTime getScheduledTo() {
+    return scheduledTo;
+  }
+
+  @Override
+  public String toString() {
+    Map<TaskStatusCode, Long> total = new EnumMap<>(TaskStatusCode.class);
+    live.forEach((code, count) -> total.merge(code, count, Long::sum));
+    retired.forEach((code, count) -> total.merge(code, count, Long::sum));
+    return "ScheduleProgress{" +
+      "scheduledTo=" + scheduledTo +
+      ", tasks=" + total +
+      '}';
+  }
+}
@@ -0,0 +1,128 @@
+package org.deephacks.jobpipe;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Tasks of a schedule that have been validated once and that can be executed for any
+ * time range, without resolving task specs, ids and dependencies again. Created by
+ * {@link org.deephacks.jobpipe.JobSchedule.JobScheduleBuilder#template()}.
+ *
+ * <pre>
+ * ScheduleTemplate template = JobSchedule.newSchedule(context)
+ *   .task(new Task1()).add()
+ *   .template();
+ * template.execute(new TimeRange("2016-01-14")).awaitDone();
+ * template.execute(new TimeRange("2016-01-15")).awaitDone();
+ * </pre>
+ */
+public final class ScheduleTemplate {
+  private final TaskDefinition[] definitions;
+  final RateLimiter rateLimiter;
+  final ExecutionRegistry registry;
+  final LeaseCoordinator leases;
+  final RuntimeHistory history;
+  final JobObserver observer;
+  final String targetTaskId;
+  final String[] args;
+  final boolean verbose;
+  /** threads that check outputs before tasks are scheduled, or 0 */
+  final int preflight;
+  /** if tasks that only feed tasks with output are pruned */
+  final boolean prune;
+  /** ids of tasks that execute even if they have output, or null */
+  final Pattern forceRerun;
+
+  ScheduleTemplate(TaskDefinition[] definitions, RateLimiter rateLimiter, ExecutionRegistry registry,
+                   LeaseCoordinator leases, RuntimeHistory history, JobObserver observer,
+                   String targetTaskId, String[] args, boolean verbose, int preflight,
+                   boolean prune, Pattern forceRerun) {
+    this.definitions = definitions;
+    this.rateLimiter = rateLimiter;
+    this.registry = registry;
+    this.leases = leases;
+    this.history = history;
+    this.observer = observer;
+    this.targetTaskId = targetTaskId;
+    this.args = args;
+    this.verbose = verbose;
+    this.preflight = preflight;
+    this.prune = prune;
+    this.forceRerun = forceRerun;
+  }
+
+  /**
+   * Schedule the tasks of the template for a time range.
+   */
+  public JobSchedule execute(TimeRange range) {
+    return JobSchedule.start(this, range, null);
+  }
+
+  /**
+   * Check what the tasks of the template would do for a time range, without executing them.
+   *
+   * @param parallelism number of outputs that are checked at the same time.
+   */
+  public SchedulePlan plan(TimeRange range, int parallelism) {
+    return new JobSchedule(this, range, null).plan(range, parallelism);
+  }
+
+  /**
+   * @return ids of tasks in the order they were added.
+   */
+  public List<String> getTaskIds() {
+    List<String> ids = new ArrayList<>(definitions.length);
+    for (TaskDefinition definition : definitions) {
+      ids.add(definition.id);
+    }
+    return Collections.unmodifiableList(ids);
+  }
+
+  /**
+   * @return nodes of every task for each interval of the range, mapped by task id.
+   */
+  List<Map<String, List<Node>>> build(TimeRange range, int scheduleId) {
+    int intervals = range.intervalsBetween();
+    List<Map<String, List<Node>>> result = new ArrayList<>(intervals);
+    // nodes of each definition in the current interval
+    Node[][] nodes = new Node[definitions.length][];
+    TimeRange current = range.interval();
+    for (int i = 0; i < intervals; i++) {
+      Map<String, List<Node>> interval = new HashMap<>(definitions.length * 2);
+      for (int d = 0; d < definitions.length; d++) {
+        TaskDefinition definition = definitions[d];
+        List<TimeRange> ranges = definition.timeRangeType.ranges(current);
+        nodes[d] = new Node[ranges.size()];
+        for (int r = 0; r < nodes[d].length; r++) {
+          Node node = new Node(definition, scheduleId, ranges.get(r), args, observer, verbose);
+          for (int[] dep : definition.deps) {
+            boolean exist = false;
+            for (int index : dep) {
+              for (Node n : nodes[index]) {
+                node.addDependencies(n);
+                exist = true;
+              }
+            }
+            if (!exist) {
+              throw new IllegalArgumentException("Dependency " + definitions[dep[0]].id
+                + " does not exist in " + current);
+            }
+          }
+          nodes[d][r] = node;
+        }
+        if (nodes[d].length > 0) {
+          interval.computeIfAbsent(definition.id, id -> new ArrayList<>())
+            .addAll(Arrays.asList(nodes[d]));
+        }
+      }
+      result.add(interval);
+      current = current.next();
+    }
+    return result;
+  }
+}
@@ -5,5 +5,13 @@ import java.util.concurrent.TimeUnit;
 public interface Scheduler {
   void schedule(final Runnable runnable, final long delayTime, final TimeUnit unit);
 
+  /**
+   * Execute a task and return when it has finished. Tasks execute in the calling
+   * thread unless the scheduler decides otherwise.
+   */
+  default void execute(Task task, TaskContext context) {
+    task.execute(context);
+  }
+
   void shutdown();
 }
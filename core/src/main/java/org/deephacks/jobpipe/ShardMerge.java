@@ -0,0 +1,38 @@
+package org.deephacks.jobpipe;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Merge of a sharded task that does nothing, where the output exist when the output
+ * of every shard exist.
+ */
+final class ShardMerge implements Task {
+
+  @Override
+  public void execute(TaskContext context) {
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public <T extends TaskOutput> T getOutput(TaskContext context) {
+    return (T) new TaskOutput() {
+      @Override
+      public boolean exist() {
+        for (TaskOutput output : context.getShardOutputs()) {
+          if (!output.exist()) {
+            return false;
+          }
+        }
+        return true;
+      }
+
+      @Override
+      public Object get() {
+        List<Object> outputs = new ArrayList<>();
+        context.getShardOutputs().forEach(output -> outputs.add(output.get()));
+        return outputs;
+      }
+    };
+  }
+}
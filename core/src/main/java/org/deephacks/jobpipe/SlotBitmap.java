@@ -0,0 +1,413 @@
+package org.deephacks.jobpipe;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compressed set of non-negative int slots, split like a roaring bitmap into chunks of
+ * 65536 slots by the high 16 bits. Chunks with few slots keep them in a sorted array,
+ * other chunks in a bitmap, and chunks are written as runs when that is smaller, which
+ * is the common case for contiguous time slots. Not thread safe.
+ */
+final class SlotBitmap {
+  private static final int CHUNK = 1 << 16;
+  private static final int WORDS = CHUNK / 64;
+  /** chunks with more slots than this are kept as a bitmap */
+  private static final int MAX_ARRAY = 4096;
+  private static final byte ARRAY = 0;
+  private static final byte BITMAP = 1;
+  private static final byte RUNS = 2;
+
+  private int[] keys = new int[0];
+  private Chunk[] chunks = new Chunk[0];
+
+  SlotBitmap copy() {
+    SlotBitmap copy = new SlotBitmap();
+    copy.keys = keys.clone();
+    copy.chunks = new Chunk[chunks.length];
+    for (int i = 0; i < chunks.length; i++) {
+      copy.chunks[i] = chunks[i].copy();
+    }
+    return copy;
+  }
+
+  void add(int slot) {
+    checkSlot(slot);
+    int key = slot >>> 16;
+    int idx = Arrays.binarySearch(keys, key);
+    if (idx < 0) {
+      idx = -idx - 1;
+      insert(idx, key, new Chunk());
+    }
+    chunks[idx].add((char) slot);
+  }
+
+  /**
+   * @param from first slot, inclusive.
+   * @param to last slot, exclusive.
+   */
+  void add(int from, int to) {
+    for (int slot = from; slot < to; slot++) {
+      add(slot);
+    }
+  }
+
+  boolean contains(int slot) {
+    if (slot < 0) {
+      return false;
+    }
+    int idx = Arrays.binarySearch(keys, slot >>> 16);
+    return idx >= 0 && chunks[idx].contains((char) slot);
+  }
+
+  long cardinality() {
+    long cardinality = 0;
+    for (Chunk chunk : chunks) {
+      cardinality += chunk.cardinality;
+    }
+    return cardinality;
+  }
+
+  /**
+   * @return first slot in the set at or after from, or -1 if none.
+   */
+  int nextSlot(int from) {
+    from = Math.max(from, 0);
+    int idx = Arrays.binarySearch(keys, from >>> 16);
+    int low = from & 0xFFFF;
+    if (idx < 0) {
+      idx = -idx - 1;
+      low = 0;
+    }
+    for (; idx < keys.length; idx++, low = 0) {
+      int next = chunks[idx].next(low);
+      if (next >= 0) {
+        return keys[idx] << 16 | next;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * @return first slot not in the set at or after from.
+   */
+  int nextMissing(int from) {
+    int slot = Math.max(from, 0);
+    while (true) {
+      int idx = Arrays.binarySearch(keys, slot >>> 16);
+      if (idx < 0) {
+        return slot;
+      }
+      int next = chunks[idx].nextClear(slot & 0xFFFF);
+      if (next >= 0) {
+        return keys[idx] << 16 | next;
+      }
+      if (keys[idx] == 0x7FFF) {
+        return Integer.MAX_VALUE;
+      }
+      slot = (keys[idx] + 1) << 16;
+    }
+  }
+
+  SlotBitmap and(SlotBitmap other) {
+    SlotBitmap result = new SlotBitmap();
+    for (int i = 0; i < keys.length; i++) {
+      int idx = Arrays.binarySearch(other.keys, keys[i]);
+      if (idx >= 0) {
+        long[] bits = chunks[i].toBits();
+        long[] o = other.chunks[idx].toBits();
+        for (int w = 0; w < WORDS; w++) {
+          bits[w] &= o[w];
+        }
+        result.append(keys[i], Chunk.of(bits));
+      }
+    }
+    return result;
+  }
+
+  SlotBitmap or(SlotBitmap other) {
+    SlotBitmap result = new SlotBitmap();
+    int i = 0;
+    int j = 0;
+    while (i < keys.length || j < other.keys.length) {
+      if (j == other.keys.length || (i < keys.length && keys[i] < other.keys[j])) {
+        result.append(keys[i], chunks[i++].copy());
+      } else if (i == keys.length || other.keys[j] < keys[i]) {
+        result.append(other.keys[j], other.chunks[j++].copy());
+      } else {
+        long[] bits = chunks[i].toBits();
+        long[] o = other.chunks[j].toBits();
+        for (int w = 0; w < WORDS; w++) {
+          bits[w] |= o[w];
+        }
+        result.append(keys[i], Chunk.of(bits));
+        i++;
+        j++;
+      }
+    }
+    return result;
+  }
+
+  SlotBitmap andNot(SlotBitmap other) {
+    SlotBitmap result = new SlotBitmap();
+    for (int i = 0; i < keys.length; i++) {
+      int idx = Arrays.binarySearch(other.keys, keys[i]);
+      if (idx < 0) {
+        result.append(keys[i], chunks[i].copy());
+      } else {
+        long[] bits = chunks[i].toBits();
+        long[] o = other.chunks[idx].toBits();
+        for (int w = 0; w < WORDS; w++) {
+          bits[w] &= ~o[w];
+        }
+        result.append(keys[i], Chunk.of(bits));
+      }
+    }
+    return result;
+  }
+
+  void write(DataOutput out) throws IOException {
+    out.writeInt(keys.length);
+    for (int i = 0; i < keys.length; i++) {
+      out.writeShort(keys[i]);
+      chunks[i].write(out);
+    }
+  }
+
+  static SlotBitmap read(DataInput in) throws IOException {
+    SlotBitmap bitmap = new SlotBitmap();
+    int size = in.readInt();
+    for (int i = 0; i < size; i++) {
+      int key = in.readUnsignedShort();
+      bitmap.append(key, Chunk.read(in));
+    }
+    return bitmap;
+  }
+
+  /**
+   * Add a chunk with a key greater than all other keys, empty chunks are dropped.
+   */
+  private void append(int key, Chunk chunk) {
+    if (chunk.cardinality > 0) {
+      insert(keys.length, key, chunk);
+    }
+  }
+
+  private void insert(int idx, int key, Chunk chunk) {
+    int[] k = new int[keys.length + 1];
+    Chunk[] c = new Chunk[chunks.length + 1];
+    System.arraycopy(keys, 0, k, 0, idx);
+    System.arraycopy(chunks, 0, c, 0, idx);
+    k[idx] = key;
+    c[idx] = chunk;
+    System.arraycopy(keys, idx, k, idx + 1, keys.length - idx);
+    System.arraycopy(chunks, idx, c, idx + 1, chunks.length - idx);
+    keys = k;
+    chunks = c;
+  }
+
+  private static void checkSlot(int slot) {
+    if (slot < 0) {
+      throw new IllegalArgumentException("Negative slot " + slot);
+    }
+  }
+
+  /**
+   * Slots with the same high 16 bits, as a sorted array or a bitmap.
+   */
+  private static final class Chunk {
+    private char[] array = new char[4];
+    private long[] bits;
+    private int cardinality;
+
+    static Chunk of(long[] bits) {
+      Chunk chunk = new Chunk();
+      for (long word : bits) {
+        chunk.cardinality += Long.bitCount(word);
+      }
+      if (chunk.cardinality > MAX_ARRAY) {
+        chunk.array = null;
+        chunk.bits = bits;
+      } else {
+        chunk.array = new char[chunk.cardinality];
+        int n = 0;
+        for (int w = 0; w < WORDS; w++) {
+          long word = bits[w];
+          while (word != 0) {
+            chunk.array[n++] = (char) (w * 64 + Long.numberOfTrailingZeros(word));
+            word &= word - 1;
+          }
+        }
+      }
+      return chunk;
+    }
+
+    Chunk copy() {
+      Chunk copy = new Chunk();
+      copy.array = array == null ? null : Arrays.copyOf(array, cardinality);
+      copy.bits = bits == null ? null : bits.clone();
+      copy.cardinality = cardinality;
+      return copy;
+    }
+
+    void add(char low) {
+      if (bits != null) {
+        long word = bits[low >>> 6];
+        long bit = 1L << low;
+        if ((word & bit) == 0) {
+          bits[low >>> 6] = word | bit;
+          cardinality++;
+        }
+        return;
+      }
+      int idx = Arrays.binarySearch(array, 0, cardinality, low);
+      if (idx >= 0) {
+        return;
+      }
+      if (cardinality == MAX_ARRAY) {
+        bits = toBits();
+        array = null;
+        add(low);
+        return;
+      }
+      idx = -idx - 1;
+      if (cardinality == array.length) {
+        array = Arrays.copyOf(array, Math.min(MAX_ARRAY, Math.max(4, array.length * 2)));
+      }
+      System.arraycopy(array, idx, array, idx + 1, cardinality - idx);
+      array[idx] = low;
+      cardinality++;
+    }
+
+    boolean contains(char low) {
+      if (bits != null) {
+        return (bits[low >>> 6] & (1L << low)) != 0;
+      }
+      return Arrays.binarySearch(array, 0, cardinality, low) >= 0;
+    }
+
+    /**
+     * @return first slot at or after low, or -1 if none.
+     */
+    int next(int low) {
+      if (bits == null) {
+        int idx = Arrays.binarySearch(array, 0, cardinality, (char) low);
+        idx = idx < 0 ? -idx - 1 : idx;
+        return idx < cardinality ? array[idx] : -1;
+      }
+      int w = low >>> 6;
+      long word = bits[w] & (-1L << low);
+      while (true) {
+        if (word != 0) {
+          return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+        if (++w == WORDS) {
+          return -1;
+        }
+        word = bits[w];
+      }
+    }
+
+    /**
+     * @return first slot not in the chunk at or after low, or -1 if all are.
+     */
+    int nextClear(int low) {
+      if (bits == null) {
+        int idx = Arrays.binarySearch(array, 0, cardinality, (char) low);
+        if (idx < 0) {
+          return low;
+        }
+        // slots are consecutive as long as they match their distance from low
+        while (idx < cardinality && array[idx] == low) {
+          idx++;
+          low++;
+        }
+        return low < CHUNK ? low : -1;
+      }
+      int w = low >>> 6;
+      long word = ~bits[w] & (-1L << low);
+      while (true) {
+        if (word != 0) {
+          return w * 64 + Long.numberOfTrailingZeros(word);
+        }
+        if (++w == WORDS) {
+          return -1;
+        }
+        word = ~bits[w];
+      }
+    }
+
+    long[] toBits() {
+      if (bits != null) {
+        return bits.clone();
+      }
+      long[] result = new long[WORDS];
+      for (int i = 0; i < cardinality; i++) {
+        result[array[i] >>> 6] |= 1L << array[i];
+      }
+      return result;
+    }
+
+    void write(DataOutput out) throws IOException {
+      int runs = 0;
+      for (int low = next(0); low >= 0; ) {
+        runs++;
+        int end = nextClear(low);
+        low = end < 0 ? -1 : next(end);
+      }
+      int arrayBytes = 2 * cardinality;
+      int runBytes = 4 * runs;
+      if (runBytes < arrayBytes && runBytes < WORDS * 8) {
+        out.writeByte(RUNS);
+        out.writeShort(runs);
+        for (int low = next(0); low >= 0; ) {
+          int end = nextClear(low);
+          out.writeShort(low);
+          out.writeShort((end < 0 ? CHUNK : end) - low - 1);
+          low = end < 0 ? -1 : next(end);
+        }
+      } else if (arrayBytes <= WORDS * 8) {
+        out.writeByte(ARRAY);
+        out.writeShort(cardinality - 1);
+        for (int i = 0; i < cardinality; i++) {
+          out.writeChar(array[i]);
+        }
+      } else {
+        out.writeByte(BITMAP);
+        for (long word : bits) {
+          out.writeLong(word);
+        }
+      }
+    }
+
+    static Chunk read(DataInput in) throws IOException {
+      byte type = in.readByte();
+      long[] bits = new long[WORDS];
+      if (type == RUNS) {
+        int runs = in.readUnsignedShort();
+        for (int r = 0; r < runs; r++) {
+          int start = in.readUnsignedShort();
+          int end = start + in.readUnsignedShort();
+          for (int low = start; low <= end; low++) {
+            bits[low >>> 6] |= 1L << low;
+          }
+        }
+      } else if (type == ARRAY) {
+        int cardinality = in.readUnsignedShort() + 1;
+        for (int i = 0; i < cardinality; i++) {
+          int low = in.readChar();
+          bits[low >>> 6] |= 1L << low;
+        }
+      } else if (type == BITMAP) {
+        for (int w = 0; w < WORDS; w++) {
+          bits[w] = in.readLong();
+        }
+      } else {
+        throw new IOException("Unknown chunk type " + type);
+      }
+      return of(bits);
+    }
+  }
+}
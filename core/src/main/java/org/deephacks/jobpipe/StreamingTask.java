@@ -0,0 +1,28 @@
+package org.deephacks.jobpipe;
+
+/**
+ * A task that folds in the output of the tasks it depends on while they execute,
+ * instead of waiting for all of them to finish, like a day aggregate that adds each
+ * hour as soon as it is done.
+ *
+ * Tasks it depends on directly publish chunks with {@link TaskContext#publish(Object, org.joda.time.DateTime)}
+ * and every dependency delivers a final chunk with its output when it finishes or is
+ * skipped. {@link #execute(TaskContext)} is called as usual when all dependencies are done,
+ * to finish what the chunks started.
+ *
+ * Chunks are delivered in the process of the schedule, one at a time for each context.
+ * An attempt that is retried or speculated publishes its chunks again, so chunks should
+ * be folded in a way where duplicates do no harm, like replacing a value by time range.
+ */
+public interface StreamingTask extends Task {
+
+  /**
+   * Called for each chunk published by a direct dependency, before the task executes.
+   *
+   * Any exception thrown will fail this task when it executes.
+   *
+   * @param context the context of this task.
+   * @param chunk published chunk.
+   */
+  void accept(TaskContext context, Chunk chunk);
+}
@@ -1,7 +1,10 @@
 package org.deephacks.jobpipe;
 
+import org.joda.time.DateTime;
+
+import java.util.ArrayList;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.Optional;
 
 /**
  * Provides information regarding the current task execution.
@@ -11,6 +14,8 @@ public class TaskContext {
   final String id;
   final Node node;
   final String[] args;
+  private volatile DependencyOutputs directOutputs;
+  private volatile DependencyOutputs transitiveOutputs;
 
   TaskContext(Node node) {
     this.scheduleId = node.getScheduleId();
@@ -20,7 +25,7 @@ public class TaskContext {
   }
 
   public boolean hasOutput() {
-    return node.getTask().getOutput(this).exist();
+    return node.getTaskOutput().exist();
   }
 
   /**
@@ -51,6 +56,20 @@ public class TaskContext {
     return node.getStatus();
   }
 
+  /**
+   * @return the deadline of this task, or the earliest deadline of tasks that depend on it.
+   */
+  public Optional<DateTime> getDeadline() {
+    return Optional.ofNullable(node.getEffectiveDeadline());
+  }
+
+  /**
+   * @return signals if the execution of this task has been cancelled.
+   */
+  public CancellationToken getCancellation() {
+    return node.getCancellation();
+  }
+
   /**
    * @return arguments given when the pipeline was started.
    */
@@ -59,12 +78,146 @@ public class TaskContext {
   }
 
   /**
-   * @return output from this task dependent tasks.
+   * @return output from this task dependent tasks, direct and transitive.
    */
   public List<TaskOutput> getDependecyOutput() {
-    return node.getDependencies().stream()
-      .map(n -> n.getTaskOutput())
-      .collect(Collectors.toList());
+    return getTransitiveDependencyOutputs().list();
+  }
+
+  /**
+   * @return output of a direct dependency for a specific time range, or null if no such dependency.
+   */
+  public <T extends TaskOutput> T getDependencyOutput(String id, TimeRange range) {
+    return getDirectDependencyOutputs().get(id, range);
+  }
+
+  /**
+   * @return output of tasks that this task depends on directly.
+   */
+  public DependencyOutputs getDirectDependencyOutputs() {
+    DependencyOutputs outputs = directOutputs;
+    if (outputs == null) {
+      outputs = new DependencyOutputs(node.getDirectDependencies());
+      directOutputs = outputs;
+    }
+    return outputs;
+  }
+
+  /**
+   * @return output of tasks that this task depends on, direct and transitive.
+   */
+  public DependencyOutputs getTransitiveDependencyOutputs() {
+    DependencyOutputs outputs = transitiveOutputs;
+    if (outputs == null) {
+      outputs = new DependencyOutputs(node.getDependencies());
+      transitiveOutputs = outputs;
+    }
+    return outputs;
+  }
+
+  /**
+   * Deliver a chunk of output to {@link StreamingTask} that depend on this task directly,
+   * without moving the watermark.
+   */
+  public void publish(Object chunk) {
+    node.publish(chunk, null);
+  }
+
+  /**
+   * Deliver a chunk of output to {@link StreamingTask} that depend on this task directly.
+   * Chunks published after the task is done are ignored.
+   *
+   * @param watermark time before which all output of this task has been published,
+   *                  which never moves backwards or past the end of the time range.
+   */
+  public void publish(Object chunk, DateTime watermark) {
+    node.publish(chunk, watermark);
+  }
+
+  /**
+   * @return earliest watermark of the tasks that this task depend on directly, before
+   * which all their output has been published, or null if there are no dependencies.
+   */
+  public DateTime getInputWatermark() {
+    DateTime watermark = null;
+    for (Node dependency : node.getDirectDependencies()) {
+      DateTime w = dependency.getWatermark();
+      if (watermark == null || w.isBefore(watermark)) {
+        watermark = w;
+      }
+    }
+    return watermark;
+  }
+
+  /**
+   * @return index of the shard that executes, between 0 and {@link #getShardCount()}.
+   */
+  public int getShard() {
+    return node.getShard();
+  }
+
+  /**
+   * @return number of shards of the task, 1 if the task is not sharded.
+   */
+  public int getShardCount() {
+    return node.getShardCount();
+  }
+
+  /**
+   * Partition input by key, where each key is owned by exactly one shard.
+   *
+   * @return true if the key belongs to the shard that executes.
+   */
+  public boolean ownsKey(Object key) {
+    return Math.floorMod(key.hashCode(), node.getShardCount()) == node.getShard();
+  }
+
+  /**
+   * @return output of each shard in shard order, when this task is the merge of a
+   * sharded task, otherwise empty.
+   */
+  public List<TaskOutput> getShardOutputs() {
+    List<TaskOutput> outputs = new ArrayList<>();
+    for (Node dependency : node.getDirectDependencies()) {
+      if (dependency.getShardCount() > 1
+        && dependency.getId().equals(TaskDefinition.shardId(id, dependency.getShard()))) {
+        outputs.add(dependency.getTaskOutput());
+      }
+    }
+    return outputs;
+  }
+
+  /**
+   * Add a child task to the schedule while this task executes. Children execute in parallel
+   * with each other, and tasks that depend on this task wait until its children are done.
+   * A child that fails fails this task. A retry of this task that spawns a child with the
+   * same name and time range gets the child of the earlier attempt.
+   *
+   * @param name unique name among the children, the id of the child is the id of this
+   *             task followed by '/' and the name.
+   * @param range time range of the child.
+   * @param dependencies children of this task that the child depend on.
+   * @return context of the child.
+   */
+  public TaskContext spawn(String name, Task task, TimeRange range, TaskContext... dependencies) {
+    JobSchedule schedule = node.getSchedule();
+    if (schedule == null) {
+      throw new IllegalStateException("Tasks can only be spawned while " + this + " executes in a schedule");
+    }
+    List<Node> deps = new ArrayList<>(dependencies.length);
+    for (TaskContext dependency : dependencies) {
+      deps.add(dependency.node);
+    }
+    return schedule.spawn(node, name, task, range, deps).getContext();
+  }
+
+  /**
+   * Add a child task with the time range of this task.
+   *
+   * @see #spawn(String, Task, TimeRange, TaskContext...)
+   */
+  public TaskContext spawn(String name, Task task, TaskContext... dependencies) {
+    return spawn(name, task, getTimeRange(), dependencies);
   }
 
   @Override
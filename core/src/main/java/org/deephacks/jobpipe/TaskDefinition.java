@@ -0,0 +1,74 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.Duration;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A validated task of a {@link ScheduleTemplate}, from which a node is created for
+ * each time range of the task.
+ */
+final class TaskDefinition {
+  final String id;
+  final Task task;
+  final TimeRangeType timeRangeType;
+  final Scheduler scheduler;
+  /** for each dependency id, indexes of the definitions in the template with that id */
+  final int[][] deps;
+  final int retries;
+  final RateLimiter rateLimiter;
+  final int batchSize;
+  final Duration deadline;
+  final Duration atRisk;
+  final double speculation;
+  final Duration timeout;
+  final List<HostSemaphore> semaphores;
+  /** index of the shard, 0 if the task is not sharded */
+  final int shard;
+  /** number of shards of the task, 1 if the task is not sharded */
+  final int shards;
+
+  TaskDefinition(String id, Task task, TimeRangeType timeRangeType, Scheduler scheduler, int[][] deps,
+                 int retries, RateLimiter rateLimiter, int batchSize, Duration deadline, Duration atRisk,
+                 double speculation, Duration timeout, List<HostSemaphore> semaphores, int shard, int shards) {
+    this.id = id;
+    this.task = task;
+    this.timeRangeType = timeRangeType;
+    this.scheduler = scheduler;
+    this.deps = deps;
+    this.retries = retries;
+    this.rateLimiter = rateLimiter;
+    this.batchSize = batchSize;
+    this.deadline = deadline;
+    this.atRisk = atRisk;
+    this.speculation = speculation;
+    this.timeout = timeout;
+    this.semaphores = semaphores;
+    this.shard = shard;
+    this.shards = shards;
+  }
+
+  /**
+   * @return a definition without retries, limits or dependencies.
+   */
+  static TaskDefinition simple(String id, Task task, TimeRangeType timeRangeType, Scheduler scheduler) {
+    return simple(id, task, timeRangeType, scheduler, 0, 1);
+  }
+
+  /**
+   * @return a shard of a definition without retries, limits or dependencies.
+   */
+  static TaskDefinition simple(String id, Task task, TimeRangeType timeRangeType, Scheduler scheduler,
+                               int shard, int shards) {
+    return new TaskDefinition(id, task, timeRangeType, scheduler, new int[0][], 0, null, 1,
+      null, null, 0, null, Collections.emptyList(), shard, shards);
+  }
+
+  /**
+   * @return id of a shard of a task.
+   */
+  static String shardId(String id, int shard) {
+    return id + "#" + shard;
+  }
+}
@@ -0,0 +1,136 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes a task with its time range, arguments and dependencies, for executing it
+ * in another JVM.
+ *
+ * Tasks that implement {@link java.io.Serializable} are serialized, other tasks are
+ * created by their no-arg constructor.
+ */
+final class TaskRequest {
+  /** nodes that are read execute in the calling thread and are never scheduled */
+  private static final Scheduler LOCAL = new Scheduler() {
+    @Override
+    public void schedule(Runnable runnable, long delayTime, TimeUnit unit) {
+      throw new UnsupportedOperationException("tasks of requests are not scheduled");
+    }
+
+    @Override
+    public void shutdown() {
+    }
+  };
+
+  private TaskRequest() {
+  }
+
+  /**
+   * Write the node and its dependencies, where dependencies refer to other nodes by index.
+   */
+  static void write(DataOutputStream out, Node node) throws IOException {
+    List<Node> nodes = new ArrayList<>();
+    nodes.add(node);
+    nodes.addAll(node.getDependencies());
+    Map<Node, Integer> index = new HashMap<>();
+    for (int i = 0; i < nodes.size(); i++) {
+      index.put(nodes.get(i), i);
+    }
+    out.writeInt(node.getScheduleId());
+    String[] args = node.getContext().getArgs();
+    out.writeInt(args.length);
+    for (String arg : args) {
+      out.writeUTF(arg);
+    }
+    out.writeInt(nodes.size());
+    for (Node n : nodes) {
+      out.writeUTF(n.getId());
+      writeTask(out, n.getTask());
+      TimeRange range = n.getRange();
+      out.writeLong(range.from().getMillis());
+      out.writeUTF(range.from().getZone().getID());
+      out.writeUTF(range.getType().name());
+      out.writeInt(range.intervalsBetween());
+      out.writeInt(n.getShard());
+      out.writeInt(n.getShardCount());
+    }
+    for (Node n : nodes) {
+      out.writeInt(n.getDirectDependencies().size());
+      for (Node dep : n.getDirectDependencies()) {
+        out.writeInt(index.get(dep));
+      }
+    }
+  }
+
+  private static void writeTask(DataOutputStream out, Task task) throws IOException {
+    if (task instanceof Serializable) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+        oos.writeObject(task);
+      }
+      out.writeBoolean(true);
+      out.writeInt(bytes.size());
+      out.write(bytes.toByteArray());
+    } else {
+      out.writeBoolean(false);
+      out.writeUTF(task.getClass().getName());
+    }
+  }
+
+  /**
+   * @return the node that was written, in status running.
+   */
+  static Node read(DataInputStream in) throws Exception {
+    int scheduleId = in.readInt();
+    String[] args = new String[in.readInt()];
+    for (int i = 0; i < args.length; i++) {
+      args[i] = in.readUTF();
+    }
+    Node[] nodes = new Node[in.readInt()];
+    for (int i = 0; i < nodes.length; i++) {
+      String id = in.readUTF();
+      Task task = readTask(in);
+      DateTime from = new DateTime(in.readLong(), DateTimeZone.forID(in.readUTF()));
+      TimeRange range = new TimeRange(from, TimeRangeType.valueOf(in.readUTF()), in.readInt());
+      int shard = in.readInt();
+      TaskDefinition definition = TaskDefinition.simple(id, task, range.getType(), LOCAL, shard, in.readInt());
+      nodes[i] = new Node(definition, scheduleId, range, args, null, false);
+    }
+    for (Node node : nodes) {
+      int deps = in.readInt();
+      for (int i = 0; i < deps; i++) {
+        node.addDependencies(nodes[in.readInt()]);
+      }
+    }
+    nodes[0].getStatus().running();
+    return nodes[0];
+  }
+
+  private static Task readTask(DataInputStream in) throws Exception {
+    if (in.readBoolean()) {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+        return (Task) ois.readObject();
+      }
+    }
+    return (Task) Class.forName(in.readUTF()).getDeclaredConstructor().newInstance();
+  }
+
+  /**
+   * @return stack trace of a failed task, short enough for {@link DataOutput#writeUTF(String)}.
+   */
+  static String failure(Throwable e) {
+    StringWriter trace = new StringWriter();
+    e.printStackTrace(new PrintWriter(trace));
+    return trace.toString().substring(0, Math.min(trace.getBuffer().length(), 16384));
+  }
+}
@@ -0,0 +1,13 @@
+package org.deephacks.jobpipe;
+
+/**
+ * A runnable given to a {@link org.deephacks.jobpipe.Scheduler} that executes a task,
+ * which let schedulers decide in which order tasks should run.
+ */
+public interface TaskRunnable extends Runnable {
+
+  /**
+   * @return context of the task that is executed by this runnable.
+   */
+  TaskContext getContext();
+}
@@ -54,6 +54,10 @@ public class TaskStatus {
     return context;
   }
 
+  boolean isVerbose() {
+    return verbose;
+  }
+
   public long getLastUpdate() {
     return lastUpdate;
   }
@@ -73,11 +77,38 @@ public class TaskStatus {
       if (code == TaskStatusCode.ERROR_EXECUTE) {
         Debug.debug(this.failReason, verbose);
       }
-      return notifyObserver();
+      boolean notified = notifyObserver();
+      if (isDone()) {
+        // failed tasks no longer read their dependencies either
+        context.node.consumeDependencies();
+      }
+      return notified;
     }
     return true;
   }
 
+  void slaAtRisk() {
+    Debug.debug(context + " SLA at risk " + code, verbose);
+    try {
+      if (observer != null) {
+        observer.slaAtRisk(this);
+      }
+    } catch (Throwable e) {
+      Debug.debug(e, verbose);
+    }
+  }
+
+  void slaMissed() {
+    Debug.debug(context + " SLA missed " + code, verbose);
+    try {
+      if (observer != null) {
+        observer.slaMissed(this);
+      }
+    } catch (Throwable e) {
+      Debug.debug(e, verbose);
+    }
+  }
+
   private boolean notifyObserver() {
     try {
       setLastUpdate();
@@ -111,11 +142,24 @@ public class TaskStatus {
     setCode(TaskStatusCode.ERROR_NO_INPUT);
   }
 
+  void cancelled(Throwable reason) {
+    this.failReason = reason;
+    setCode(TaskStatusCode.ERROR_SIGTERM);
+  }
+
   void finished() {
+    if (hasFailed()) {
+      return;
+    }
+    context.node.closeStream();
     setCode(TaskStatusCode.FINISHED);
   }
 
   void skipped() {
+    if (hasFailed()) {
+      return;
+    }
+    context.node.closeStream();
     setCode(TaskStatusCode.SKIPPED);
   }
 
@@ -159,7 +203,7 @@ public class TaskStatus {
     ERROR_DEPENDENCY,
     /** observer aborted the task */
     ERROR_ABORTED,
-    /** the program aborted with SIGTERM */
+    /** the task was cancelled, timed out or the program aborted with SIGTERM */
     ERROR_SIGTERM
   }
 }
@@ -0,0 +1,153 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.Backfill.Order;
+import org.deephacks.jobpipe.LeaseCoordinatorTest.CountingTask;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.fail;
+import static org.junit.Assert.assertThat;
+
+public class BackfillTest {
+  static final String RANGE = "2013-12-23T15:16/2013-12-23T15:26";
+
+  @Test
+  public void testOrder() throws Exception {
+    TimeRange range = new TimeRange("2013-12-23T15:16/2013-12-23T15:21");
+    assertThat(order(range, Order.OLDEST_FIRST), is(Arrays.asList(0, 1, 2, 3, 4)));
+    assertThat(order(range, Order.NEWEST_FIRST), is(Arrays.asList(4, 3, 2, 1, 0)));
+    assertThat(order(range, Order.BISECT), is(Arrays.asList(0, 4, 2, 1, 3)));
+
+    OrderTask task = new OrderTask(Files.createTempDirectory("a").toFile());
+    ScheduleTemplate template = JobSchedule.newSchedule(range)
+      .task(task).id("a").timeRange(MINUTE).add()
+      .template();
+    Backfill.newBackfill(template, range).order(Order.NEWEST_FIRST).execute().awaitDone();
+    assertThat(task.order.get(0), is(new TimeRange("2013-12-23T15:20")));
+    assertThat(task.order.get(4), is(new TimeRange("2013-12-23T15:16")));
+  }
+
+  @Test
+  public void testMaxInFlight() throws Exception {
+    OrderTask task = new OrderTask(Files.createTempDirectory("a").toFile());
+    TimeRange range = new TimeRange(RANGE);
+    Backfill backfill = Backfill.newBackfill(JobSchedule.newSchedule(range)
+      .scheduler(new DefaultScheduler(4))
+      .task(task).id("a").timeRange(MINUTE).add()
+      .template(), range)
+      .maxInFlight(3)
+      .execute().awaitDone();
+    assertThat(backfill.getCompleted(), is(10));
+    assertThat(backfill.getInFlight(), is(0));
+    assertTrue(backfill.isDone());
+    assertThat(task.executions.size(), is(10));
+    assertThat(task.maxRunning.get(), is(3));
+  }
+
+  @Test
+  public void testCheckpointFailure() throws Exception {
+    OrderTask task = new OrderTask(Files.createTempDirectory("a").toFile());
+    TimeRange range = new TimeRange(RANGE);
+    // the parent of the checkpoint is a file, so the checkpoint cannot be written
+    File parent = Files.createTempFile("backfill", "").toFile();
+    Backfill backfill = Backfill.newBackfill(JobSchedule.newSchedule(range)
+      .scheduler(new DefaultScheduler(4))
+      .task(task).id("a").timeRange(MINUTE).add()
+      .template(), range)
+      .maxInFlight(3)
+      .checkpoint(new File(parent, "checkpoint"))
+      .execute();
+    try {
+      backfill.awaitDone();
+      fail("checkpoint failure was not thrown");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause().getCause() instanceof IOException);
+    }
+    assertThat(backfill.getInFlight(), is(0));
+    assertTrue(backfill.getCompleted() < 10);
+    try {
+      backfill.isDone();
+      fail("checkpoint failure was not thrown");
+    } catch (RuntimeException e) {
+      assertTrue(e.getCause().getCause() instanceof IOException);
+    }
+  }
+
+  @Test
+  public void testPauseAndResume() throws Exception {
+    OrderTask task = new OrderTask(Files.createTempDirectory("a").toFile());
+    TimeRange range = new TimeRange(RANGE);
+    ScheduleTemplate template = JobSchedule.newSchedule(range)
+      .task(task).id("a").timeRange(MINUTE).add()
+      .template();
+    File checkpoint = new File(Files.createTempDirectory("backfill").toFile(), "checkpoint");
+    Backfill first = Backfill.newBackfill(template, range)
+      .order(Order.BISECT)
+      .maxInFlight(2)
+      .checkpoint(checkpoint)
+      .pauseWhen(() -> task.executions.size() >= 4)
+      .execute();
+    while (!first.isPaused()) {
+      Thread.sleep(10);
+    }
+    first.stop();
+    first.awaitDone();
+    int completed = first.getCompleted();
+    assertTrue(completed >= 4 && completed < 10);
+
+    Backfill second = Backfill.newBackfill(template, range)
+      .order(Order.BISECT)
+      .maxInFlight(2)
+      .checkpoint(checkpoint)
+      .execute().awaitDone();
+    assertThat(second.getCompleted(), is(10 - completed));
+    assertThat(task.executions.size(), is(10));
+    task.executions.values().forEach(count -> assertThat(count.get(), is(1)));
+    assertTrue(second.getFailed().isEmpty());
+  }
+
+  private static List<Integer> order(TimeRange range, Order order) throws Exception {
+    ScheduleTemplate template = JobSchedule.newSchedule(range).template();
+    Backfill backfill = Backfill.newBackfill(template, range).order(order).execute().awaitDone();
+    List<Integer> indexes = new ArrayList<>();
+    for (int position = 0; indexes.size() < range.intervalsBetween(); position++) {
+      int index = backfill.index(position);
+      if (index >= 0) {
+        indexes.add(index);
+      }
+    }
+    return indexes;
+  }
+
+  static class OrderTask extends CountingTask {
+    final List<TimeRange> order = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+
+    OrderTask(File dir) {
+      super(dir);
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      order.add(ctx.getTimeRange());
+      maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+      try {
+        super.execute(ctx);
+      } finally {
+        running.decrementAndGet();
+      }
+    }
+  }
+}
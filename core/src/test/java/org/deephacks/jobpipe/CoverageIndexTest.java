@@ -0,0 +1,134 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.LeaseCoordinatorTest.CountingTask;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.deephacks.jobpipe.TimeRangeType.HOUR;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class CoverageIndexTest {
+
+  @Test
+  public void testSlotBitmap() throws Exception {
+    Random random = new Random(1);
+    // sparse, dense and contiguous chunks
+    BitSet expected = new BitSet();
+    SlotBitmap bitmap = new SlotBitmap();
+    for (int i = 0; i < 1000; i++) {
+      int slot = random.nextInt(1 << 16);
+      expected.set(slot);
+      bitmap.add(slot);
+    }
+    for (int i = 0; i < 20000; i++) {
+      int slot = (1 << 16) + random.nextInt(1 << 16);
+      expected.set(slot);
+      bitmap.add(slot);
+    }
+    expected.set(3 << 16, (3 << 16) + 50000);
+    bitmap.add(3 << 16, (3 << 16) + 50000);
+    assertThat(bitmap.cardinality(), is((long) expected.cardinality()));
+    assertEquals(expected, bitmap);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    bitmap.write(new DataOutputStream(bytes));
+    SlotBitmap read = SlotBitmap.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    assertEquals(expected, read);
+    // the contiguous chunk is written as a single run
+    assertTrue(bytes.size() < 1000 * 2 + 8192 + 100);
+
+    SlotBitmap other = new SlotBitmap();
+    BitSet o = new BitSet();
+    for (int i = 0; i < 30000; i++) {
+      int slot = random.nextInt(4 << 16);
+      o.set(slot);
+      other.add(slot);
+    }
+    BitSet and = (BitSet) expected.clone();
+    and.and(o);
+    assertEquals(and, bitmap.and(other));
+    BitSet or = (BitSet) expected.clone();
+    or.or(o);
+    assertEquals(or, bitmap.or(other));
+    BitSet andNot = (BitSet) expected.clone();
+    andNot.andNot(o);
+    assertEquals(andNot, bitmap.andNot(other));
+  }
+
+  @Test
+  public void testMissing() throws Exception {
+    CoverageIndex index = new CoverageIndex();
+    assertNull(index.get("a"));
+    TimeRange day = new TimeRange("2016-01-14");
+    assertThat(index.missing("a", day), is(Arrays.asList(day)));
+    index.add("a", new TimeRange("2016-01-14T00/2016-01-14T10"));
+    index.add("a", new TimeRange("2016-01-14T12/2016-01-14T22"));
+    index.add("b", new TimeRange("2016-01-14T02/2016-01-14T04"));
+
+    List<TimeRange> missing = index.missing("a", day);
+    assertThat(missing.size(), is(2));
+    assertThat(missing.get(0), is(new TimeRange("2016-01-14T10")));
+    assertThat(missing.get(0).intervalsBetween(), is(2));
+    assertThat(missing.get(1), is(new TimeRange("2016-01-14T22")));
+    assertThat(missing.get(1).intervalsBetween(), is(2));
+    assertTrue(index.get("a").contains(new TimeRange("2016-01-14T01/2016-01-14T09")));
+    assertThat(index.get("a").contains(day), is(false));
+
+    // present upstream and missing downstream
+    List<TimeRange> gaps = index.missing("b", "a", day);
+    assertThat(gaps.size(), is(3));
+    assertThat(gaps.get(0), is(new TimeRange("2016-01-14T00")));
+    assertThat(gaps.get(0).intervalsBetween(), is(2));
+    assertThat(gaps.get(1), is(new TimeRange("2016-01-14T04")));
+    assertThat(gaps.get(1).intervalsBetween(), is(6));
+    assertThat(gaps.get(2).intervalsBetween(), is(10));
+    assertThat(index.get("a").and(index.get("b")).count(), is(2L));
+  }
+
+  @Test
+  public void testSchedule() throws Exception {
+    CountingTask a = new CountingTask(Files.createTempDirectory("a").toFile());
+    assertTrue(new File(a.dir, "2013-12-23T15:16").createNewFile());
+    File dir = Files.createTempDirectory("coverage").toFile();
+    CoverageIndex index = new CoverageIndex(dir);
+    JobSchedule.newSchedule("2013-12-23T15:16/2013-12-23T15:19")
+      .coverageIndex(index)
+      .task(a).id("a").timeRange(MINUTE).add()
+      .task(new CountingTask(Files.createTempDirectory("b").toFile())).id("b").timeRange(HOUR).add()
+      .execute().awaitDone();
+    assertThat(index.get("a").count(), is(3L));
+    assertNull(index.get("b"));
+    index.write();
+
+    CoverageIndex read = new CoverageIndex(dir);
+    assertThat(read.get("a").getType(), is(MINUTE));
+    assertTrue(read.get("a").contains(new TimeRange("2013-12-23T15:16/2013-12-23T15:19")));
+    assertThat(read.missing("a", new TimeRange("2013-12-23T15")).size(), is(2));
+  }
+
+  private static void assertEquals(BitSet expected, SlotBitmap bitmap) {
+    assertThat(bitmap.cardinality(), is((long) expected.cardinality()));
+    int slot = bitmap.nextSlot(0);
+    for (int i = expected.nextSetBit(0); i >= 0; i = expected.nextSetBit(i + 1)) {
+      assertThat(slot, is(i));
+      assertTrue(bitmap.contains(i));
+      assertThat(bitmap.nextMissing(i), is(expected.nextClearBit(i)));
+      slot = bitmap.nextSlot(i + 1);
+    }
+    assertThat(slot, is(-1));
+  }
+}
@@ -0,0 +1,159 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.Duration;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.deephacks.jobpipe.TimeRangeType.SECOND;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class FairShareSchedulerTest {
+
+  @Test
+  public void testWeightedQueues() throws Exception {
+    FairShareScheduler scheduler = new FairShareScheduler(1);
+    FairShareScheduler.Queue backfill = scheduler.queue("backfill", 1, 0);
+    FairShareScheduler.Queue hourly = scheduler.queue("hourly", 4, 0);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(61);
+    List<String> order = new CopyOnWriteArrayList<>();
+    backfill.schedule(() -> {
+      started.countDown();
+      await(blocked);
+      done.countDown();
+    }, 0, TimeUnit.MILLISECONDS);
+    started.await();
+    for (int i = 0; i < 50; i++) {
+      backfill.schedule(() -> {
+        order.add("backfill");
+        done.countDown();
+      }, 0, TimeUnit.MILLISECONDS);
+    }
+    for (int i = 0; i < 10; i++) {
+      hourly.schedule(() -> {
+        order.add("hourly");
+        done.countDown();
+      }, 0, TimeUnit.MILLISECONDS);
+    }
+    assertThat(backfill.getDepth(), is(50));
+    assertThat(hourly.getDepth(), is(10));
+    blocked.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    // hourly get 4 of every 5 slots while it has tasks queued
+    assertTrue(order.lastIndexOf("hourly") < 15);
+    assertThat(hourly.getDispatched(), is(10L));
+    assertThat(backfill.getDispatched(), is(51L));
+    assertTrue(backfill.getWaitTime(TimeUnit.NANOSECONDS) > 0);
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testMinShare() throws Exception {
+    FairShareScheduler scheduler = new FairShareScheduler(1);
+    FairShareScheduler.Queue backfill = scheduler.queue("backfill", 100, 0);
+    FairShareScheduler.Queue hourly = scheduler.queue("hourly", 1, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch blocked = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(22);
+    List<String> order = new CopyOnWriteArrayList<>();
+    backfill.schedule(() -> {
+      started.countDown();
+      await(blocked);
+      done.countDown();
+    }, 0, TimeUnit.MILLISECONDS);
+    started.await();
+    for (int i = 0; i < 20; i++) {
+      backfill.schedule(() -> {
+        order.add("backfill");
+        done.countDown();
+      }, 0, TimeUnit.MILLISECONDS);
+    }
+    hourly.schedule(() -> {
+      order.add("hourly");
+      done.countDown();
+    }, 0, TimeUnit.MILLISECONDS);
+    blocked.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    assertThat(order.get(0), is("hourly"));
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testSharedBetweenSchedules() {
+    FairShareScheduler scheduler = new FairShareScheduler(2);
+    JobSchedule backfill = JobSchedule.newSchedule("2014-01-17T15:16")
+      .scheduler(scheduler.queue("backfill", 1, 0))
+      .task(new JobSchedulerTest.Task1()).timeRange(SECOND).add()
+      .execute();
+    JobSchedule hourly = JobSchedule.newSchedule("2014-01-17T15:16")
+      .scheduler(scheduler.queue("hourly", 4, 1))
+      .task(new JobSchedulerTest.Task2()).timeRange(MINUTE).add()
+      .execute();
+    backfill.awaitDone();
+    hourly.awaitDone();
+    assertTrue(backfill.getFailedTasks().isEmpty());
+    assertTrue(hourly.getFailedTasks().isEmpty());
+    scheduler.getQueues().forEach(q -> assertThat(q.getDepth(), is(0)));
+    scheduler.shutdown();
+  }
+
+  @Test(timeout = 15_000)
+  public void testThreadSurvivesTimeout() throws Exception {
+    FairShareScheduler scheduler = new FairShareScheduler(1);
+    FairShareScheduler.Queue queue = scheduler.queue("default", 1, 0);
+    BusyTask task = new BusyTask();
+    JobSchedule busy = JobSchedule.newSchedule("2014-01-17T15:16")
+      .scheduler(queue)
+      .task(task).timeRange(MINUTE).timeout(Duration.millis(200)).add()
+      .execute().awaitDone();
+    assertThat(busy.getScheduledTasks().get(0).code(), is(TaskStatus.TaskStatusCode.ERROR_SIGTERM));
+    // let the thread return to the empty queue after the task ignored the interrupt
+    task.returned.await();
+    Thread.sleep(100);
+    // the thread that executed the cancelled task keeps serving the queue
+    JobSchedule next = JobSchedule.newSchedule("2014-01-17T15:16")
+      .scheduler(queue)
+      .task(new JobSchedulerTest.Task2()).timeRange(MINUTE).add()
+      .execute().awaitDone();
+    assertTrue(next.getFailedTasks().isEmpty());
+    scheduler.shutdown();
+  }
+
+  /**
+   * Ignores interrupts and returns normally.
+   */
+  public static class BusyTask implements Task {
+    final TmpFileOutput output = new TmpFileOutput();
+    final CountDownLatch returned = new CountDownLatch(1);
+
+    @Override
+    public void execute(TaskContext ctx) {
+      long end = System.currentTimeMillis() + 600;
+      while (System.currentTimeMillis() < end) {
+        Thread.yield();
+      }
+      returned.countDown();
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new RuntimeException(e);
+    }
+  }
+}
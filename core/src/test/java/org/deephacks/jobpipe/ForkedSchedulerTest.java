@@ -0,0 +1,180 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ForkedSchedulerTest {
+  static ForkedScheduler scheduler;
+
+  @BeforeClass
+  public static void before() {
+    scheduler = ForkedScheduler.newBuilder().workers(1).maxTasks(2).build();
+  }
+
+  @AfterClass
+  public static void after() {
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testExecuteInWorker() throws Exception {
+    File dir = Files.createTempDirectory("forked").toFile();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16/2013-01-21T15:20")
+      .task(new PidTask(dir.getAbsolutePath())).timeRange(MINUTE).scheduler(scheduler).add()
+      .execute().awaitDone();
+    schedule.getScheduledTasks()
+      .forEach(status -> assertThat(status.code(), is(TaskStatusCode.FINISHED)));
+    Set<String> pids = Files.list(dir.toPath()).map(path -> read(path.toFile()))
+      .collect(Collectors.toSet());
+    assertThat(schedule.getScheduledTasks().size(), is(4));
+    // one worker, replaced after two tasks
+    assertThat(pids.size(), is(2));
+    assertThat(pids.contains(pid()), is(false));
+  }
+
+  @Test
+  public void testFailureInWorker() {
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+      .task(new FailingTask()).timeRange(MINUTE).scheduler(scheduler).add()
+      .execute().awaitDone();
+    TaskStatus status = schedule.getScheduledTasks().get(0);
+    assertThat(status.code(), is(TaskStatusCode.ERROR_EXECUTE));
+    assertThat(status.getFailReason().get().getMessage(), containsString("failed in worker"));
+    assertThat(status.getFailReason().get().getMessage(), not(containsString(pid())));
+    assertTrue(scheduler.getWorkers() > 0);
+  }
+
+  @Test(timeout = 60_000)
+  public void testNoWorkerCanStart() throws Exception {
+    // workers load classes from a copy that is deleted once the first worker is up
+    File classes = Files.createTempDirectory("forked-classes").toFile();
+    List<String> classpath = new ArrayList<>();
+    for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+      File file = new File(entry);
+      if (file.isDirectory() && file.getName().equals("classes")) {
+        copy(file.toPath(), classes.toPath());
+        classpath.add(classes.getAbsolutePath());
+      } else {
+        classpath.add(entry);
+      }
+    }
+    ForkedScheduler forked = ForkedScheduler.newBuilder().workers(1).maxTasks(1)
+      .classpath(String.join(File.pathSeparator, classpath)).build();
+    try {
+      delete(classes.toPath());
+      File dir = Files.createTempDirectory("forked").toFile();
+      JobSchedule schedule = JobSchedule.newSchedule("2013-01-22T15:16/2013-01-22T15:18")
+        .task(new PidTask(dir.getAbsolutePath())).timeRange(MINUTE).scheduler(forked).add()
+        .execute().awaitDone();
+      List<TaskStatus> statuses = schedule.getScheduledTasks();
+      assertThat(statuses.get(1).code(), is(TaskStatusCode.ERROR_EXECUTE));
+      assertThat(statuses.get(1).getFailReason().get().getMessage(), containsString("no worker could be started"));
+      assertThat(forked.getWorkers(), is(0));
+    } finally {
+      forked.shutdown();
+    }
+  }
+
+  private static void copy(Path from, Path to) throws IOException {
+    try (Stream<Path> paths = Files.walk(from)) {
+      for (Path path : paths.collect(Collectors.toList())) {
+        Path target = to.resolve(from.relativize(path).toString());
+        if (Files.isDirectory(path)) {
+          Files.createDirectories(target);
+        } else {
+          Files.copy(path, target);
+        }
+      }
+    }
+  }
+
+  private static void delete(Path dir) throws IOException {
+    try (Stream<Path> paths = Files.walk(dir)) {
+      for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+        Files.delete(path);
+      }
+    }
+  }
+
+  static String pid() {
+    return ManagementFactory.getRuntimeMXBean().getName().split("@")[0];
+  }
+
+  static String read(File file) {
+    try {
+      return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  public static class PidTask implements Task, Serializable {
+    final String dir;
+
+    public PidTask(String dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      try {
+        File file = new File(dir, ctx.getTimeRange().format());
+        Files.write(file.toPath(), pid().getBytes(StandardCharsets.UTF_8));
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      File file = new File(dir, ctx.getTimeRange().format());
+      return new TaskOutput() {
+        @Override
+        public boolean exist() {
+          return file.exists();
+        }
+
+        @Override
+        public Object get() {
+          return file;
+        }
+      };
+    }
+  }
+
+  public static class FailingTask implements Task {
+
+    @Override
+    public void execute(TaskContext ctx) {
+      throw new IllegalStateException("failed in worker " + pid());
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return new TmpFileOutput();
+    }
+  }
+}
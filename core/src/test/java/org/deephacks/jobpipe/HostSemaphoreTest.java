@@ -0,0 +1,127 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class HostSemaphoreTest {
+
+  @Test
+  public void testPermits() throws Exception {
+    File dir = Files.createTempDirectory("semaphore").toFile();
+    HostSemaphore semaphore = new HostSemaphore("test", dir, 2);
+    HostSemaphore other = new HostSemaphore("test", dir, 2);
+    HostSemaphore.Permit first = semaphore.tryAcquire();
+    HostSemaphore.Permit second = semaphore.tryAcquire();
+    assertNotNull(first);
+    assertNotNull(second);
+    assertNull(semaphore.tryAcquire());
+    assertNull(other.tryAcquire());
+    assertThat(other.getHeld(), is(2));
+    first.release();
+    assertThat(other.getHeld(), is(1));
+    assertNotNull(other.tryAcquire());
+  }
+
+  @Test
+  public void testOtherProcess() throws Exception {
+    File dir = Files.createTempDirectory("semaphore").toFile();
+    Process process = new ProcessBuilder(
+      new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath(),
+      "-cp", System.getProperty("java.class.path"), HostSemaphoreTest.class.getName(),
+      dir.getAbsolutePath())
+      .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      assertThat(reader.readLine(), is("acquired"));
+      HostSemaphore semaphore = new HostSemaphore("test", dir, 1);
+      assertNull(semaphore.tryAcquire());
+      assertThat(semaphore.getHeld(), is(1));
+      // permits of processes that die are released, but counted until acquired again
+      process.destroyForcibly().waitFor();
+      assertThat(semaphore.getHeld(), is(1));
+      HostSemaphore.Permit permit = semaphore.tryAcquire();
+      assertNotNull(permit);
+      permit.release();
+      assertThat(semaphore.getHeld(), is(0));
+    } finally {
+      process.destroyForcibly();
+    }
+  }
+
+  @Test
+  public void testSchedulesShareSemaphore() throws Exception {
+    File dir = Files.createTempDirectory("semaphore").toFile();
+    ConcurrencyTask.executing.set(0);
+    ConcurrencyTask.max.set(0);
+    List<JobSchedule> schedules = Arrays.asList(
+      JobSchedule.newSchedule("2013-01-21T15:16/2013-01-21T15:19")
+        .scheduler(new DefaultScheduler(3))
+        .task(new ConcurrencyTask()).timeRange(MINUTE)
+        .semaphores(new HostSemaphore("test", dir, 1)).add()
+        .execute(),
+      JobSchedule.newSchedule("2013-01-21T15:16/2013-01-21T15:19")
+        .scheduler(new DefaultScheduler(3))
+        .task(new ConcurrencyTask()).timeRange(MINUTE)
+        .semaphores(new HostSemaphore("test", dir, 1)).add()
+        .execute());
+    long waits = 0;
+    for (JobSchedule schedule : schedules) {
+      schedule.awaitDone();
+      schedule.getScheduledTasks()
+        .forEach(status -> assertThat(status.code(), is(TaskStatusCode.FINISHED)));
+      waits += schedule.getMetrics().getSemaphoreWaitCount();
+    }
+    assertThat(ConcurrencyTask.max.get(), is(1));
+    assertTrue(waits > 0);
+  }
+
+  /**
+   * Hold a permit in another process.
+   */
+  public static void main(String[] args) throws Exception {
+    HostSemaphore semaphore = new HostSemaphore("test", new File(args[0]), 1);
+    if (semaphore.tryAcquire() != null) {
+      System.out.println("acquired");
+    }
+    Thread.sleep(60_000);
+  }
+
+  public static class ConcurrencyTask implements Task {
+    static final AtomicInteger executing = new AtomicInteger();
+    static final AtomicInteger max = new AtomicInteger();
+    final TmpFileOutput output = new TmpFileOutput();
+
+    @Override
+    public void execute(TaskContext ctx) {
+      int current = executing.incrementAndGet();
+      max.accumulateAndGet(current, Math::max);
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      } finally {
+        executing.decrementAndGet();
+      }
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+}
@@ -1,12 +1,24 @@
 package org.deephacks.jobpipe;
 
 import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.joda.time.DateTime;
+import org.joda.time.Duration;
 import org.junit.Test;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
@@ -213,6 +225,191 @@ public class JobSchedulerTest {
       .execute().awaitDone();
   }
 
+  @Test
+  public void testDirectAndTransitiveOutput() {
+    CheckDependencyOutputTask check = new CheckDependencyOutputTask();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-18T15:16")
+      .task(new Task1()).retries(10).timeRange(SECOND).add()
+      .task(new Task2()).timeRange(MINUTE).deps(Task1.class).add()
+      .task(check).timeRange(MINUTE).deps(Task2.class).add()
+      .execute().awaitDone();
+    assertTrue(schedule.getFailedTasks().isEmpty());
+    assertThat(check.direct.size(), is(1));
+    assertThat(check.direct.ids().iterator().next(), is("Task2"));
+    assertThat(check.transitive.size(), is(61));
+    assertThat(check.transitive.get("Task1").size(), is(60));
+    assertTrue(check.dependency != null);
+  }
+
+  @Test
+  public void testExecutionRegistry() {
+    SlowTask task = new SlowTask();
+    ExecutionRegistry registry = new ExecutionRegistry();
+    List<TaskStatus> notified = new CopyOnWriteArrayList<>();
+    JobSchedule schedule1 = JobSchedule.newSchedule("2013-01-19T15:16")
+      .executionRegistry(registry)
+      .task(task).id("ingest").timeRange(MINUTE).add()
+      .execute();
+    JobSchedule schedule2 = JobSchedule.newSchedule("2013-01-19T15:16")
+      .executionRegistry(registry)
+      .observer(status -> notified.add(status))
+      .task(task).id("ingest").timeRange(MINUTE).add()
+      .execute();
+    schedule1.awaitDone();
+    schedule2.awaitDone();
+    assertThat(task.executions.get(), is(1));
+    assertThat(schedule1.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(schedule2.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertTrue(notified.stream().anyMatch(s -> s.code() == TaskStatusCode.FINISHED));
+    assertThat(registry.size(), is(0));
+  }
+
+  @Test
+  public void testPipelineContextShareSchedulerAndRegistry() {
+    SlowTask task = new SlowTask();
+    DefaultScheduler scheduler = new DefaultScheduler(2);
+    ExecutionRegistry registry = new ExecutionRegistry();
+    List<JobSchedule> schedules = new ArrayList<>();
+    for (int i = 0; i < 2; i++) {
+      PipelineContext context = new PipelineContext(new TimeRange("2013-01-19T15:17"));
+      context.setScheduler(scheduler);
+      context.setExecutionRegistry(registry);
+      schedules.add(JobSchedule.newSchedule(context)
+        .task(task).id("ingest").timeRange(MINUTE).add()
+        .execute());
+    }
+    for (JobSchedule schedule : schedules) {
+      schedule.awaitDone();
+      assertThat(schedule.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    }
+    assertThat(task.executions.get(), is(1));
+    scheduler.shutdown();
+  }
+
+  @Test
+  public void testEarliestDeadlineFirst() {
+    List<String> order = new CopyOnWriteArrayList<>();
+    RecordingTask loose = new RecordingTask(order);
+    RecordingTask tight = new RecordingTask(order);
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-20T15:16")
+      .scheduler(new DeadlineScheduler(1))
+      .task(loose).id("loose").timeRange(SECOND).add()
+      .task(new Task1()).id("upstream").timeRange(MINUTE).add()
+      .task(tight).id("tight").timeRange(SECOND).depIds("upstream")
+      .deadline(Duration.standardMinutes(1)).add()
+      .execute().awaitDone();
+    assertThat(order.size(), is(120));
+    long looseBeforeTight = order.subList(0, order.lastIndexOf("tight")).stream()
+      .filter(id -> id.equals("loose")).count();
+    assertTrue(looseBeforeTight <= 1);
+    TaskStatus upstream = schedule.getScheduledTasksMap().get("upstream").get(0);
+    assertTrue(upstream.getContext().getDeadline().isPresent());
+    assertThat(upstream.getContext().getDeadline().get(), is(new DateTime("2013-01-20T15:16:01").plusMinutes(1)));
+  }
+
+  @Test
+  public void testSlaMissed() {
+    List<TaskStatus> atRisk = new CopyOnWriteArrayList<>();
+    List<TaskStatus> missed = new CopyOnWriteArrayList<>();
+    JobObserver observer = new JobObserver() {
+      @Override
+      public boolean notify(TaskStatus status) {
+        return true;
+      }
+
+      @Override
+      public void slaAtRisk(TaskStatus status) {
+        atRisk.add(status);
+      }
+
+      @Override
+      public void slaMissed(TaskStatus status) {
+        missed.add(status);
+      }
+    };
+    String now = DateTime.now().plusSeconds(1).toString("yyyy-MM-dd'T'HH:mm:ss");
+    JobSchedule schedule = JobSchedule.newSchedule(now)
+      .observer(observer)
+      .task(new SlowTask()).timeRange(SECOND).deadline(Duration.millis(400)).add()
+      .execute().awaitDone();
+    assertThat(atRisk.size(), is(1));
+    assertThat(missed.size(), is(1));
+    assertThat(schedule.getMetrics().getSlaMissedCount(), is(1L));
+  }
+
+  @Test(timeout = 5_000)
+  public void testSpeculativeExecution() {
+    RuntimeHistory history = new RuntimeHistory();
+    for (int i = 0; i < 10; i++) {
+      history.record("StragglerTask", 10);
+    }
+    StragglerTask task = new StragglerTask();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+      .scheduler(new DefaultScheduler(2))
+      .runtimeHistory(history)
+      .task(task).timeRange(MINUTE).speculative(0.9).add()
+      .execute().awaitDone();
+    assertThat(schedule.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(task.attempts.get(), is(2));
+    assertTrue(task.interrupted);
+    assertThat(schedule.getMetrics().getSpeculatedCount(), is(1L));
+    assertThat(schedule.getMetrics().getSpeculationWonCount(), is(1L));
+    assertThat(history.count("StragglerTask"), is(11));
+  }
+
+  @Test(timeout = 10_000)
+  public void testSpeculationHoldsPermitsAndJoinsChildren() {
+    RuntimeHistory history = new RuntimeHistory();
+    for (int i = 0; i < 10; i++) {
+      history.record("straggler", 10);
+    }
+    HostSemaphore semaphore = HostSemaphore.named("speculation-" + System.nanoTime(), 2);
+    List<String> order = new CopyOnWriteArrayList<>();
+    StragglerTask task = new StragglerTask(semaphore, order);
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-22T15:16")
+      .scheduler(new DefaultScheduler(3))
+      .runtimeHistory(history)
+      .task(task).id("straggler").timeRange(MINUTE).speculative(0.9).semaphores(semaphore).add()
+      .task(new RecordingTask(order)).id("after").timeRange(MINUTE).depIds("straggler").add()
+      .execute().awaitDone();
+    schedule.getScheduledTasks().forEach(t -> assertThat(t.code(), is(TaskStatusCode.FINISHED)));
+    assertThat(task.attempts.get(), is(2));
+    // the first attempt hold the other permit
+    assertThat(task.held, is(2));
+    // the task is done when the child of the winning attempt is done
+    assertThat(order, is(Arrays.asList("straggler/child", "after")));
+    assertThat(semaphore.getHeld(), is(0));
+  }
+
+  @Test
+  public void testTimeout() {
+    HangingTask task = new HangingTask();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+      .task(task).timeRange(MINUTE).timeout(Duration.millis(200)).add()
+      .execute().awaitDone();
+    TaskStatus status = schedule.getScheduledTasks().get(0);
+    assertThat(status.code(), is(TaskStatusCode.ERROR_SIGTERM));
+    assertTrue(task.cancelled);
+    assertThat(schedule.getMetrics().getTimedOutCount(), is(1L));
+  }
+
+  @Test
+  public void testCancel() throws Exception {
+    HangingTask task = new HangingTask();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+      .task(task).timeRange(MINUTE).add()
+      .task(new Task2()).timeRange(MINUTE).deps(HangingTask.class).add()
+      .execute();
+    assertTrue(task.started.await(10, TimeUnit.SECONDS));
+    assertThat(schedule.cancel("Hanging").size(), is(1));
+    schedule.awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("HangingTask").get(0).code(), is(TaskStatusCode.ERROR_SIGTERM));
+    assertThat(tasks.get("Task2").get(0).code(), is(TaskStatusCode.ERROR_DEPENDENCY));
+    assertTrue(task.cancelled);
+    assertThat(schedule.getMetrics().getCancelledCount(), is(1L));
+  }
+
   @Test
   public void testAbortingObserver() {
     JobSchedule schedule = JobSchedule.newSchedule("2013-12-18T15:16")
@@ -289,6 +486,375 @@ public class JobSchedulerTest {
     }
   }
 
+  @Test
+  public void testRateLimiter() {
+    StartTimeTask task = new StartTimeTask();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-19T15:16")
+      .rateLimiter(RateLimiter.create(200, 10).jitter(50, TimeUnit.MILLISECONDS))
+      .task(task).timeRange(SECOND).add()
+      .execute().awaitDone();
+    List<TaskStatus> tasks = schedule.getScheduledTasks();
+    assertThat(tasks.size(), is(60));
+    tasks.stream().forEach(t -> assertThat(t.code(), is(TaskStatusCode.FINISHED)));
+    ScheduleMetrics metrics = schedule.getMetrics();
+    assertTrue(metrics.getRateLimitedCount() > 0);
+    assertTrue(metrics.getRateLimitWait(TimeUnit.NANOSECONDS) > 0);
+    List<Long> starts = new ArrayList<>(task.starts);
+    Collections.sort(starts);
+    assertThat(starts.size(), is(60));
+    // 10 tasks start at once and the other 50 at 200 per second, which take 250ms,
+    // less the time between taking the first token and starting the first task
+    long elapsed = starts.get(59) - starts.get(0);
+    assertTrue("started 60 tasks in " + elapsed + "ns", elapsed >= TimeUnit.MILLISECONDS.toNanos(200));
+  }
+
+  @Test
+  public void testBatchTask() {
+    BatchCountingTask task = new BatchCountingTask();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-20T15:16")
+      .scheduler(new DefaultScheduler(1))
+      .task(task).timeRange(SECOND).batchSize(10).add()
+      .execute().awaitDone();
+    List<TaskStatus> tasks = schedule.getScheduledTasks();
+    assertThat(tasks.size(), is(60));
+    tasks.stream().forEach(t -> assertThat(t.code(), is(TaskStatusCode.FINISHED)));
+    assertThat(task.batches.stream().mapToInt(b -> b.size()).sum(), is(60));
+    assertTrue(task.batches.size() < 60);
+    for (List<TaskContext> batch : task.batches) {
+      assertTrue(batch.size() <= 10);
+      for (int i = 1; i < batch.size(); i++) {
+        assertThat(batch.get(i - 1).getTimeRange().to(), is(batch.get(i).getTimeRange().from()));
+      }
+    }
+  }
+
+  @Test
+  public void testExtendAndRetire() {
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-21T15:16/2013-12-21T15:18")
+      .task(new Task2()).id("a").timeRange(MINUTE).add()
+      .task(new Task2()).id("b").timeRange(MINUTE).depIds("a").add()
+      .execute().awaitDone();
+    assertThat(schedule.getScheduledTasks().size(), is(4));
+    assertThat(schedule.getScheduledTo(), is(new DateTime("2013-12-21T15:18")));
+
+    TimeRange range = schedule.extend();
+    assertThat(range, is(new TimeRange("2013-12-21T15:18")));
+    assertThat(schedule.getScheduledTo(), is(new DateTime("2013-12-21T15:19")));
+    schedule.awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("a").size(), is(3));
+    assertThat(tasks.get("b").size(), is(3));
+    try {
+      schedule.extend(new TimeRange("2013-12-21T15:17"));
+      fail("overlapping range");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), containsString("overlap"));
+    }
+
+    assertThat(schedule.retire().size(), is(6));
+    assertThat(schedule.getScheduledTasks().size(), is(0));
+    ScheduleProgress progress = schedule.getProgress();
+    assertThat(progress.getCount(TaskStatusCode.FINISHED) + progress.getCount(TaskStatusCode.SKIPPED), is(6L));
+    assertThat(progress.getLive().isEmpty(), is(true));
+  }
+
+  @Test
+  public void testTemplate() {
+    JobSchedule.JobScheduleBuilder builder = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(new Task2()).id("a").timeRange(MINUTE).add()
+      .task(new Task2()).id("b").timeRange(MINUTE).depIds("a").add();
+    ScheduleTemplate template = builder.template();
+    // tasks added after the template was created are not part of it
+    builder.task(new Task2()).id("c").timeRange(MINUTE).add();
+    assertThat(template.getTaskIds(), is(Arrays.asList("a", "b")));
+
+    for (String range : Arrays.asList("2013-12-22T15:17", "2013-12-22T15:20/2013-12-22T15:23")) {
+      JobSchedule schedule = template.execute(new TimeRange(range)).awaitDone();
+      Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+      int intervals = new TimeRange(range).intervalsBetween();
+      assertThat(tasks.keySet(), is(new HashSet<>(Arrays.asList("a", "b"))));
+      assertThat(tasks.get("a").size(), is(intervals));
+      assertThat(tasks.get("b").size(), is(intervals));
+      tasks.get("b").forEach(t -> assertTrue(t.code() == TaskStatusCode.FINISHED
+        || t.code() == TaskStatusCode.SKIPPED));
+    }
+  }
+
+  @Test
+  public void testTemplateValidation() {
+    try {
+      JobSchedule.newSchedule("2013-12-22T15:16")
+        .task(new Task2()).id("b").timeRange(MINUTE).depIds("a").add();
+      fail("missing dependency");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), containsString("Dependency does not exist a"));
+    }
+    try {
+      JobSchedule.newSchedule("2013-12-22T15:16")
+        .task(new Task2()).id("a").timeRange(MINUTE).add()
+        .task(new Task2()).id("a").timeRange(MINUTE).add();
+      fail("duplicate task");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), containsString("already exist"));
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testSpawn() {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    long started = System.currentTimeMillis();
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-22T15:16")
+      .scheduler(new DefaultScheduler(4))
+      .task(new SpawningTask(4, false, order)).id("p").timeRange(MINUTE).add()
+      .task(new RecordingTask(order)).id("d").timeRange(MINUTE).depIds("p").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("p").get(0).code(), is(TaskStatusCode.FINISHED));
+    for (int i = 0; i < 4; i++) {
+      assertThat(tasks.get("p/part-" + i).get(0).code(), is(TaskStatusCode.FINISHED));
+    }
+    // children execute in parallel, before tasks that depend on the parent
+    assertThat(order.size(), is(5));
+    assertThat(order.get(4), is("d"));
+    assertTrue(order.indexOf("p/part-3") > order.indexOf("p/part-0"));
+    assertTrue(System.currentTimeMillis() - started < 4 * SpawningTask.CHILD_MILLIS);
+  }
+
+  @Test(timeout = 10_000)
+  public void testSpawnFailure() {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(new SpawningTask(2, true, order)).id("p").timeRange(MINUTE).add()
+      .task(new RecordingTask(order)).id("d").timeRange(MINUTE).depIds("p").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("p/part-1").get(0).code(), is(TaskStatusCode.ERROR_EXECUTE));
+    assertThat(tasks.get("p").get(0).code(), is(TaskStatusCode.ERROR_DEPENDENCY));
+    assertThat(tasks.get("p").get(0).getFailedDep().get().getId(), is("p/part-1"));
+    assertThat(tasks.get("d").get(0).code(), is(TaskStatusCode.ERROR_DEPENDENCY));
+    assertThat(order.contains("d"), is(false));
+  }
+
+  @Test
+  public void testShards() throws Exception {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    ShardedTask task = new ShardedTask(Files.createTempDirectory("shards").toFile(), order);
+    List<Integer> merged = new ArrayList<>();
+    Task merge = new RecordingTask(order) {
+      @Override
+      public void execute(TaskContext ctx) {
+        merged.add(ctx.getShardOutputs().size());
+        super.execute(ctx);
+      }
+    };
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(task).id("s").timeRange(MINUTE).shards(3).merge(merge).add()
+      .task(new RecordingTask(order)).id("d").timeRange(MINUTE).depIds("s").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    for (int i = 0; i < 3; i++) {
+      assertThat(tasks.get("s#" + i).get(0).code(), is(TaskStatusCode.FINISHED));
+    }
+    assertThat(task.shards, is(new HashSet<>(Arrays.asList("0/3", "1/3", "2/3"))));
+    assertThat(merged, is(Arrays.asList(3)));
+    // downstream waits for the merge, which waits for every shard
+    assertThat(order.size(), is(5));
+    assertThat(order.get(3), is("s"));
+    assertThat(order.get(4), is("d"));
+  }
+
+  @Test
+  public void testShardRerun() throws Exception {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    File dir = Files.createTempDirectory("shards").toFile();
+    ShardedTask task = new ShardedTask(dir, order);
+    ScheduleTemplate template = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(task).id("s").timeRange(MINUTE).shards(4).add()
+      .template();
+    TimeRange range = new TimeRange("2013-12-22T15:16");
+    template.execute(range).awaitDone();
+    assertThat(order.size(), is(4));
+
+    // only the shard without output executes again
+    assertTrue(new File(dir, range.format() + "-2").delete());
+    order.clear();
+    JobSchedule schedule = template.execute(range).awaitDone();
+    assertThat(order, is(Arrays.asList("s#2")));
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("s#0").get(0).code(), is(TaskStatusCode.SKIPPED));
+    assertThat(tasks.get("s#2").get(0).code(), is(TaskStatusCode.FINISHED));
+
+    order.clear();
+    schedule = template.execute(range).awaitDone();
+    assertThat(order.size(), is(0));
+    assertThat(schedule.getScheduledTasksMap().get("s").get(0).code(), is(TaskStatusCode.SKIPPED));
+  }
+
+  @Test
+  public void testStreaming() {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    StreamingConsumer consumer = new StreamingConsumer(order, false);
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(new PublishingTask(order)).id("p").timeRange(MINUTE).add()
+      .task(consumer).id("c").timeRange(MINUTE).depIds("p").add()
+      .execute().awaitDone();
+    assertThat(schedule.getScheduledTasksMap().get("c").get(0).code(), is(TaskStatusCode.FINISHED));
+    // chunks are folded while the producer executes, the last chunk before the consumer executes
+    assertThat(order, is(Arrays.asList("c:0", "c:1", "c:2", "p", "c:last", "c")));
+    DateTime from = new TimeRange("2013-12-22T15:16").from();
+    assertThat(consumer.watermarks, is(Arrays.asList(from.plusSeconds(20), from.plusSeconds(40),
+      from.plusSeconds(40), from.plusMinutes(1))));
+    assertThat(consumer.inputWatermark, is(from.plusMinutes(1)));
+  }
+
+  @Test
+  public void testStreamingFailure() {
+    List<String> order = Collections.synchronizedList(new ArrayList<>());
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(new PublishingTask(order)).id("p").timeRange(MINUTE).add()
+      .task(new StreamingConsumer(order, true)).id("c").timeRange(MINUTE).depIds("p").retries(0).add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("p").get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(tasks.get("c").get(0).code(), is(TaskStatusCode.ERROR_EXECUTE));
+    assertThat(order.contains("c"), is(false));
+  }
+
+  /**
+   * Publishes three chunks, the last without moving the watermark.
+   */
+  public static class PublishingTask extends RecordingTask {
+
+    public PublishingTask(List<String> order) {
+      super(order);
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      DateTime from = ctx.getTimeRange().from();
+      ctx.publish(0, from.plusSeconds(20));
+      ctx.publish(1, from.plusSeconds(40));
+      ctx.publish(2);
+      super.execute(ctx);
+    }
+  }
+
+  public static class StreamingConsumer extends RecordingTask implements StreamingTask {
+    final List<DateTime> watermarks = new CopyOnWriteArrayList<>();
+    final boolean fail;
+    volatile DateTime inputWatermark;
+
+    public StreamingConsumer(List<String> order, boolean fail) {
+      super(order);
+      this.fail = fail;
+    }
+
+    @Override
+    public void accept(TaskContext ctx, Chunk chunk) {
+      if (fail) {
+        throw new IllegalStateException("message");
+      }
+      order.add("c:" + (chunk.isLast() ? "last" : chunk.get()));
+      watermarks.add(chunk.getWatermark());
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      inputWatermark = ctx.getInputWatermark();
+      super.execute(ctx);
+    }
+  }
+
+  public static class ShardedTask implements Task {
+    final Set<String> shards = ConcurrentHashMap.newKeySet();
+    final File dir;
+    final List<String> order;
+
+    public ShardedTask(File dir, List<String> order) {
+      this.dir = dir;
+      this.order = order;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      shards.add(ctx.getShard() + "/" + ctx.getShardCount());
+      order.add(ctx.getId());
+      try {
+        new File(dir, ctx.getTimeRange().format() + "-" + ctx.getShard()).createNewFile();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      File file = new File(dir, ctx.getTimeRange().format() + "-" + ctx.getShard());
+      return new TaskOutput() {
+        @Override
+        public boolean exist() {
+          return file.exists();
+        }
+
+        @Override
+        public Object get() {
+          return file;
+        }
+      };
+    }
+  }
+
+  /**
+   * Spawns children where the last child depends on the first, and the second
+   * child fails if asked to.
+   */
+  public static class SpawningTask implements Task {
+    static final long CHILD_MILLIS = 1500;
+    TmpFileOutput output = new TmpFileOutput();
+    final int children;
+    final boolean fail;
+    final List<String> order;
+
+    public SpawningTask(int children, boolean fail, List<String> order) {
+      this.children = children;
+      this.fail = fail;
+      this.order = order;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      List<TaskContext> spawned = new ArrayList<>();
+      for (int i = 0; i < children; i++) {
+        TaskContext[] deps = i > 1 && i == children - 1
+          ? new TaskContext[]{spawned.get(0)} : new TaskContext[0];
+        spawned.add(ctx.spawn("part-" + i, fail && i == 1 ? new FailingTask() : new Task() {
+          TmpFileOutput output = new TmpFileOutput();
+
+          @Override
+          public void execute(TaskContext child) {
+            try {
+              Thread.sleep(CHILD_MILLIS);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            order.add(child.getId());
+            output.create();
+          }
+
+          @Override
+          public TaskOutput getOutput(TaskContext child) {
+            return output;
+          }
+        }, deps));
+      }
+      output.create();
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+
   public static class FailingTask implements Task {
     @Override
     public void execute(TaskContext ctx) {
@@ -343,6 +909,206 @@ public class JobSchedulerTest {
   }
 
 
+  public static class BatchCountingTask implements BatchTask {
+    List<List<TaskContext>> batches = new CopyOnWriteArrayList<>();
+    Set<TimeRange> outputs = ConcurrentHashMap.newKeySet();
+
+    @Override
+    public void execute(List<TaskContext> contexts) {
+      batches.add(contexts);
+      contexts.stream().forEach(ctx -> outputs.add(ctx.getTimeRange()));
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      execute(Arrays.asList(ctx));
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return new TaskOutput() {
+        @Override
+        public boolean exist() {
+          return outputs.contains(ctx.getTimeRange());
+        }
+
+        @Override
+        public Object get() {
+          return ctx.getTimeRange();
+        }
+      };
+    }
+  }
+
+  public static class CheckDependencyOutputTask implements Task {
+    TmpFileOutput output = new TmpFileOutput();
+    DependencyOutputs direct;
+    DependencyOutputs transitive;
+    TaskOutput dependency;
+
+    @Override
+    public void execute(TaskContext ctx) {
+      direct = ctx.getDirectDependencyOutputs();
+      transitive = ctx.getTransitiveDependencyOutputs();
+      dependency = ctx.getDependencyOutput("Task2", ctx.getTimeRange());
+      // views are created once
+      assertTrue(direct == ctx.getDirectDependencyOutputs());
+      assertTrue(transitive == ctx.getTransitiveDependencyOutputs());
+      output.create();
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+
+  public static class SlowTask implements Task {
+    TmpFileOutput output = new TmpFileOutput();
+    AtomicInteger executions = new AtomicInteger();
+
+    @Override
+    public void execute(TaskContext ctx) {
+      executions.incrementAndGet();
+      try {
+        Thread.sleep(1000);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      output.create();
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+
+  public static class RecordingTask implements Task {
+    Set<TimeRange> outputs = ConcurrentHashMap.newKeySet();
+    List<String> order;
+
+    public RecordingTask(List<String> order) {
+      this.order = order;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      order.add(ctx.getId());
+      outputs.add(ctx.getTimeRange());
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return new TaskOutput() {
+        @Override
+        public boolean exist() {
+          return outputs.contains(ctx.getTimeRange());
+        }
+
+        @Override
+        public Object get() {
+          return ctx.getTimeRange();
+        }
+      };
+    }
+  }
+
+  public static class StartTimeTask extends RecordingTask {
+    List<Long> starts = new CopyOnWriteArrayList<>();
+
+    public StartTimeTask() {
+      super(new CopyOnWriteArrayList<>());
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      starts.add(System.nanoTime());
+      super.execute(ctx);
+    }
+  }
+
+  /**
+   * First attempt hangs until interrupted.
+   */
+  public static class StragglerTask implements Task {
+    TmpFileOutput output = new TmpFileOutput();
+    AtomicInteger attempts = new AtomicInteger();
+    volatile boolean interrupted = false;
+    /** permits of the semaphore held when the second attempt executes */
+    volatile int held;
+    final HostSemaphore semaphore;
+    final List<String> order;
+
+    public StragglerTask() {
+      this(null, null);
+    }
+
+    /**
+     * @param semaphore semaphore of the task.
+     * @param order the second attempt spawn a child that add its id when done.
+     */
+    public StragglerTask(HostSemaphore semaphore, List<String> order) {
+      this.semaphore = semaphore;
+      this.order = order;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      if (attempts.incrementAndGet() == 1) {
+        try {
+          Thread.sleep(60_000);
+        } catch (InterruptedException e) {
+          interrupted = true;
+          throw new RuntimeException(e);
+        }
+      }
+      if (semaphore != null) {
+        held = semaphore.getHeld();
+      }
+      if (order != null) {
+        ctx.spawn("child", new RecordingTask(order) {
+          @Override
+          public void execute(TaskContext child) {
+            try {
+              Thread.sleep(500);
+            } catch (InterruptedException e) {
+              throw new RuntimeException(e);
+            }
+            super.execute(child);
+          }
+        });
+      }
+      output.create();
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+
+  public static class HangingTask implements Task {
+    CountDownLatch started = new CountDownLatch(1);
+    volatile boolean cancelled = false;
+
+    @Override
+    public void execute(TaskContext ctx) {
+      started.countDown();
+      try {
+        Thread.sleep(60_000);
+      } catch (InterruptedException e) {
+        cancelled = ctx.getCancellation().isCancelled();
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return new TmpFileOutput();
+    }
+  }
+
   @TaskSpec(timeRange = TimeRangeType.DAY)
   public static class Task1 implements Task {
     TmpFileOutput output = new TmpFileOutput();
@@ -0,0 +1,166 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class LeaseCoordinatorTest {
+
+  @Test
+  public void testCooperativeSchedules() throws Exception {
+    File leaseDir = Files.createTempDirectory("leases").toFile();
+    File outputDir = Files.createTempDirectory("output").toFile();
+    CountingTask task = new CountingTask(outputDir);
+    List<JobSchedule> schedules = new ArrayList<>();
+    for (int i = 0; i < 3; i++) {
+      LeaseCoordinator leases = new LeaseCoordinator(leaseDir, 1, TimeUnit.SECONDS);
+      schedules.add(JobSchedule.newSchedule("2013-01-21T15:16/2013-01-21T15:26")
+        .scheduler(new DefaultScheduler(2))
+        .leaseCoordinator(leases)
+        .task(task).timeRange(MINUTE).add()
+        .execute());
+    }
+    for (JobSchedule schedule : schedules) {
+      schedule.awaitDone();
+      schedule.getScheduledTasks()
+        .forEach(status -> assertThat(status.code(), is(TaskStatusCode.FINISHED)));
+    }
+    assertThat(task.executions.size(), is(10));
+    task.executions.values().forEach(count -> assertThat(count.get(), is(1)));
+  }
+
+  @Test
+  public void testTakeOverExpiredLease() throws Exception {
+    File leaseDir = Files.createTempDirectory("leases").toFile();
+    String name = LeaseCoordinator.name("CountingTask", new TimeRange("2013-01-21T15:16"));
+    File lease = new File(leaseDir, name + ".lease");
+    Files.write(lease.toPath(), "crashed".getBytes());
+    Files.setLastModifiedTime(lease.toPath(),
+      FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(10)));
+    CountingTask task = new CountingTask(Files.createTempDirectory("output").toFile());
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir, 1, TimeUnit.SECONDS))
+      .task(task).timeRange(MINUTE).add()
+      .execute().awaitDone();
+    assertThat(schedule.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(task.executions.size(), is(1));
+    assertThat(new File(leaseDir, name + ".done").exists(), is(true));
+    assertThat(lease.exists(), is(false));
+  }
+
+  @Test
+  public void testMarkersOfEarlierRun() throws Exception {
+    File leaseDir = Files.createTempDirectory("leases").toFile();
+    File outputDir = Files.createTempDirectory("output").toFile();
+    JobSchedule failed = JobSchedule.newSchedule("2013-01-21T15:16")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir, "r1", 1, TimeUnit.SECONDS))
+      .task(new JobSchedulerTest.FailingTask()).id("a").timeRange(MINUTE).retries(0).add()
+      .execute().awaitDone();
+    assertThat(failed.getScheduledTasks().get(0).code(), is(TaskStatusCode.ERROR_EXECUTE));
+
+    // the same run learns about the failure without executing
+    CountingTask task = new CountingTask(outputDir);
+    JobSchedule same = JobSchedule.newSchedule("2013-01-21T15:16")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir, "r1", 1, TimeUnit.SECONDS))
+      .task(task).id("a").timeRange(MINUTE).add()
+      .execute().awaitDone();
+    assertThat(same.getScheduledTasks().get(0).code(), is(TaskStatusCode.ERROR_EXECUTE));
+    assertThat(task.executions.size(), is(0));
+
+    // a later run executes again
+    JobSchedule next = JobSchedule.newSchedule("2013-01-21T15:16")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir, "r2", 1, TimeUnit.SECONDS))
+      .task(task).id("a").timeRange(MINUTE).add()
+      .execute().awaitDone();
+    assertThat(next.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(task.executions.size(), is(1));
+
+    // a finished marker is not trusted when the output is gone
+    String name = LeaseCoordinator.name("a", new TimeRange("2013-01-21T15:16"));
+    assertThat(new File(leaseDir, name + ".done").exists(), is(true));
+    assertThat(new File(leaseDir, name + ".failed").exists(), is(false));
+    for (File file : outputDir.listFiles()) {
+      Files.delete(file.toPath());
+    }
+    JobSchedule rerun = JobSchedule.newSchedule("2013-01-21T15:16")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir, "r2", 1, TimeUnit.SECONDS))
+      .task(task).id("a").timeRange(MINUTE).add()
+      .execute().awaitDone();
+    assertThat(rerun.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(task.executions.values().iterator().next().get(), is(2));
+  }
+
+  @Test
+  public void testExpiredMarkers() throws Exception {
+    File leaseDir = Files.createTempDirectory("leases").toFile();
+    String name = LeaseCoordinator.name("a", new TimeRange("2013-01-21T15:16"));
+    File marker = new File(leaseDir, name + ".failed");
+    Files.write(marker.toPath(), "\nearlier run".getBytes());
+    Files.setLastModifiedTime(marker.toPath(),
+      FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(10)));
+    CountingTask task = new CountingTask(Files.createTempDirectory("output").toFile());
+    JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir, 1, TimeUnit.SECONDS))
+      .task(task).id("a").timeRange(MINUTE).add()
+      .execute().awaitDone();
+    assertThat(schedule.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(task.executions.size(), is(1));
+    assertThat(marker.exists(), is(false));
+  }
+
+  @Test
+  public void testSanitizedIdsDoNotCollide() {
+    TimeRange range = new TimeRange("2013-01-21T15:16");
+    assertThat(LeaseCoordinator.name("a/b", range).equals(LeaseCoordinator.name("a_b", range)), is(false));
+  }
+
+  public static class CountingTask implements Task {
+    final File dir;
+    final Map<TimeRange, AtomicInteger> executions = new ConcurrentHashMap<>();
+
+    public CountingTask(File dir) {
+      this.dir = dir;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      executions.computeIfAbsent(ctx.getTimeRange(), r -> new AtomicInteger()).incrementAndGet();
+      try {
+        Thread.sleep(50);
+        new File(dir, ctx.getTimeRange().format()).createNewFile();
+      } catch (InterruptedException | IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      File file = new File(dir, ctx.getTimeRange().format());
+      return new TaskOutput() {
+        @Override
+        public boolean exist() {
+          return file.exists();
+        }
+
+        @Override
+        public Object get() {
+          return file;
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.deephacks.jobpipe;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class MappedFileOutputTest {
+
+  @Test
+  public void testVariableLength() throws Exception {
+    Path path = Files.createTempDirectory("mapped").resolve("records");
+    // small segments so that records span segments and some are larger than a segment
+    MappedFileOutput output = new MappedFileOutput(path, 64);
+    List<String> expected = new ArrayList<>();
+    try (MappedFileOutput.Writer writer = output.openWriter()) {
+      for (int i = 0; i < 100; i++) {
+        String record = i % 10 == 0 ? new String(new char[100]).replace('\0', 'x') + i : "record-" + i;
+        expected.add(record);
+        writer.append(record.getBytes(StandardCharsets.UTF_8));
+      }
+      // nothing is visible before commit
+      assertThat(output.exist(), is(false));
+      writer.commit();
+    }
+    assertTrue(output.exist());
+    assertThat(output.size(), is(100L));
+    List<String> records = new ArrayList<>();
+    for (ByteBuffer record : output.records()) {
+      assertTrue(record.isReadOnly());
+      byte[] bytes = new byte[record.remaining()];
+      record.get(bytes);
+      records.add(new String(bytes, StandardCharsets.UTF_8));
+    }
+    assertThat(records, is(expected));
+  }
+
+  @Test
+  public void testFixedLength() throws Exception {
+    Path path = Files.createTempDirectory("mapped").resolve("records");
+    MappedFileOutput output = new MappedFileOutput(path, 100);
+    try (MappedFileOutput.Writer writer = output.openWriter(8)) {
+      for (long i = 0; i < 1000; i++) {
+        writer.append((ByteBuffer) ByteBuffer.allocate(8).putLong(i).flip());
+      }
+      writer.commit();
+    }
+    assertThat(output.get(567).getLong(), is(567L));
+    long i = 0;
+    for (ByteBuffer record : output.records()) {
+      assertThat(record.getLong(0), is(i++));
+    }
+    assertThat(i, is(1000L));
+    try (MappedFileOutput.Writer writer = output.openWriter(8)) {
+      writer.append(new byte[4]);
+      fail("wrong record size");
+    } catch (IllegalArgumentException e) {
+    }
+  }
+
+  @Test
+  public void testAbort() throws Exception {
+    Path dir = Files.createTempDirectory("mapped");
+    MappedFileOutput output = new MappedFileOutput(dir.resolve("records"));
+    try (MappedFileOutput.Writer writer = output.openWriter()) {
+      writer.append(new byte[10]);
+    }
+    assertThat(output.exist(), is(false));
+    assertThat(dir.toFile().list().length, is(0));
+  }
+}
@@ -0,0 +1,237 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class MemoryTaskOutputTest {
+
+  @Test
+  public void testSpill() throws Exception {
+    File dir = Files.createTempDirectory("spill").toFile();
+    MemoryBudget budget = new MemoryBudget(100, dir, true);
+    MemoryTaskOutput[] outputs = new MemoryTaskOutput[3];
+    for (int i = 0; i < outputs.length; i++) {
+      outputs[i] = new MemoryTaskOutput(budget, "o" + i);
+      outputs[i].write(bytes(40, i));
+    }
+    // the least recently used output is spilled
+    assertThat(budget.getUsed(), is(80L));
+    assertThat(budget.getSpills(), is(1L));
+    assertTrue(outputs[0].isSpilled());
+    assertThat(outputs[1].isSpilled(), is(false));
+    for (int i = 0; i < outputs.length; i++) {
+      assertTrue(outputs[i].exist());
+      ByteBuffer buffer = outputs[i].get();
+      assertTrue(buffer.isReadOnly());
+      assertThat(buffer.remaining(), is(40));
+      assertThat(buffer.get(39), is((byte) i));
+    }
+    // reading the second output makes the third the least recently used
+    outputs[1].get();
+    outputs[0].write(bytes(40, 0));
+    assertTrue(outputs[2].isSpilled());
+    assertThat(outputs[1].isSpilled(), is(false));
+
+    // larger than the budget goes straight to a file
+    MemoryTaskOutput large = new MemoryTaskOutput(budget, "large");
+    large.write(bytes(200, 7));
+    assertTrue(large.isSpilled());
+    assertThat(large.get().get(199), is((byte) 7));
+
+    large.release();
+    outputs[0].release();
+    outputs[1].release();
+    outputs[2].release();
+    assertThat(outputs[0].exist(), is(false));
+    assertThat(budget.getUsed(), is(0L));
+    assertThat(dir.list().length, is(0));
+  }
+
+  @Test
+  public void testReleaseWhenConsumed() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1024, Files.createTempDirectory("spill").toFile(), false);
+    MemoryTask producer = new MemoryTask(budget, null);
+    MemoryTask first = new MemoryTask(budget, "p");
+    MemoryTask second = new MemoryTask(budget, "p");
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-22T15:16")
+      .task(producer).id("p").timeRange(MINUTE).add()
+      .task(first).id("a").timeRange(MINUTE).depIds("p").add()
+      .task(second).id("b").timeRange(MINUTE).depIds("p").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("a").get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(tasks.get("b").get(0).code(), is(TaskStatusCode.FINISHED));
+    assertThat(first.read, is(Arrays.asList(16)));
+    assertThat(second.read, is(Arrays.asList(16)));
+    // released once both dependents are done, while outputs without dependents remain
+    assertThat(budget.getUsed(), is(32L));
+    assertThat(producer.output.exist(), is(false));
+  }
+
+  @Test
+  public void testReleaseWhenReadersFail() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1024, Files.createTempDirectory("spill").toFile(), false);
+    MemoryTask producer = new MemoryTask(budget, null);
+    MemoryTask failing = new MemoryTask(budget, "p");
+    failing.fail = true;
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-23T15:16")
+      .task(producer).id("p").timeRange(MINUTE).add()
+      .task(failing).id("a").timeRange(MINUTE).depIds("p").add()
+      .task(new MemoryTask(budget, "a")).id("b").timeRange(MINUTE).depIds("a").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("a").get(0).code(), is(TaskStatusCode.ERROR_EXECUTE));
+    assertThat(tasks.get("b").get(0).code(), is(TaskStatusCode.ERROR_DEPENDENCY));
+    assertThat(failing.read, is(Arrays.asList(16)));
+    assertThat(producer.output.exist(), is(false));
+    assertThat(budget.getUsed(), is(0L));
+  }
+
+  @Test
+  public void testReleaseWhenTransitiveReadersDone() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1024, Files.createTempDirectory("spill").toFile(), false);
+    MemoryTask producer = new MemoryTask(budget, null);
+    MemoryTask middle = new MemoryTask(budget, "p");
+    MemoryTask last = new MemoryTask(budget, "p");
+    JobSchedule.newSchedule("2013-12-24T15:16")
+      .task(producer).id("p").timeRange(MINUTE).add()
+      .task(middle).id("m").timeRange(MINUTE).depIds("p").add()
+      .task(last).id("t").timeRange(MINUTE).depIds("m").add()
+      .execute().awaitDone();
+    // the output of p is read by t through m
+    assertThat(last.read, is(Arrays.asList(16)));
+    assertThat(producer.output.exist(), is(false));
+    assertThat(middle.output.exist(), is(false));
+    assertThat(budget.getUsed(), is(16L));
+  }
+
+  @Test
+  public void testReleaseWithoutScheduledReaders() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1024, Files.createTempDirectory("spill").toFile(), false);
+    MemoryTask producer = new MemoryTask(budget, null);
+    MemoryTask second = new MemoryTask(budget, "p");
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-25T15:16")
+      .targetTask("a")
+      .task(producer).id("p").timeRange(MINUTE).add()
+      .task(new MemoryTask(budget, "p")).id("a").timeRange(MINUTE).depIds("p").add()
+      .task(second).id("b").timeRange(MINUTE).depIds("p").add()
+      .execute().awaitDone();
+    assertThat(schedule.getScheduledTasksMap().containsKey("b"), is(false));
+    assertThat(second.read.isEmpty(), is(true));
+    assertThat(producer.output.exist(), is(false));
+    assertThat(budget.getUsed(), is(16L));
+  }
+
+  @Test(timeout = 10_000)
+  public void testReleaseWhenEveryScheduleIsDone() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1024, Files.createTempDirectory("spill").toFile(), false);
+    MemoryTask producer = new MemoryTask(budget, null);
+    MemoryTask first = new MemoryTask(budget, "p");
+    MemoryTask second = new MemoryTask(budget, "p");
+    first.gate = new CountDownLatch(1);
+    second.gate = new CountDownLatch(1);
+    JobSchedule a = JobSchedule.newSchedule("2013-12-26T15:16")
+      .scheduler(new DefaultScheduler(2))
+      .task(producer).id("p").timeRange(MINUTE).add()
+      .task(first).id("a").timeRange(MINUTE).depIds("p").add()
+      .execute();
+    while (producer.output == null || !producer.output.exist()) {
+      Thread.sleep(10);
+    }
+    // the output of p is skipped and shared by another schedule
+    JobSchedule b = JobSchedule.newSchedule("2013-12-26T15:16")
+      .scheduler(new DefaultScheduler(2))
+      .task(new MemoryTask(budget, null)).id("p").timeRange(MINUTE).add()
+      .task(second).id("b").timeRange(MINUTE).depIds("p").add()
+      .execute();
+    first.gate.countDown();
+    a.awaitDone();
+    assertThat(first.read, is(Arrays.asList(16)));
+    assertThat(producer.output.exist(), is(true));
+    second.gate.countDown();
+    b.awaitDone();
+    assertThat(second.read, is(Arrays.asList(16)));
+    assertThat(producer.output.exist(), is(false));
+  }
+
+  @Test
+  public void testLookupsKeepNothing() throws Exception {
+    MemoryBudget budget = new MemoryBudget(1024, Files.createTempDirectory("spill").toFile(), false);
+    MemoryTask failing = new MemoryTask(budget, null);
+    failing.fail = true;
+    JobSchedule schedule = JobSchedule.newSchedule("2013-12-27T15:16/2013-12-27T15:20")
+      .task(failing).id("p").timeRange(MINUTE).add()
+      .execute().awaitDone();
+    schedule.getScheduledTasks()
+      .forEach(t -> assertThat(t.code(), is(TaskStatusCode.ERROR_EXECUTE)));
+    // outputs were checked but never written
+    assertThat(budget.getOutputs(), is(0));
+  }
+
+  private static byte[] bytes(int size, int value) {
+    byte[] bytes = new byte[size];
+    Arrays.fill(bytes, (byte) value);
+    return bytes;
+  }
+
+  /**
+   * Writes 16 bytes and records the size of the output that it depends on, directly
+   * or transitively.
+   */
+  public static class MemoryTask implements Task {
+    final MemoryBudget budget;
+    final String depId;
+    final List<Integer> read = new CopyOnWriteArrayList<>();
+    volatile MemoryTaskOutput output;
+    /** waited for before reading */
+    volatile CountDownLatch gate;
+    /** fail after reading */
+    volatile boolean fail;
+
+    public MemoryTask(MemoryBudget budget, String depId) {
+      this.budget = budget;
+      this.depId = depId;
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      if (gate != null) {
+        try {
+          gate.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      if (depId != null) {
+        MemoryTaskOutput input = ctx.getTransitiveDependencyOutputs().get(depId, ctx.getTimeRange());
+        ByteBuffer buffer = input.get();
+        assertTrue(buffer.isReadOnly());
+        read.add(buffer.remaining());
+      }
+      if (fail) {
+        throw new RuntimeException("fail");
+      }
+      output = getOutput(ctx);
+      output.write(bytes(16, 1));
+    }
+
+    @Override
+    public MemoryTaskOutput getOutput(TaskContext ctx) {
+      return budget.getOutput(ctx);
+    }
+  }
+}
@@ -0,0 +1,56 @@
+package org.deephacks.jobpipe;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.TestCase.assertTrue;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+public class PipelineIndexTest {
+
+  @Test
+  public void testFindWithoutInstantiating() throws Exception {
+    File dir = Files.createTempDirectory("index").toFile();
+    File services = new File(dir, PipelineIndex.SERVICES);
+    assertTrue(services.getParentFile().mkdirs());
+    Files.write(services.toPath(), Arrays.asList(
+      "# pipelines",
+      CountingPipeline.class.getName() + " # counts instances",
+      "",
+      "org.deephacks.jobpipe.DoesNotExist"), StandardCharsets.UTF_8);
+    ClassLoader classLoader = new URLClassLoader(new URL[]{dir.toURI().toURL()},
+      getClass().getClassLoader());
+    CountingPipeline.instances.set(0);
+
+    PipelineIndex index = PipelineIndex.load(classLoader);
+    assertThat(index.getNames(), is(Arrays.asList(CountingPipeline.class.getName(),
+      "org.deephacks.jobpipe.DoesNotExist")));
+    assertThat(index.find("Counting"), is(CountingPipeline.class.getName()));
+    assertNull(index.find("Missing"));
+    assertThat(CountingPipeline.instances.get(), is(0));
+
+    assertTrue(index.newInstance(index.find("Counting")) instanceof CountingPipeline);
+    assertThat(CountingPipeline.instances.get(), is(1));
+  }
+
+  public static class CountingPipeline implements Pipeline {
+    static final AtomicInteger instances = new AtomicInteger();
+
+    public CountingPipeline() {
+      instances.incrementAndGet();
+    }
+
+    @Override
+    public void execute(PipelineContext context) {
+    }
+  }
+}
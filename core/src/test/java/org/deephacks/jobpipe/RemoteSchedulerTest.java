@@ -0,0 +1,179 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static junit.framework.TestCase.assertTrue;
+import static junit.framework.TestCase.fail;
+import static org.deephacks.jobpipe.ForkedSchedulerTest.pid;
+import static org.deephacks.jobpipe.ForkedSchedulerTest.read;
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class RemoteSchedulerTest {
+
+  @Test
+  public void testWorkerJvms() throws Exception {
+    RemoteScheduler scheduler = new RemoteScheduler(new DefaultScheduler(4), 0);
+    List<Process> workers = new ArrayList<>();
+    try {
+      for (int i = 0; i < 2; i++) {
+        workers.add(new ProcessBuilder(
+          new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath(),
+          "-cp", System.getProperty("java.class.path"), RemoteWorker.class.getName(),
+          "localhost", Integer.toString(scheduler.getPort()), "2")
+          .inheritIO().start());
+      }
+      awaitWorkers(scheduler, 2);
+      File dir = Files.createTempDirectory("remote").toFile();
+      JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16/2013-01-21T15:22")
+        .task(new SlowPidTask(dir.getAbsolutePath())).timeRange(MINUTE).scheduler(scheduler).add()
+        .execute().awaitDone();
+      schedule.getScheduledTasks()
+        .forEach(status -> assertThat(status.code(), is(TaskStatusCode.FINISHED)));
+      Set<String> pids = Files.list(dir.toPath()).map(path -> read(path.toFile()))
+        .collect(Collectors.toSet());
+      assertThat(pids.size(), is(2));
+      assertThat(pids.contains(pid()), is(false));
+    } finally {
+      workers.forEach(Process::destroyForcibly);
+      scheduler.shutdown();
+    }
+  }
+
+  @Test
+  public void testWorkerLost() throws Exception {
+    RemoteScheduler scheduler = new RemoteScheduler(new DefaultScheduler(2), 0);
+    RemoteWorker first = new RemoteWorker("localhost", scheduler.getPort(), 1);
+    RemoteWorker second = new RemoteWorker("localhost", scheduler.getPort(), 1);
+    try {
+      start(first);
+      awaitWorkers(scheduler, 1);
+      HangOnceTask.started = new CountDownLatch(1);
+      HangOnceTask.attempts.set(0);
+      JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+        .task(new HangOnceTask()).timeRange(MINUTE).scheduler(scheduler).add()
+        .execute();
+      assertTrue(HangOnceTask.started.await(10, TimeUnit.SECONDS));
+      start(second);
+      awaitWorkers(scheduler, 2);
+      first.stop();
+      schedule.awaitDone();
+      assertThat(schedule.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+      assertThat(HangOnceTask.attempts.get(), is(2));
+    } finally {
+      first.stop();
+      second.stop();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testSchedulerHeartbeat() throws Exception {
+    RemoteScheduler scheduler = new RemoteScheduler(new DefaultScheduler(1), 0);
+    RemoteWorker worker = new RemoteWorker("localhost", scheduler.getPort(), 1, 2500, TimeUnit.MILLISECONDS);
+    try {
+      start(worker);
+      awaitWorkers(scheduler, 1);
+      // idle for longer than the worker timeout
+      Thread.sleep(3500);
+      assertThat(scheduler.getWorkers(), is(1));
+      JobSchedule schedule = JobSchedule.newSchedule("2013-01-21T15:16")
+        .task(new ForkedSchedulerTest.PidTask(Files.createTempDirectory("remote").toString()))
+        .timeRange(MINUTE).scheduler(scheduler).add()
+        .execute().awaitDone();
+      assertThat(schedule.getScheduledTasks().get(0).code(), is(TaskStatusCode.FINISHED));
+    } finally {
+      worker.stop();
+      scheduler.shutdown();
+    }
+  }
+
+  @Test(timeout = 10_000)
+  public void testSchedulerLost() throws Exception {
+    // accepts the worker and never answers
+    try (ServerSocket server = new ServerSocket(0)) {
+      RemoteWorker worker = new RemoteWorker("localhost", server.getLocalPort(), 1, 500, TimeUnit.MILLISECONDS);
+      try {
+        worker.run();
+        fail("worker should lose the scheduler");
+      } catch (IOException e) {
+        assertThat(e.getMessage(), is("no heartbeat from scheduler for 500ms"));
+      }
+    }
+  }
+
+  static void start(RemoteWorker worker) {
+    Thread thread = new Thread(() -> {
+      try {
+        worker.run();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    });
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  static void awaitWorkers(RemoteScheduler scheduler, int workers) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+    while (scheduler.getWorkers() < workers && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertThat(scheduler.getWorkers(), is(workers));
+  }
+
+  public static class SlowPidTask extends ForkedSchedulerTest.PidTask {
+
+    public SlowPidTask(String dir) {
+      super(dir);
+    }
+
+    @Override
+    public void execute(TaskContext ctx) {
+      try {
+        Thread.sleep(500);
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+      super.execute(ctx);
+    }
+  }
+
+  public static class HangOnceTask implements Task {
+    static volatile CountDownLatch started;
+    static final AtomicInteger attempts = new AtomicInteger();
+    final TmpFileOutput output = new TmpFileOutput();
+
+    @Override
+    public void execute(TaskContext ctx) {
+      if (attempts.incrementAndGet() == 1) {
+        started.countDown();
+        try {
+          Thread.sleep(60_000);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      output.create();
+    }
+
+    @Override
+    public TaskOutput getOutput(TaskContext ctx) {
+      return output;
+    }
+  }
+}
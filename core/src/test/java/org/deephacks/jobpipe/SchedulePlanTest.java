@@ -0,0 +1,151 @@
+package org.deephacks.jobpipe;
+
+import org.deephacks.jobpipe.LeaseCoordinatorTest.CountingTask;
+import org.deephacks.jobpipe.SchedulePlan.Action;
+import org.deephacks.jobpipe.SchedulePlan.Entry;
+import org.deephacks.jobpipe.TaskStatus.TaskStatusCode;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import static org.deephacks.jobpipe.TimeRangeType.MINUTE;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class SchedulePlanTest {
+
+  @Test
+  public void testPlan() throws Exception {
+    CountingTask a = new CountingTask(Files.createTempDirectory("a").toFile());
+    CountingTask b = new CountingTask(Files.createTempDirectory("b").toFile());
+    assertThat(new File(a.dir, new TimeRange("2013-12-23T15:16").format()).createNewFile(), is(true));
+    File leaseDir = Files.createTempDirectory("leases").toFile();
+    String lease = LeaseCoordinator.name("a", new TimeRange("2013-12-23T15:17"));
+    Files.write(new File(leaseDir, lease + ".lease").toPath(), "other".getBytes());
+    RuntimeHistory history = new RuntimeHistory();
+    history.record("b", 100);
+    history.record("b", 200);
+    history.record("b", 300);
+
+    SchedulePlan plan = JobSchedule.newSchedule("2013-12-23T15:16/2013-12-23T15:19")
+      .leaseCoordinator(new LeaseCoordinator(leaseDir))
+      .runtimeHistory(history)
+      .task(a).id("a").timeRange(MINUTE).add()
+      .task(b).id("b").timeRange(MINUTE).depIds("a").add()
+      .plan(2);
+
+    Map<String, Action> actions = plan.getEntries().stream()
+      .collect(Collectors.toMap(e -> e.getContext().getId() + " " + e.getContext().getTimeRange().format(),
+        Entry::getAction));
+    assertThat(actions.get("a 2013-12-23T15:16"), is(Action.SKIP));
+    assertThat(actions.get("a 2013-12-23T15:17"), is(Action.BLOCKED));
+    assertThat(actions.get("a 2013-12-23T15:18"), is(Action.RUN));
+    assertThat(actions.get("b 2013-12-23T15:16"), is(Action.RUN));
+    assertThat(actions.get("b 2013-12-23T15:17"), is(Action.BLOCKED));
+    assertThat(actions.get("b 2013-12-23T15:18"), is(Action.RUN));
+    assertThat(plan.getCount(Action.RUN), is(3));
+    assertThat(plan.getCount(Action.SKIP), is(1));
+    assertThat(plan.getCount(Action.BLOCKED), is(2));
+    assertThat(plan.getEstimatedWork(), is(400L));
+    assertThat(plan.getEstimatedCriticalPath(), is(200L));
+    assertThat(plan.getUnestimated(), is(1));
+    assertThat(a.executions.isEmpty(), is(true));
+    assertThat(b.executions.isEmpty(), is(true));
+  }
+
+  @Test
+  public void testPreflight() throws Exception {
+    CountingTask a = new CountingTask(Files.createTempDirectory("a").toFile());
+    CountingTask b = new CountingTask(Files.createTempDirectory("b").toFile());
+    TimeRange range = new TimeRange("2013-12-23T15:16/2013-12-23T15:19");
+    TimeRange minute = range.interval();
+    for (int i = 0; i < range.intervalsBetween(); i++) {
+      assertThat(new File(a.dir, minute.format()).createNewFile(), is(true));
+      minute = minute.next();
+    }
+    JobSchedule schedule = JobSchedule.newSchedule(range)
+      .preflight(4)
+      .task(a).id("a").timeRange(MINUTE).add()
+      .task(b).id("b").timeRange(MINUTE).depIds("a").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    tasks.get("a").forEach(status -> assertThat(status.code(), is(TaskStatusCode.SKIPPED)));
+    tasks.get("b").forEach(status -> assertThat(status.code(), is(TaskStatusCode.FINISHED)));
+    assertThat(a.executions.isEmpty(), is(true));
+    assertThat(b.executions.size(), is(3));
+  }
+
+  @Test
+  public void testPrune() throws Exception {
+    CountingTask a = new CountingTask(Files.createTempDirectory("a").toFile());
+    CountingTask b = new CountingTask(Files.createTempDirectory("b").toFile());
+    CountingTask c = new CountingTask(Files.createTempDirectory("c").toFile());
+    assertThat(new File(c.dir, "2013-12-23T15:16").createNewFile(), is(true));
+    // never checked, since c has output
+    assertThat(new File(b.dir, "2013-12-23T15:16").createNewFile(), is(true));
+    assertThat(new File(b.dir, "2013-12-23T15:17").createNewFile(), is(true));
+    String range = "2013-12-23T15:16/2013-12-23T15:19";
+
+    SchedulePlan plan = JobSchedule.newSchedule(range)
+      .prune()
+      .task(a).id("a").timeRange(MINUTE).add()
+      .task(b).id("b").timeRange(MINUTE).depIds("a").add()
+      .task(c).id("c").timeRange(MINUTE).depIds("b").add()
+      .plan();
+    assertThat(plan.getEntries().size(), is(6));
+    assertThat(plan.getCount(Action.SKIP), is(2));
+    assertThat(plan.getCount(Action.RUN), is(4));
+
+    JobSchedule schedule = JobSchedule.newSchedule(range)
+      .prune()
+      .task(a).id("a").timeRange(MINUTE).add()
+      .task(b).id("b").timeRange(MINUTE).depIds("a").add()
+      .task(c).id("c").timeRange(MINUTE).depIds("b").add()
+      .execute().awaitDone();
+    Map<String, List<TaskStatus>> tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.get("a").size(), is(1));
+    assertThat(tasks.get("b").size(), is(2));
+    assertThat(tasks.get("c").size(), is(3));
+    assertThat(schedule.getFailedTasks().isEmpty(), is(true));
+    assertThat(a.executions.size(), is(1));
+    assertThat(b.executions.size(), is(1));
+    assertThat(c.executions.size(), is(2));
+
+    // every output of c exist, but c is forced to rerun on top of the outputs of b
+    schedule = JobSchedule.newSchedule(range)
+      .prune()
+      .forceRerun("c")
+      .task(a).id("a").timeRange(MINUTE).add()
+      .task(b).id("b").timeRange(MINUTE).depIds("a").add()
+      .task(c).id("c").timeRange(MINUTE).depIds("b").add()
+      .execute().awaitDone();
+    tasks = schedule.getScheduledTasksMap();
+    assertThat(tasks.containsKey("a"), is(false));
+    tasks.get("b").forEach(status -> assertThat(status.code(), is(TaskStatusCode.SKIPPED)));
+    tasks.get("c").forEach(status -> assertThat(status.code(), is(TaskStatusCode.FINISHED)));
+    assertThat(a.executions.size(), is(1));
+    assertThat(b.executions.size(), is(1));
+    assertThat(c.executions.size(), is(3));
+    assertThat(c.executions.values().stream().mapToInt(AtomicInteger::get).sum(), is(5));
+  }
+
+  @Test
+  public void testHistoryFile() throws Exception {
+    File file = new File(Files.createTempDirectory("history").toFile(), "history");
+    assertThat(RuntimeHistory.read(file).count("a"), is(0));
+    RuntimeHistory history = new RuntimeHistory();
+    history.record("a", 10);
+    history.record("a", 30);
+    history.record("b c", 20);
+    history.write(file);
+    RuntimeHistory read = RuntimeHistory.read(file);
+    assertThat(read.count("a"), is(2));
+    assertThat(read.percentile("a", 1), is(30L));
+    assertThat(read.percentile("b c", 0.5), is(20L));
+  }
+}
@@ -14,6 +14,10 @@ public class SparkArgs {
   public String master;
   public String input;
   public String output;
+  /** input paths of every time range when executed as a batch, ordered by time */
+  public List<String> inputs = new ArrayList<>();
+  /** output paths of every time range when executed as a batch, ordered by time */
+  public List<String> outputs = new ArrayList<>();
   public List<String> dependencyOutput = new ArrayList<>();
 
   public SparkArgs() {
@@ -28,9 +32,17 @@ public class SparkArgs {
     this.input = input;
     this.master = master;
     this.output = output;
+    this.inputs.add(input);
+    this.outputs.add(output);
     this.dependencyOutput = dependencyOutput;
   }
 
+  public SparkArgs(String appName, String master, List<String> inputs, List<String> outputs, List<String> dependencyOutput) {
+    this(appName, master, inputs.get(0), outputs.get(0), dependencyOutput);
+    this.inputs = inputs;
+    this.outputs = outputs;
+  }
+
   public String[] toArgs(String[] args) {
     String[] newArgs = new String[args.length + 2];
     System.arraycopy(args, 0, newArgs, 0, args.length);
@@ -64,6 +76,8 @@ public class SparkArgs {
       "appName='" + appName + '\'' +
       ", input='" + input + '\'' +
       ", output='" + output + '\'' +
+      ", inputs=" + inputs +
+      ", outputs=" + outputs +
       ", dependencyOutput=" + dependencyOutput +
       '}';
   }
@@ -4,13 +4,22 @@ import org.apache.spark.launcher.SparkLauncher;
 import org.deephacks.jobpipe.*;
 import org.joda.time.DateTime;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.InputStreamReader;
 import java.lang.annotation.Annotation;
 import java.util.*;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 
-public class SparkTask implements Task {
+/**
+ * Launch a Spark application for the time range of the task. Adjacent time ranges
+ * can be executed in a single Spark application using
+ * {@link org.deephacks.jobpipe.JobSchedule.TaskBuilder#batchSize(int)}, where the
+ * application get every input and output path through {@link SparkArgs#inputs} and
+ * {@link SparkArgs#outputs}.
+ */
+public class SparkTask implements BatchTask {
   protected Builder config;
 
   private SparkTask(Builder config) {
@@ -27,28 +36,44 @@ public class SparkTask implements Task {
 
   @Override
   public void execute(TaskContext ctx) {
+    execute(Collections.singletonList(ctx));
+  }
+
+  @Override
+  public void execute(List<TaskContext> contexts) {
     Process process = null;
     try {
-      DateTime date = ctx.getTimeRange().from();
-      String input = getInputPath(date);
-      String output = getOutputPath(date);
-
-      SparkLauncher launcher = config.createLauncher(date);
-      List<String> depOutput = ctx.getDependecyOutput().stream()
-        .map(o -> o.get().toString())
-        .collect(Collectors.toList());
+      List<String> inputs = new ArrayList<>();
+      List<String> outputs = new ArrayList<>();
+      Set<String> depOutput = new LinkedHashSet<>();
+      for (TaskContext ctx : contexts) {
+        DateTime date = ctx.getTimeRange().from();
+        inputs.add(getInputPath(date));
+        outputs.add(getOutputPath(date));
+        ctx.getDependecyOutput().stream()
+          .map(o -> o.get().toString())
+          .forEach(depOutput::add);
+      }
+      TaskContext ctx = contexts.get(0);
+      SparkLauncher launcher = config.createLauncher(ctx.getTimeRange().from());
 
-      String[] args = new SparkArgs(config.appName, config.master, input, output, depOutput)
+      String[] args = new SparkArgs(config.appName, config.master, inputs, outputs, new ArrayList<>(depOutput))
         .toArgs(ctx.getArgs());
       launcher.addAppArgs(args);
       process = launcher.launch();
+      Process launched = process;
+      // cancelling any task of the batch kills spark-submit and the drivers it started
+      contexts.forEach(c -> c.getCancellation().onCancel(() -> destroyTree(launched)));
       new Thread(new InputStreamThread(process.getInputStream(), System.out)).start();
       new Thread(new InputStreamThread(process.getErrorStream(), System.out)).start();
       process.waitFor();
+    } catch (InterruptedException e) {
+      destroyTree(process);
+      throw new RuntimeException(e);
     } catch (Exception e) {
       throw new RuntimeException(e);
     } finally {
-      if (process != null && process.exitValue() != 0) {
+      if (process != null && !process.isAlive() && process.exitValue() != 0) {
         throw new RuntimeException("process exit status " + process.exitValue());
       }
     }
@@ -289,6 +314,70 @@ public class SparkTask implements Task {
     }
   }
 
+  /**
+   * Kill the spark-submit process and every process below it, like the driver and
+   * the processes that the driver started.
+   */
+  static void destroyTree(Process process) {
+    if (process == null) {
+      return;
+    }
+    Long pid = pid(process);
+    if (pid != null) {
+      try {
+        // collect the whole tree first, since killed processes hand their children to init
+        List<String> tree = new ArrayList<>();
+        descendants(pid.toString(), tree);
+        if (!tree.isEmpty()) {
+          List<String> command = new ArrayList<>(Arrays.asList("kill", "-KILL"));
+          command.addAll(tree);
+          new ProcessBuilder(command).start().waitFor();
+        }
+      } catch (Exception e) {
+        // the process itself is still destroyed
+      }
+    }
+    process.destroyForcibly();
+  }
+
+  /**
+   * Process.descendants() does not exist before Java 9, so walk children with pgrep.
+   */
+  private static void descendants(String pid, List<String> result) throws Exception {
+    Process pgrep = new ProcessBuilder("pgrep", "-P", pid).start();
+    List<String> children = new ArrayList<>();
+    try (BufferedReader reader = new BufferedReader(new InputStreamReader(pgrep.getInputStream()))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.trim().isEmpty()) {
+          children.add(line.trim());
+        }
+      }
+    }
+    pgrep.waitFor();
+    for (String child : children) {
+      result.add(child);
+      descendants(child, result);
+    }
+  }
+
+  /**
+   * Process.pid() does not exist before Java 9, where the pid is a field of UNIXProcess.
+   */
+  private static Long pid(Process process) {
+    try {
+      return (Long) Process.class.getMethod("pid").invoke(process);
+    } catch (Exception e) {
+      try {
+        java.lang.reflect.Field field = process.getClass().getDeclaredField("pid");
+        field.setAccessible(true);
+        return field.getLong(process);
+      } catch (Exception e1) {
+        return null;
+      }
+    }
+  }
+
   private static String getJarAbsolutePath(Class<?> cls) {
     return getJarPath(cls).getAbsolutePath();
   }
@@ -0,0 +1,80 @@
+package org.deephacks.jobpipe;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Compares writing and reading records through {@link MappedFileOutput} with buffered
+ * stream I/O.
+ *
+ * <pre>
+ * java -cp ... org.deephacks.jobpipe.MappedFileOutputBenchmark [records] [recordSize]
+ * </pre>
+ */
+public class MappedFileOutputBenchmark {
+  private static final int ROUNDS = 5;
+
+  public static void main(String[] args) throws Exception {
+    int records = args.length > 0 ? Integer.parseInt(args[0]) : 5_000_000;
+    int recordSize = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+    Path dir = Files.createTempDirectory("benchmark");
+    byte[] record = new byte[recordSize];
+    for (int round = 0; round < ROUNDS; round++) {
+      Path mapped = dir.resolve("mapped");
+      long start = System.nanoTime();
+      MappedFileOutput output = new MappedFileOutput(mapped);
+      try (MappedFileOutput.Writer writer = output.openWriter()) {
+        for (int i = 0; i < records; i++) {
+          writer.append(record);
+        }
+        writer.commit();
+      }
+      long write = System.nanoTime() - start;
+      start = System.nanoTime();
+      long sum = 0;
+      for (ByteBuffer r : output.records()) {
+        sum += r.get(r.limit() - 1);
+      }
+      long read = System.nanoTime() - start;
+      print("mapped", records, recordSize, write, read, sum);
+
+      Path stream = dir.resolve("stream");
+      start = System.nanoTime();
+      try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(stream)))) {
+        for (int i = 0; i < records; i++) {
+          out.writeInt(record.length);
+          out.write(record);
+        }
+      }
+      write = System.nanoTime() - start;
+      start = System.nanoTime();
+      sum = 0;
+      try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(stream)))) {
+        while (true) {
+          byte[] bytes = new byte[in.readInt()];
+          in.readFully(bytes);
+          sum += bytes[bytes.length - 1];
+        }
+      } catch (EOFException e) {
+        // end of records
+      }
+      read = System.nanoTime() - start;
+      print("stream", records, recordSize, write, read, sum);
+      Files.delete(mapped);
+      Files.delete(stream);
+    }
+    Files.delete(dir);
+  }
+
+  private static void print(String name, int records, int recordSize, long write, long read, long sum) {
+    double mb = (double) records * recordSize / (1024 * 1024);
+    System.out.printf("%s write %.0f MB/s read %.0f MB/s (%d)%n", name,
+      mb / (write / 1e9), mb / (read / 1e9), sum);
+  }
+}
@@ -0,0 +1,86 @@
+package org.deephacks.jobpipe;
+
+import org.joda.time.DateTime;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Measure the time from launching the command line until {@link TestPipeline} start its
+ * first task, with and without class data sharing. Classes of this module are given to
+ * the command line through jobpipe.cp.
+ *
+ * <pre>
+ * java -cp ... org.deephacks.jobpipe.StartupBenchmark jobpipe-cli.jar [runs]
+ * </pre>
+ */
+public class StartupBenchmark {
+  private static final String PREFIX = "Time to first task: ";
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: StartupBenchmark jobpipe-cli.jar [runs]");
+      System.exit(1);
+    }
+    File jar = new File(args[0]);
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    // tasks with existing output are skipped, so every run use a day of its own
+    DateTime day = new DateTime(2000, 1, 1, 0, 0).plusDays(ThreadLocalRandom.current().nextInt(100_000));
+    for (boolean cds : Arrays.asList(false, true)) {
+      List<Long> launch = new ArrayList<>();
+      List<Long> jvm = new ArrayList<>();
+      // the first run with class data sharing create the archive
+      for (int i = cds ? -1 : 0; i < runs; i++) {
+        long[] result = run(jar, cds, day.toString("yyyy-MM-dd"));
+        day = day.plusDays(1);
+        if (i >= 0) {
+          launch.add(result[0]);
+          jvm.add(result[1]);
+        }
+      }
+      System.out.println((cds ? "cds" : "default") + " time to first task, median of " + runs
+        + " runs: " + median(launch) + " ms from launch, " + median(jvm) + " ms from jvm start");
+    }
+  }
+
+  /**
+   * @return milliseconds from launch and from start of the jvm that execute the pipeline.
+   */
+  private static long[] run(File jar, boolean cds, String range) throws Exception {
+    List<String> cmd = new ArrayList<>();
+    cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+    cmd.add("-Djobpipe.cp=" + System.getProperty("java.class.path"));
+    cmd.add("-Djobpipe.cds=" + cds);
+    cmd.addAll(Arrays.asList("-jar", jar.getAbsolutePath(), TestPipeline.class.getName(),
+      "-range", range, "-v"));
+    long launched = System.currentTimeMillis();
+    Process process = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+    try {
+      BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (line.startsWith(PREFIX)) {
+          long jvm = Long.parseLong(line.substring(PREFIX.length(), line.indexOf(" ms")));
+          long started = Long.parseLong(line.substring(line.lastIndexOf(' ') + 1));
+          process.waitFor();
+          return new long[]{started - launched, jvm};
+        }
+      }
+      throw new IllegalStateException("no first task in output of " + cmd);
+    } finally {
+      process.destroyForcibly();
+    }
+  }
+
+  private static long median(List<Long> values) {
+    List<Long> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+}